@@ -0,0 +1,55 @@
+package com.zepp.frameplayer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts AVC/HEVC samples from the form they are stored in mp4 files to the form MediaCodec takes.
+ *
+ * In a file every NAL unit of a sample is prefixed with its length, 1, 2 or 4 bytes as told by the
+ * "avcC"/"hvcC" box. The decoder wants an Annex-B stream instead, every NAL unit prefixed with the start
+ * code 00 00 00 01. A sample with shorter length prefixes grows by the conversion.
+ */
+final class AnnexB {
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private AnnexB(){}
+
+    /**
+     * @return the largest size a sample of the given size can have once converted
+     */
+    static int maxConvertedSize(int sampleSize, int nalLengthSize){
+        if(nalLengthSize <= 0 || nalLengthSize >= START_CODE.length){
+            return sampleSize;
+        }
+        // every NAL unit holds at least one byte besides its length prefix.
+        long nalCount = sampleSize / (nalLengthSize + 1);
+        return (int)Math.min(Integer.MAX_VALUE, sampleSize + nalCount * (START_CODE.length - nalLengthSize));
+    }
+
+    /**
+     * Write the NAL units of a sample to the target, each prefixed with the start code instead of its length.
+     * A truncated last NAL unit is written as far as it goes, trailing bytes too few for a length are dropped.
+     *
+     * @param sample the sample, read from its position to its limit
+     * @param nalLengthSize bytes of the length prefixes, see "lengthSizeMinusOne" of "avcC"/"hvcC"
+     * @param target written from its position
+     * @return bytes written to the target
+     */
+    static int convert(ByteBuffer sample, int nalLengthSize, ByteBuffer target){
+        int start = target.position();
+        ByteBuffer nal = sample.duplicate();
+        while(nal.remaining() >= nalLengthSize){
+            long length = 0;
+            for(int i = 0; i < nalLengthSize; i++){
+                length = (length << 8) | (nal.get() & 0xff);
+            }
+            int end = (int)Math.min(nal.limit(), nal.position() + length);
+            int limit = nal.limit();
+            nal.limit(end);
+            target.put(START_CODE);
+            target.put(nal);
+            nal.limit(limit);
+        }
+        return target.position() - start;
+    }
+}
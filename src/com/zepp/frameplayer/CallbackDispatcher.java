@@ -0,0 +1,166 @@
+package com.zepp.frameplayer;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Delivers the listener callbacks of a player on an executor, so user code never runs on the decode thread,
+ * the worker only posts the events.
+ *
+ * Events of a player are delivered one at a time in the order they were posted, e.g. every seek completion
+ * in order. Position updates are coalesced: a new position replaces the pending one, so a slow listener gets
+ * the latest position instead of a backlog. Overlay frames are coalesced the same way, their event and slice
+ * are reused so a frame costs no allocation.
+ */
+final class CallbackDispatcher {
+    private static final String TAG = "CallbackDispatcher";
+    // delivered in one go before other players get the executor.
+    private static final int MAX_EVENTS_PER_RUN = 16;
+
+    private final class PositionEvent implements Runnable {
+        FramePlayer.OnPositionUpdateListener listener;
+        FramePlayer player;
+        int positionMs;
+
+        @Override
+        public void run() {
+            listener.onPositionUpdate(player, positionMs);
+        }
+    }
+
+    // one per dispatcher, the slice is filled on delivery. Fields are guarded by the dispatcher.
+    private final class FrameEvent implements Runnable {
+        final OverlayStore.Slice slice = new OverlayStore.Slice();
+        OverlayStore.OnOverlayFrameListener listener;
+        OverlayStore store;
+        FramePlayer player;
+        long presentationTimeUs;
+        long endTimeUs;
+
+        @Override
+        public void run() {
+            OverlayStore.OnOverlayFrameListener listener;
+            FramePlayer player;
+            synchronized (CallbackDispatcher.this){
+                listener = this.listener;
+                player = this.player;
+                store.fill(slice, presentationTimeUs, endTimeUs);
+            }
+            listener.onOverlayFrame(player, slice);
+        }
+    }
+
+    private final ArrayDeque<Runnable> mEvents = new ArrayDeque<Runnable>();
+    private PositionEvent mPendingPosition; // queued and not delivered yet
+    private FrameEvent mFrameEvent;
+    private boolean mIsFrameQueued;
+    private boolean mIsScheduled;
+    private volatile Executor mExecutor;
+
+    private final Runnable mDeliver = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    CallbackDispatcher(Executor executor){
+        mExecutor = executor;
+    }
+
+    void setExecutor(Executor executor){
+        mExecutor = executor;
+    }
+
+    synchronized void post(Runnable event){
+        mEvents.add(event);
+        scheduleLocked();
+    }
+
+    synchronized void postPosition(FramePlayer.OnPositionUpdateListener listener, FramePlayer player, int positionMs){
+        PositionEvent event = mPendingPosition;
+        if(event != null){
+            mEvents.remove(event); // the latest position goes after the events posted meanwhile
+        }else{
+            event = new PositionEvent();
+            mPendingPosition = event;
+        }
+        event.listener = listener;
+        event.player = player;
+        event.positionMs = positionMs;
+        mEvents.add(event);
+        scheduleLocked();
+    }
+
+    /**
+     * Overlay slice of a presented frame, the frame is on screen in [presentationTimeUs, endTimeUs).
+     */
+    synchronized void postFrame(OverlayStore.OnOverlayFrameListener listener, OverlayStore store, FramePlayer player,
+                                long presentationTimeUs, long endTimeUs){
+        FrameEvent event = mFrameEvent;
+        if(event == null){
+            event = new FrameEvent();
+            mFrameEvent = event;
+        }
+        if(mIsFrameQueued){
+            mEvents.remove(event);
+        }
+        event.listener = listener;
+        event.store = store;
+        event.player = player;
+        event.presentationTimeUs = presentationTimeUs;
+        event.endTimeUs = endTimeUs;
+        mEvents.add(event);
+        mIsFrameQueued = true;
+        scheduleLocked();
+    }
+
+    private void scheduleLocked(){
+        if(mIsScheduled){
+            return;
+        }
+        mIsScheduled = true;
+        try{
+            mExecutor.execute(mDeliver);
+        }catch (RejectedExecutionException ex){
+            Log.w(TAG, "Callback executor rejected the events: " + ex);
+            mIsScheduled = false;
+        }
+    }
+
+    private void deliver(){
+        for(int i = 0; i < MAX_EVENTS_PER_RUN; i++){
+            Runnable event;
+            synchronized (this){
+                event = mEvents.poll();
+                if(event == null){
+                    mIsScheduled = false;
+                    return;
+                }
+                if(event == mPendingPosition){
+                    mPendingPosition = null;
+                }else if(event == mFrameEvent){
+                    mIsFrameQueued = false;
+                }
+            }
+            TraceSections.begin("FramePlayer.callback");
+            try{
+                event.run();
+            }catch (RuntimeException ex){
+                Log.e(TAG, "Listener failed.", ex);
+            }finally {
+                TraceSections.end();
+            }
+        }
+        // more to deliver, let other players have the executor first.
+        synchronized (this){
+            mIsScheduled = false;
+            if(!mEvents.isEmpty()){
+                scheduleLocked();
+            }
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package com.zepp.frameplayer;
+
+import android.util.Log;
+
+import com.coremedia.iso.IsoFile;
+import com.coremedia.iso.boxes.Box;
+import com.coremedia.iso.boxes.ChunkOffsetBox;
+import com.coremedia.iso.boxes.Container;
+import com.coremedia.iso.boxes.MovieBox;
+import com.coremedia.iso.boxes.SampleTableBox;
+import com.coremedia.iso.boxes.SampleToChunkBox;
+import com.coremedia.iso.boxes.StaticChunkOffsetBox;
+import com.coremedia.iso.boxes.TrackBox;
+import com.googlecode.mp4parser.authoring.Movie;
+import com.googlecode.mp4parser.authoring.Mp4TrackImpl;
+import com.googlecode.mp4parser.authoring.builder.DefaultMp4Builder;
+import com.googlecode.mp4parser.authoring.tracks.CroppedTrack;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exports a time range of a clip to a new MP4 by copying its compressed samples, nothing is decoded or
+ * encoded. The range starts at the key frame at or before the requested start, so the export plays from its
+ * first frame; audio is cut at the same time.
+ *
+ * isoparser writes the boxes of the new file, the samples are copied by the file channel: every track is one
+ * chunk in "mdat" and the runs of contiguous samples go from the clip to the export with transferTo().
+ */
+public final class ClipExporter {
+    private static final String TAG = "ClipExporter";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String VIDEO_HANDLER = "vide";
+    private static final String AUDIO_HANDLER = "soun";
+    private static final int BOX_HEADER_SIZE = 8;
+    private static final int LARGE_BOX_HEADER_SIZE = 16;
+
+    private ClipExporter(){}
+
+    /**
+     * Result of an export.
+     */
+    public static final class Result {
+        public final String path;
+        /** presentation time in the clip of the first frame of the export, in microseconds. */
+        public final long startUs;
+        public final long durationUs;
+
+        private Result(String path, long startUs, long durationUs){
+            this.path = path;
+            this.startUs = startUs;
+            this.durationUs = durationUs;
+        }
+    }
+
+    // samples [from, to) of a track of the clip, in decoding order.
+    private static final class TrackRange {
+        final SampleTable sampleTable;
+        final int from;
+        final int to;
+
+        TrackRange(SampleTable sampleTable, int from, int to){
+            this.sampleTable = sampleTable;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /**
+     * Export in background.
+     *
+     * @return future of the result, null if the clip can't be exported
+     */
+    public static PlayerFuture<Result> exportAsync(final String source, final long startMs, final long endMs,
+                                                   final String output){
+        final PlayerFuture<Result> future = new PlayerFuture<Result>();
+        PlayerScheduler.getInstance().runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                Result result = null;
+                try{
+                    result = export(source, startMs, endMs, output);
+                }catch (Exception ex){
+                    Log.w(TAG, "Can't export " + source + ": " + ex);
+                }
+                future.complete(result);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Export the frames presented in [startMs, endMs), blocks until done. An existing output is replaced.
+     */
+    public static Result export(String source, long startMs, long endMs, String output)
+            throws IOException, IllegalArgumentException {
+        long startNs = System.nanoTime();
+        MappedDataSource dataSource = MappedDataSource.open(source);
+        try{
+            MediaInfoExtractor.MediaInfo mediaInfo = MediaInfoCache.getInstance().get(source, dataSource);
+            SampleTable videoTable = mediaInfo.sampleTable;
+            long endUs = Math.min(endMs * 1000, mediaInfo.durationUs);
+            int videoFrom = videoTable.getSyncSampleForTime(Math.max(startMs * 1000, 0));
+            int videoTo = videoFrom;
+            for(int i = videoFrom; i < videoTable.getSampleCount(); i++){
+                // frames presented later but decoded before the last one are kept, they are referenced.
+                if(videoTable.getTimeUs(i) < endUs){
+                    videoTo = i + 1;
+                }
+            }
+            if(videoTo <= videoFrom){
+                throw new IllegalArgumentException("Nothing to export in [" + startMs + ", " + endMs + ")ms.");
+            }
+            long firstFrameUs = videoTable.getTimeUs(videoFrom);
+
+            // the boxes of the clip are parsed lazily, they are read until the boxes of the export are built.
+            Container container;
+            Map<Long, TrackRange> ranges = new HashMap<Long, TrackRange>();
+            synchronized (MediaInfoExtractor.EXTRACT_LOCKER){
+                IsoFile isoFile = MediaInfoExtractor.parse(dataSource);
+                MovieBox movieBox = isoFile.getMovieBox();
+                if(movieBox == null){
+                    throw new IllegalArgumentException("Cannot find movie box in target file.");
+                }
+                Movie movie = new Movie();
+                boolean hasVideo = false;
+                for(TrackBox trackBox : movieBox.getBoxes(TrackBox.class)){
+                    String handler = trackBox.getMediaBox().getHandlerBox().getHandlerType();
+                    long trackId = trackBox.getTrackHeaderBox().getTrackId();
+                    TrackRange range;
+                    if(VIDEO_HANDLER.equals(handler) && !hasVideo){
+                        range = new TrackRange(videoTable, videoFrom, videoTo);
+                        hasVideo = true;
+                    }else if(AUDIO_HANDLER.equals(handler)){
+                        SampleTable table = SampleTable.build(trackBox.getSampleTableBox(),
+                                trackBox.getMediaBox().getMediaHeaderBox().getTimescale());
+                        range = new TrackRange(table, firstSampleAt(table, firstFrameUs), firstSampleAt(table, endUs));
+                        if(range.to <= range.from){
+                            continue;
+                        }
+                    }else{
+                        continue; // other video, hint and metadata tracks are dropped
+                    }
+                    ranges.put(trackId, range);
+                    movie.addTrack(new CroppedTrack(new Mp4TrackImpl(source + "[" + trackId + "]", trackBox),
+                            range.from, range.to));
+                }
+                movie.setMatrix(movieBox.getMovieHeaderBox().getMatrix());
+                container = new DefaultMp4Builder().build(movie);
+            }
+
+            File tempFile = new File(output + TEMP_SUFFIX);
+            try{
+                write(container, ranges, dataSource, tempFile);
+            }catch (IOException ex){
+                tempFile.delete();
+                throw ex;
+            }
+            File outputFile = new File(output);
+            outputFile.delete();
+            if(!tempFile.renameTo(outputFile)){
+                tempFile.delete();
+                throw new IOException("Can't move export to " + output);
+            }
+            long durationUs = endUs - firstFrameUs;
+            Log.d(TAG, "Exported " + (videoTo - videoFrom) + " frames of " + source + " in "
+                    + (System.nanoTime() - startNs) / 1000000 + "ms.");
+            return new Result(output, firstFrameUs, durationUs);
+        }finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * @return index of the first sample at or after timeUs, the sample count if none.
+     */
+    private static int firstSampleAt(SampleTable table, long timeUs){
+        for(int i = 0; i < table.getSampleCount(); i++){
+            if(table.getTimeUs(i) >= timeUs){
+                return i;
+            }
+        }
+        return table.getSampleCount();
+    }
+
+    /**
+     * Write the boxes built by isoparser with one chunk per track, followed by "mdat" holding the samples
+     * of the tracks one after another.
+     */
+    private static void write(Container container, Map<Long, TrackRange> ranges, MappedDataSource dataSource,
+                              File file) throws IOException {
+        List<Box> boxes = new ArrayList<Box>();
+        MovieBox movieBox = null;
+        for(Box box : container.getBoxes()){
+            if(box instanceof MovieBox){
+                movieBox = (MovieBox)box;
+            }
+            if(!"mdat".equals(box.getType())){
+                boxes.add(box);
+            }
+        }
+        if(movieBox == null){
+            throw new IOException("Movie box is not built.");
+        }
+        List<TrackBox> trackBoxes = movieBox.getBoxes(TrackBox.class);
+
+        // one chunk per track, the size of "moov" doesn't depend on the offsets then. "stsc" and "stco" get
+        // their final single entry before the size of the header is taken, the offsets are patched after.
+        long[] trackSizes = new long[trackBoxes.size()];
+        StaticChunkOffsetBox[] chunkOffsets = new StaticChunkOffsetBox[trackBoxes.size()];
+        long dataSize = 0;
+        for(int i = 0; i < trackBoxes.size(); i++){
+            SampleTableBox stbl = trackBoxes.get(i).getSampleTableBox();
+            TrackRange range = ranges.get(trackBoxes.get(i).getTrackHeaderBox().getTrackId());
+            if(range == null){
+                throw new IOException("Track ids are not kept by the builder.");
+            }
+            stbl.getSampleToChunkBox().setEntries(Collections.singletonList(
+                    new SampleToChunkBox.Entry(1, range.to - range.from, 1)));
+            ChunkOffsetBox chunkOffsetBox = stbl.getChunkOffsetBox();
+            if(!(chunkOffsetBox instanceof StaticChunkOffsetBox)){
+                throw new IOException("Unexpected chunk offset box " + chunkOffsetBox);
+            }
+            chunkOffsets[i] = (StaticChunkOffsetBox)chunkOffsetBox;
+            chunkOffsets[i].setChunkOffsets(new long[1]);
+            for(int sample = range.from; sample < range.to; sample++){
+                trackSizes[i] += range.sampleTable.getSize(sample);
+            }
+            dataSize += trackSizes[i];
+        }
+        long headerSize = 0;
+        for(Box box : boxes){
+            headerSize += box.getSize();
+        }
+        boolean largeData = dataSize + BOX_HEADER_SIZE > 0xffffffffL;
+        long offset = headerSize + (largeData ? LARGE_BOX_HEADER_SIZE : BOX_HEADER_SIZE);
+        for(int i = 0; i < trackBoxes.size(); i++){
+            chunkOffsets[i].setChunkOffsets(new long[]{offset});
+            offset += trackSizes[i];
+        }
+
+        FileOutputStream stream = new FileOutputStream(file);
+        try{
+            FileChannel channel = stream.getChannel();
+            for(Box box : boxes){
+                box.getBox(channel);
+            }
+            ByteBuffer header = ByteBuffer.allocate(largeData ? LARGE_BOX_HEADER_SIZE : BOX_HEADER_SIZE);
+            if(largeData){
+                header.putInt(1);
+                header.put(IsoFile.fourCCtoBytes("mdat"));
+                header.putLong(dataSize + LARGE_BOX_HEADER_SIZE);
+            }else{
+                header.putInt((int)(dataSize + BOX_HEADER_SIZE));
+                header.put(IsoFile.fourCCtoBytes("mdat"));
+            }
+            header.flip();
+            while(header.hasRemaining()){
+                channel.write(header);
+            }
+            for(TrackBox trackBox : trackBoxes){
+                copySamples(ranges.get(trackBox.getTrackHeaderBox().getTrackId()), dataSource, channel);
+            }
+            channel.force(false);
+        }finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Copy the samples of a track range, samples stored back to back in the clip are copied in one go.
+     */
+    private static void copySamples(TrackRange range, MappedDataSource dataSource, FileChannel target)
+            throws IOException {
+        SampleTable table = range.sampleTable;
+        long runStart = -1;
+        long runEnd = -1;
+        for(int i = range.from; i < range.to; i++){
+            long offset = table.getOffset(i);
+            if(offset != runEnd){
+                transfer(dataSource, runStart, runEnd, target);
+                runStart = offset;
+            }
+            runEnd = offset + table.getSize(i);
+        }
+        transfer(dataSource, runStart, runEnd, target);
+    }
+
+    private static void transfer(MappedDataSource dataSource, long start, long end, FileChannel target)
+            throws IOException {
+        while(start < end){
+            long count = dataSource.transferTo(start, end - start, target);
+            if(count <= 0){
+                throw new IOException("Source ended at " + start);
+            }
+            start += count;
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package com.zepp.frameplayer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Timestamped trace of the commands given to a {@link FramePlayer} and of its decoder work, recorded by
+ * {@link FramePlayer#startTrace(int)}. The trace holds the sample times of the clip as well, so
+ * {@link TraceReplayer} replays it without the clip or a device, e.g. to turn the trace of a bug report into
+ * a benchmark.
+ *
+ * Events are kept in preallocated columns, recording doesn't allocate. Recording stops when the trace is
+ * full, see {@link #isTruncated()}. Only java.* is used here, the trace is read on any JVM.
+ */
+public final class CommandTrace {
+    //region Event types
+    // commands, the argument is the seek target in microseconds, 1/0 for scrub begin/end, the number of
+    // SEQUENCE_TARGET events following a SEEK_SEQUENCE, 1 for a suspend releasing the decoder, otherwise 0.
+    public static final int START = 1;
+    public static final int PAUSE = 2;
+    public static final int SEEK = 3;
+    public static final int SEEK_SEQUENCE = 4;
+    public static final int SCRUB = 5;
+    public static final int SUSPEND = 6;
+    public static final int RESUME = 7;
+    public static final int STOP = 8;
+    public static final int RESET = 9;
+    public static final int RELEASE = 10;
+    /** a target of the SEEK_SEQUENCE before, argument is the time in microseconds. */
+    public static final int SEQUENCE_TARGET = 11;
+    // execution of a command, the argument is the index of the command event. In an EventRing it's the
+    // command type, the commands are not numbered there.
+    public static final int COMMAND_BEGIN = 16;
+    public static final int COMMAND_DONE = 17;
+    /** dropped without being executed, e.g. a seek superseded by a later one. */
+    public static final int COMMAND_DROPPED = 18;
+    // decoder, the argument is a time in microseconds or 0.
+    public static final int SAMPLE_QUEUED = 24;
+    public static final int FRAME_DECODED = 25;
+    public static final int FRAME_RENDERED = 26;
+    public static final int DECODER_FLUSH = 27;
+    public static final int DECODER_RESTART = 28;
+    /** the demuxer moved to the key frame of the time in the argument. */
+    public static final int DEMUXER_SEEK = 29;
+    /**
+     * dequeues in a row that got no decoder buffer within the timeout, recorded once when the run ends. The
+     * argument is the number of them, negative for output buffers.
+     */
+    public static final int DEQUEUE_TIMEOUT = 30;
+    //endregion
+
+    private static final int MAGIC = 0x46505452; // "FPTR"
+    private static final int VERSION = 1;
+
+    private final long[] mSampleTimesUs; // decoding order
+    private final int[] mSyncSamples;    // ascending indexes
+    private final long mStartPositionUs;
+    private final long mStartNs;
+
+    private final long[] mTimesNs; // since the start of the trace
+    private final byte[] mTypes;
+    private final long[] mArgs;
+    private int mSize;
+    private boolean mIsTruncated;
+    private volatile boolean mIsStopped;
+
+    CommandTrace(long[] sampleTimesUs, int[] syncSamples, long startPositionUs, int capacity){
+        this(sampleTimesUs, syncSamples, startPositionUs, System.nanoTime(),
+                new long[capacity], new byte[capacity], new long[capacity], 0);
+    }
+
+    private CommandTrace(long[] sampleTimesUs, int[] syncSamples, long startPositionUs, long startNs,
+                         long[] timesNs, byte[] types, long[] args, int size){
+        mSampleTimesUs = sampleTimesUs;
+        mSyncSamples = syncSamples;
+        mStartPositionUs = startPositionUs;
+        mStartNs = startNs;
+        mTimesNs = timesNs;
+        mTypes = types;
+        mArgs = args;
+        mSize = size;
+    }
+
+    /**
+     * @return index of the event, -1 if not recorded.
+     */
+    synchronized int record(int type, long arg){
+        if(mIsStopped){
+            return -1;
+        }
+        if(mSize == mTypes.length){
+            mIsTruncated = true;
+            return -1;
+        }
+        mTimesNs[mSize] = System.nanoTime() - mStartNs;
+        mTypes[mSize] = (byte)type;
+        mArgs[mSize] = arg;
+        return mSize++;
+    }
+
+    /**
+     * Record a SEEK_SEQUENCE and its SEQUENCE_TARGET events in one go, no event of another thread lands
+     * between them. A sequence that doesn't fit is not recorded at all.
+     *
+     * @return index of the SEEK_SEQUENCE event, -1 if not recorded.
+     */
+    synchronized int recordSequence(long[] timesUs){
+        if(mIsStopped){
+            return -1;
+        }
+        if(mTypes.length - mSize < timesUs.length + 1){
+            mIsTruncated = true;
+            return -1;
+        }
+        int index = record(SEEK_SEQUENCE, timesUs.length);
+        for(long timeUs : timesUs){
+            record(SEQUENCE_TARGET, timeUs);
+        }
+        return index;
+    }
+
+    /**
+     * Stop recording, the player stops using the trace.
+     */
+    void stop(){
+        mIsStopped = true;
+    }
+
+    public synchronized int size(){
+        return mSize;
+    }
+
+    public synchronized int typeAt(int index){
+        checkIndex(index);
+        return mTypes[index];
+    }
+
+    /**
+     * @return time of the event since the start of the trace, in nanoseconds.
+     */
+    public synchronized long timeAt(int index){
+        checkIndex(index);
+        return mTimesNs[index];
+    }
+
+    public synchronized long argAt(int index){
+        checkIndex(index);
+        return mArgs[index];
+    }
+
+    /**
+     * @return true if events were lost because the trace was full.
+     */
+    public synchronized boolean isTruncated(){
+        return mIsTruncated;
+    }
+
+    /**
+     * @return presentation time of the frame on screen when the trace started.
+     */
+    public long getStartPositionUs(){
+        return mStartPositionUs;
+    }
+
+    public int getSampleCount(){
+        return mSampleTimesUs.length;
+    }
+
+    /**
+     * @return presentation time of a sample in decoding order.
+     */
+    public long getSampleTimeUs(int index){
+        return mSampleTimesUs[index];
+    }
+
+    public boolean isSyncSample(int index){
+        return Arrays.binarySearch(mSyncSamples, index) >= 0;
+    }
+
+    /**
+     * @return index of the sync sample that has to be decoded first to show the frame at timeUs.
+     */
+    public int getSyncSampleForTime(long timeUs){
+        // sync samples never get reordered, their timestamps are ascending.
+        int low = 0;
+        int high = mSyncSamples.length - 1;
+        while(low <= high){
+            int mid = (low + high) >>> 1;
+            if(mSampleTimesUs[mSyncSamples[mid]] <= timeUs){
+                low = mid + 1;
+            }else{
+                high = mid - 1;
+            }
+        }
+        return mSyncSamples[Math.max(high, 0)];
+    }
+
+    //region Serialization
+    public synchronized void writeTo(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(mStartPositionUs);
+        out.writeInt(mSampleTimesUs.length);
+        long previousUs = 0;
+        for(long timeUs : mSampleTimesUs){
+            out.writeInt((int)(timeUs - previousUs)); // deltas fit in int, even in decoding order
+            previousUs = timeUs;
+        }
+        out.writeInt(mSyncSamples.length);
+        for(int sample : mSyncSamples){
+            out.writeInt(sample);
+        }
+        out.writeBoolean(mIsTruncated);
+        out.writeInt(mSize);
+        long previousNs = 0;
+        for(int i = 0; i < mSize; i++){
+            out.writeByte(mTypes[i]);
+            out.writeInt((int)((mTimesNs[i] - previousNs) / 1000)); // to microsecond
+            previousNs = mTimesNs[i] / 1000 * 1000;
+            out.writeLong(mArgs[i]);
+        }
+        out.flush();
+    }
+
+    public static CommandTrace readFrom(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if(in.readInt() != MAGIC){
+            throw new IOException("Not a command trace.");
+        }
+        int version = in.readInt();
+        if(version != VERSION){
+            throw new IOException("Unsupported trace version " + version);
+        }
+        long startPositionUs = in.readLong();
+        long[] sampleTimesUs = new long[in.readInt()];
+        long timeUs = 0;
+        for(int i = 0; i < sampleTimesUs.length; i++){
+            timeUs += in.readInt();
+            sampleTimesUs[i] = timeUs;
+        }
+        int[] syncSamples = new int[in.readInt()];
+        for(int i = 0; i < syncSamples.length; i++){
+            syncSamples[i] = in.readInt();
+        }
+        if(syncSamples.length == 0){
+            throw new IOException("Trace has no sync sample.");
+        }
+        boolean truncated = in.readBoolean();
+        int size = in.readInt();
+        long[] timesNs = new long[size];
+        byte[] types = new byte[size];
+        long[] args = new long[size];
+        long timeNs = 0;
+        for(int i = 0; i < size; i++){
+            types[i] = in.readByte();
+            timeNs += in.readInt() * 1000L;
+            timesNs[i] = timeNs;
+            args[i] = in.readLong();
+        }
+        CommandTrace trace = new CommandTrace(sampleTimesUs, syncSamples, startPositionUs, 0,
+                timesNs, types, args, size);
+        trace.mIsTruncated = truncated;
+        trace.mIsStopped = true;
+        return trace;
+    }
+    //endregion
+
+    public static String nameOf(int type){
+        switch (type){
+            case START: return "start";
+            case PAUSE: return "pause";
+            case SEEK: return "seek";
+            case SEEK_SEQUENCE: return "seekSequence";
+            case SCRUB: return "scrub";
+            case SUSPEND: return "suspend";
+            case RESUME: return "resume";
+            case STOP: return "stop";
+            case RESET: return "reset";
+            case RELEASE: return "release";
+            case SEQUENCE_TARGET: return "sequenceTarget";
+            case COMMAND_BEGIN: return "begin";
+            case COMMAND_DONE: return "done";
+            case COMMAND_DROPPED: return "dropped";
+            case SAMPLE_QUEUED: return "sampleQueued";
+            case FRAME_DECODED: return "frameDecoded";
+            case FRAME_RENDERED: return "frameRendered";
+            case DECODER_FLUSH: return "flush";
+            case DECODER_RESTART: return "restart";
+            case DEMUXER_SEEK: return "demuxerSeek";
+            case DEQUEUE_TIMEOUT: return "dequeueTimeout";
+            default: return "event" + type;
+        }
+    }
+
+    private void checkIndex(int index){
+        if(index < 0 || index >= mSize){
+            throw new IndexOutOfBoundsException("Event index " + index + " is out of range [0, " + mSize + ").");
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.zepp.frameplayer;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chooses the decoder for a clip from {@link MediaCodecList}, instead of the default one of
+ * {@link MediaCodec#createDecoderByType(String)} which is a slow software decoder on some devices.
+ *
+ * Hardware decoders that support the profile, level and size of the clip come first, decoders of the
+ * same kind are ordered by their measured decoding speed. Probing results, failures and speeds are
+ * cached for the process, so the codec list is only queried once per kind of clip. A failed decoder is
+ * excluded for a while, longer each time it fails again, unless the failure was transient, e.g. another
+ * app held the decoder instances.
+ */
+final class DecoderSelector {
+    private static final String TAG = "DecoderSelector";
+    private static final String KEY_PROFILE = "profile"; // MediaFormat.KEY_PROFILE, API 21
+    private static final String KEY_LEVEL = "level";     // MediaFormat.KEY_LEVEL, API 23
+    // MediaCodec.CodecException, API 21, and its error codes, API 23
+    private static final String CODEC_EXCEPTION = "android.media.MediaCodec$CodecException";
+    private static final int ERROR_INSUFFICIENT_RESOURCE = 1100;
+    private static final int ERROR_RECLAIMED = 1101;
+    private static final long EXCLUSION_NS = 30L * 1000 * 1000 * 1000;
+    private static final long MAX_EXCLUSION_NS = 60 * 60 * 1000L * 1000 * 1000;
+
+    private static class Failure {
+        int count;
+        long excludedUntilNs;
+    }
+
+    // format key -> names of the capable decoders
+    private static final Map<String, List<String>> sCapableDecoders = new HashMap<String, List<String>>();
+    // format key + codec name of the decoders failed to configure or start
+    private static final Map<String, Failure> sFailedDecoders = new HashMap<String, Failure>();
+    // codec name -> average decoding time of a frame
+    private static final Map<String, Long> sFrameTimesNs = new HashMap<String, Long>();
+
+    private DecoderSelector(){}
+
+    /**
+     * Exclude a decoder from later selections for this kind of clip for a while, e.g. when it failed to
+     * configure or start. Transient failures are ignored, the decoder is tried again next time.
+     */
+    static synchronized void markFailed(MediaFormat format, String name, Exception cause){
+        if(isTransient(cause)){
+            Log.d(TAG, "Decoder " + name + " failed transiently, keep it: " + cause);
+            return;
+        }
+        String key = formatKey(format) + "|" + name;
+        Failure failure = sFailedDecoders.get(key);
+        if(failure == null){
+            failure = new Failure();
+            sFailedDecoders.put(key, failure);
+        }
+        long exclusionNs = Math.min(EXCLUSION_NS << Math.min(failure.count, 16), MAX_EXCLUSION_NS);
+        failure.count++;
+        failure.excludedUntilNs = System.nanoTime() + exclusionNs;
+    }
+
+    /**
+     * Forget the failures of a decoder, e.g. when it started.
+     */
+    static synchronized void markSucceeded(MediaFormat format, String name){
+        sFailedDecoders.remove(formatKey(format) + "|" + name);
+    }
+
+    /**
+     * Report decoding speed of a decoder, faster decoders are preferred by later selections.
+     */
+    static synchronized void recordFrameTime(String name, int frames, long elapsedNs){
+        if(name == null || frames <= 0){
+            return;
+        }
+        long frameTimeNs = elapsedNs / frames;
+        Long average = sFrameTimesNs.get(name);
+        sFrameTimesNs.put(name, average == null ? frameTimeNs : (average * 7 + frameTimeNs) / 8);
+    }
+
+    /**
+     * @return names of the decoders to try, best first
+     */
+    static synchronized List<String> getCandidates(MediaFormat format){
+        String key = formatKey(format);
+        List<String> capable = sCapableDecoders.get(key);
+        if(capable == null){
+            capable = findCapableDecoders(format);
+            sCapableDecoders.put(key, capable);
+        }
+        List<String> candidates = new ArrayList<String>(capable.size());
+        long nowNs = System.nanoTime();
+        for(String name : capable){
+            Failure failure = sFailedDecoders.get(key + "|" + name);
+            if(failure == null || failure.excludedUntilNs - nowNs <= 0){
+                candidates.add(name);
+            }
+        }
+        Collections.sort(candidates, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                boolean lhsHardware = isHardware(lhs);
+                if(lhsHardware != isHardware(rhs)){
+                    return lhsHardware ? -1 : 1;
+                }
+                // unmeasured decoders keep the order of the codec list, after the measured ones.
+                Long lhsTime = sFrameTimesNs.get(lhs);
+                Long rhsTime = sFrameTimesNs.get(rhs);
+                if(lhsTime == null || rhsTime == null){
+                    return lhsTime != null ? -1 : (rhsTime != null ? 1 : 0);
+                }
+                return lhsTime.compareTo(rhsTime);
+            }
+        });
+        return candidates;
+    }
+
+    private static List<String> findCapableDecoders(MediaFormat format){
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        int profile = getInteger(format, KEY_PROFILE);
+        int level = getInteger(format, KEY_LEVEL);
+        int width = getInteger(format, MediaFormat.KEY_WIDTH);
+        int height = getInteger(format, MediaFormat.KEY_HEIGHT);
+
+        List<String> names = new ArrayList<String>();
+        int count = MediaCodecList.getCodecCount();
+        for(int i = 0; i < count; i++){
+            MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+            if(info.isEncoder() || !supportsType(info, mime)){
+                continue;
+            }
+            try{
+                MediaCodecInfo.CodecCapabilities capabilities = info.getCapabilitiesForType(mime);
+                if(supportsProfileLevel(capabilities, profile, level)
+                        && supportsSize(capabilities, width, height)){
+                    names.add(info.getName());
+                }
+            }catch (Exception ex){
+                Log.w(TAG, "Can't query capabilities of " + info.getName() + ": " + ex);
+            }
+        }
+        Log.d(TAG, "Decoders for " + mime + ": " + names);
+        return names;
+    }
+
+    private static boolean supportsType(MediaCodecInfo info, String mime){
+        for(String type : info.getSupportedTypes()){
+            if(type.equalsIgnoreCase(mime)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean supportsProfileLevel(MediaCodecInfo.CodecCapabilities capabilities, int profile, int level){
+        if(profile < 0 || capabilities.profileLevels == null || capabilities.profileLevels.length == 0){
+            return true; // unknown, let configure tell
+        }
+        for(MediaCodecInfo.CodecProfileLevel profileLevel : capabilities.profileLevels){
+            if(profileLevel.profile == profile && (level < 0 || profileLevel.level >= level)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * CodecCapabilities.getVideoCapabilities() is only available from API 21.
+     */
+    private static boolean supportsSize(MediaCodecInfo.CodecCapabilities capabilities, int width, int height){
+        if(width <= 0 || height <= 0){
+            return true;
+        }
+        try{
+            Method getVideoCapabilities = capabilities.getClass().getMethod("getVideoCapabilities");
+            Object videoCapabilities = getVideoCapabilities.invoke(capabilities);
+            if(videoCapabilities == null){
+                return true;
+            }
+            Method isSizeSupported = videoCapabilities.getClass().getMethod("isSizeSupported", int.class, int.class);
+            return (Boolean)isSizeSupported.invoke(videoCapabilities, width, height);
+        }catch (Exception ex){
+            return true;
+        }
+    }
+
+    /**
+     * @return true if the decoder isn't at fault, e.g. out of instances or the surface was released.
+     */
+    private static boolean isTransient(Exception cause){
+        if(cause == null){
+            return false;
+        }
+        if(cause instanceof IllegalArgumentException && cause.getMessage() != null
+                && cause.getMessage().toLowerCase().contains("surface")){
+            return true;
+        }
+        if(!CODEC_EXCEPTION.equals(cause.getClass().getName())){
+            return false;
+        }
+        try{
+            if((Boolean)cause.getClass().getMethod("isTransient").invoke(cause)
+                    || (Boolean)cause.getClass().getMethod("isRecoverable").invoke(cause)){
+                return true;
+            }
+            int errorCode = (Integer)cause.getClass().getMethod("getErrorCode").invoke(cause);
+            return errorCode == ERROR_INSUFFICIENT_RESOURCE || errorCode == ERROR_RECLAIMED;
+        }catch (Exception ex){
+            return false; // getErrorCode is API 23
+        }
+    }
+
+    private static boolean isHardware(String name){
+        String lowerName = name.toLowerCase();
+        return !(lowerName.startsWith("omx.google.")
+                || lowerName.startsWith("c2.android.")
+                || lowerName.startsWith("omx.ffmpeg.")
+                || lowerName.contains(".sw."));
+    }
+
+    private static String formatKey(MediaFormat format){
+        return format.getString(MediaFormat.KEY_MIME)
+                + "/" + getInteger(format, KEY_PROFILE)
+                + "/" + getInteger(format, KEY_LEVEL)
+                + "/" + getInteger(format, MediaFormat.KEY_WIDTH)
+                + "x" + getInteger(format, MediaFormat.KEY_HEIGHT);
+    }
+
+    private static int getInteger(MediaFormat format, String key){
+        try{
+            return format.containsKey(key) ? format.getInteger(key) : -1;
+        }catch (Exception ex){
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.zepp.frameplayer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The last events of a player, always recorded so a slow path can be diagnosed in a production build, see
+ * {@link FramePlayer#dumpRecentEvents()}. Event types are the ones of {@link CommandTrace}.
+ *
+ * Recording takes no lock and doesn't allocate: a writer claims a slot with one atomic increment, older
+ * events are overwritten. Every slot is stamped with the number of its event, a reader skips the slots that
+ * are being rewritten.
+ */
+public final class EventRing {
+    private static final int SLOT_SIZE = 4; // stamp, time, type, arg
+    private static final int WRITING = 0;
+
+    private final AtomicLong mNext = new AtomicLong();
+    private final AtomicLongArray mSlots;
+    private final int mMask;
+
+    /**
+     * @param capacity rounded up to a power of 2
+     */
+    public EventRing(int capacity){
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        mSlots = new AtomicLongArray(size * SLOT_SIZE);
+        mMask = size - 1;
+    }
+
+    public int capacity(){
+        return mMask + 1;
+    }
+
+    public void record(int type, long arg){
+        long number = mNext.getAndIncrement();
+        int base = (int)(number & mMask) * SLOT_SIZE;
+        mSlots.set(base, WRITING);
+        mSlots.lazySet(base + 1, System.nanoTime());
+        mSlots.lazySet(base + 2, type);
+        mSlots.lazySet(base + 3, arg);
+        mSlots.set(base, number + 1); // published
+    }
+
+    /**
+     * @return one line per event from the oldest one, times are relative to the last event.
+     */
+    public String dump(){
+        long end = mNext.get();
+        long start = Math.max(end - capacity(), 0);
+        int count = (int)(end - start);
+        long[] timesNs = new long[count];
+        int[] types = new int[count];
+        long[] args = new long[count];
+        boolean[] valid = new boolean[count];
+        long lastNs = 0;
+        for(int i = 0; i < count; i++){
+            long number = start + i;
+            int base = (int)(number & mMask) * SLOT_SIZE;
+            if(mSlots.get(base) != number + 1){
+                continue;
+            }
+            timesNs[i] = mSlots.get(base + 1);
+            types[i] = (int)mSlots.get(base + 2);
+            args[i] = mSlots.get(base + 3);
+            // overwritten while read
+            valid[i] = mSlots.get(base) == number + 1;
+            if(valid[i]){
+                lastNs = timesNs[i];
+            }
+        }
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < count; i++){
+            if(valid[i]){
+                builder.append(String.format("%10.3fms %s %d%n", (timesNs[i] - lastNs) / 1e6,
+                        CommandTrace.nameOf(types[i]), args[i]));
+            }
+        }
+        return builder.toString();
+    }
+}
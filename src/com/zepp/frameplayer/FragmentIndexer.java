@@ -0,0 +1,360 @@
+package com.zepp.frameplayer;
+
+import com.coremedia.iso.boxes.TrackBox;
+import com.coremedia.iso.boxes.fragment.MovieExtendsBox;
+import com.coremedia.iso.boxes.fragment.TrackExtendsBox;
+import com.googlecode.mp4parser.MemoryDataSourceImpl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sample index of the video track of a fragmented MP4, the layout written by recorders that keep a clip
+ * playable while it's recorded: a "moov" without samples followed by "moof" + "mdat" pairs.
+ *
+ * The index grows with the file. {@link #update()} maps the part of the file written since the last call
+ * and only parses the fragments in it, a fragment is indexed once all its samples are on disk. The boxes
+ * of a fragment are read straight from the mapping, isoparser would parse the whole file again.
+ * Only accessed by one thread at a time, the media infos handed out are snapshots.
+ */
+final class FragmentIndexer {
+    private static final int BOX_HEADER_SIZE = 8;
+    private static final int LARGE_BOX_HEADER_SIZE = 16;
+
+    private static final int TYPE_MOOV = 0x6d6f6f76; // "moov"
+    private static final int TYPE_MVEX = 0x6d766578; // "mvex"
+    private static final int TYPE_MOOF = 0x6d6f6f66; // "moof"
+    private static final int TYPE_MFRA = 0x6d667261; // "mfra"
+    private static final int TYPE_TRAF = 0x74726166; // "traf"
+    private static final int TYPE_TFHD = 0x74666864; // "tfhd"
+    private static final int TYPE_TFDT = 0x74666474; // "tfdt"
+    private static final int TYPE_TRUN = 0x7472756e; // "trun"
+
+    private static final int TFHD_BASE_DATA_OFFSET = 0x1;
+    private static final int TFHD_SAMPLE_DESCRIPTION_INDEX = 0x2;
+    private static final int TFHD_DEFAULT_DURATION = 0x8;
+    private static final int TFHD_DEFAULT_SIZE = 0x10;
+    private static final int TFHD_DEFAULT_FLAGS = 0x20;
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x20000;
+
+    private static final int TRUN_DATA_OFFSET = 0x1;
+    private static final int TRUN_FIRST_SAMPLE_FLAGS = 0x4;
+    private static final int TRUN_DURATION = 0x100;
+    private static final int TRUN_SIZE = 0x200;
+    private static final int TRUN_FLAGS = 0x400;
+    private static final int TRUN_COMPOSITION_OFFSET = 0x800;
+
+    private static final int SAMPLE_IS_NON_SYNC = 0x10000;
+
+    private final MappedDataSource mSource;
+    private final MediaInfoExtractor.MediaInfo mHeader;
+    private final long mTrackId;
+    private final long mTimeScale;
+    // defaults of the track from "trex", a fragment may override them in "tfhd".
+    private final long mDefaultDuration;
+    private final long mDefaultSize;
+    private final int mDefaultFlags;
+    // default sample sizes of the other tracks, their data has to be skipped to find the data of the next "traf".
+    private final Map<Long, Long> mOtherDefaultSizes = new HashMap<Long, Long>();
+    private final SampleTable.Builder mSamples;
+    private long mScanOffset;       // position of the first top level box not indexed yet
+    private long mDecodeTime;       // decoding time at the end of the indexed samples, in units of the time scale
+    private boolean mIsComplete;    // "mfra" is written last, the file doesn't grow any more
+    private MediaInfoExtractor.MediaInfo mMediaInfo;
+
+    private FragmentIndexer(MappedDataSource source, TrackBox trackBox, List<TrackExtendsBox> trexes, long scanOffset){
+        mSource = source;
+        mHeader = MediaInfoExtractor.readTrackHeader(trackBox);
+        mTrackId = trackBox.getTrackHeaderBox().getTrackId();
+        TrackExtendsBox trex = null;
+        for(TrackExtendsBox box : trexes){
+            if(box.getTrackId() == mTrackId){
+                trex = box;
+            }else{
+                mOtherDefaultSizes.put(box.getTrackId(), box.getDefaultSampleSize());
+            }
+        }
+        mTimeScale = trackBox.getMediaBox().getMediaHeaderBox().getTimescale();
+        mDefaultDuration = trex != null ? trex.getDefaultSampleDuration() : 0;
+        mDefaultSize = trex != null ? trex.getDefaultSampleSize() : 0;
+        mDefaultFlags = trex != null && trex.getDefaultSampleFlags().isSampleIsDifferenceSample() ? SAMPLE_IS_NON_SYNC : 0;
+        // a fragmented file may still carry its first samples in "moov", most writers leave the boxes empty.
+        SampleTable samples = null;
+        try{
+            samples = SampleTable.build(trackBox.getSampleTableBox(), mTimeScale);
+        }catch (IllegalArgumentException ex){} // safe ignore, no sample in "moov"
+        if(samples != null){
+            mSamples = new SampleTable.Builder(samples);
+            mDecodeTime = samples.getDurationUs() * mTimeScale / (1000 * 1000);
+        }else{
+            mSamples = new SampleTable.Builder();
+            mSamples.setNalLengthSize(SampleTable.readNalLengthSize(trackBox.getSampleTableBox()));
+        }
+        mScanOffset = scanOffset;
+    }
+
+    /**
+     * Parse the "moov" of a source and index the fragments on disk.
+     *
+     * @return null if the source is not a fragmented file
+     * @throws IllegalArgumentException if no fragment of the video track is on disk yet
+     */
+    static FragmentIndexer open(MappedDataSource source) throws IOException, IllegalArgumentException {
+        long position = 0;
+        long length = source.getLength();
+        while(true){
+            long size = readBoxSize(source, position, length);
+            if(size < 0){
+                return null; // no complete "moov" on disk
+            }
+            if(source.slice(position, BOX_HEADER_SIZE).getInt(4) == TYPE_MOOV){
+                if(size > Integer.MAX_VALUE){
+                    throw new IllegalArgumentException("Movie box is too large.");
+                }
+                ByteBuffer moov = source.slice(position, (int)size);
+                if(!hasChild(moov, TYPE_MVEX)){
+                    return null; // not fragmented, leave the parsing to MediaInfoExtractor
+                }
+                FragmentIndexer indexer;
+                synchronized (MediaInfoExtractor.EXTRACT_LOCKER){
+                    TrackBox trackBox = MediaInfoExtractor.findVideoTrack(
+                            new MemoryDataSourceImpl(moov));
+                    List<MovieExtendsBox> movieExtends = trackBox.getParent().getBoxes(MovieExtendsBox.class);
+                    if(movieExtends.isEmpty()){
+                        return null;
+                    }
+                    indexer = new FragmentIndexer(source, trackBox,
+                            movieExtends.get(0).getBoxes(TrackExtendsBox.class), position + size);
+                }
+                indexer.update();
+                return indexer;
+            }
+            position += size;
+        }
+    }
+
+    /**
+     * Index the fragments written since the last update.
+     *
+     * @return true if samples were added, {@link #getMediaInfo()} returns a new snapshot then.
+     */
+    boolean update() throws IOException {
+        if(mIsComplete){
+            return false;
+        }
+        mSource.remap();
+        long length = mSource.getLength();
+        int sampleCount = mSamples.getSampleCount();
+        while(true){
+            long size = readBoxSize(mSource, mScanOffset, length);
+            if(size < 0){
+                break; // not written completely yet
+            }
+            int type = mSource.slice(mScanOffset, BOX_HEADER_SIZE).getInt(4);
+            if(type == TYPE_MOOF){
+                if(size > Integer.MAX_VALUE){
+                    throw new IOException("Fragment is too large.");
+                }
+                ByteBuffer moof = mSource.slice(mScanOffset, (int)size);
+                if(readFragment(moof, mScanOffset, false) > length){
+                    break; // the samples are not on disk yet
+                }
+                readFragment(moof, mScanOffset, true);
+            }else if(type == TYPE_MFRA){
+                mIsComplete = true;
+            }
+            mScanOffset += size;
+        }
+        if(mSamples.getSampleCount() == sampleCount && mMediaInfo != null){
+            return false;
+        }
+        mSamples.setDurationUs(SampleTable.toMicroseconds(mDecodeTime, mTimeScale));
+        SampleTable sampleTable = mSamples.build();
+        MediaInfoExtractor.MediaInfo mediaInfo = new MediaInfoExtractor.MediaInfo();
+        mediaInfo.width = mHeader.width;
+        mediaInfo.height = mHeader.height;
+        mediaInfo.rotation = mHeader.rotation;
+        MediaInfoExtractor.setSampleIndex(mediaInfo, sampleTable,
+                sampleTable.extendPtsTable(mMediaInfo != null ? mMediaInfo.ptsTable : null));
+        mMediaInfo = mediaInfo;
+        return true;
+    }
+
+    /**
+     * @return media info of the indexed samples, it's replaced by the updates that add samples.
+     */
+    MediaInfoExtractor.MediaInfo getMediaInfo(){
+        return mMediaInfo;
+    }
+
+    /**
+     * @return true if the file is finished, there is nothing more to index.
+     */
+    boolean isComplete(){
+        return mIsComplete;
+    }
+
+    /**
+     * @return size of the box at the position, or -1 if it's not completely within the length.
+     */
+    private static long readBoxSize(MappedDataSource source, long position, long length){
+        long available = length - position;
+        if(available < BOX_HEADER_SIZE){
+            return -1;
+        }
+        ByteBuffer header = source.slice(position, (int)Math.min(available, LARGE_BOX_HEADER_SIZE));
+        long size = header.getInt(0) & 0xffffffffL;
+        if(size == 1){
+            if(available < LARGE_BOX_HEADER_SIZE){
+                return -1;
+            }
+            size = header.getLong(BOX_HEADER_SIZE);
+        }
+        // 0 means up to the end of file, the size is unknown until the file is closed.
+        if(size < BOX_HEADER_SIZE || size > available){
+            return -1;
+        }
+        return size;
+    }
+
+    private static boolean hasChild(ByteBuffer box, int type){
+        int start = box.getInt(0) == 1 ? LARGE_BOX_HEADER_SIZE : BOX_HEADER_SIZE;
+        for(int child = start; child + BOX_HEADER_SIZE <= box.limit(); child += box.getInt(child)){
+            if(box.getInt(child) < BOX_HEADER_SIZE){
+                return false; // broken box
+            }
+            if(box.getInt(child + 4) == type){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Walk the runs of the video track in a "moof".
+     *
+     * @param add true to add the samples to the index
+     * @return end of the sample data of the fragment, relative to the start of the source
+     */
+    private long readFragment(ByteBuffer moof, long moofOffset, boolean add){
+        long dataEnd = 0;
+        // the data of a "traf" without an explicit base follows the data of the previous one, see ISO/IEC 14496-12.
+        long previousEnd = moofOffset;
+        int start = moof.getInt(0) == 1 ? LARGE_BOX_HEADER_SIZE : BOX_HEADER_SIZE;
+        for(int traf = start; traf + BOX_HEADER_SIZE <= moof.limit(); traf += moof.getInt(traf)){
+            if(moof.getInt(traf) < BOX_HEADER_SIZE){
+                break; // broken box
+            }
+            if(moof.getInt(traf + 4) == TYPE_TRAF){
+                previousEnd = readTrackFragment(moof, traf, moofOffset, previousEnd, add);
+                dataEnd = Math.max(dataEnd, previousEnd);
+            }
+        }
+        return dataEnd;
+    }
+
+    /**
+     * Walk the runs of a track fragment of any track, only the samples of the video track are indexed.
+     *
+     * @param previousEnd end of the sample data of the previous track fragment, the start of the moof for the first
+     * @return end of the sample data of the track fragment
+     */
+    private long readTrackFragment(ByteBuffer moof, int traf, long moofOffset, long previousEnd, boolean add){
+        int trafEnd = Math.min(traf + moof.getInt(traf), moof.limit());
+        boolean isVideoTrack = false;
+        long baseOffset = previousEnd;
+        long dataOffset = previousEnd;
+        long defaultDuration = mDefaultDuration;
+        long defaultSize = mDefaultSize;
+        int defaultFlags = mDefaultFlags;
+        long decodeTime = mDecodeTime;
+        for(int box = traf + BOX_HEADER_SIZE; box + BOX_HEADER_SIZE <= trafEnd; box += moof.getInt(box)){
+            if(moof.getInt(box) < BOX_HEADER_SIZE){
+                break; // broken box
+            }
+            int type = moof.getInt(box + 4);
+            int version = moof.get(box + 8) & 0xff;
+            int flags = moof.getInt(box + 8) & 0xffffff;
+            int p = box + 12;
+            if(type == TYPE_TFHD){
+                long trackId = moof.getInt(p) & 0xffffffffL;
+                isVideoTrack = trackId == mTrackId;
+                if(!isVideoTrack){
+                    Long otherDefaultSize = mOtherDefaultSizes.get(trackId);
+                    defaultSize = otherDefaultSize != null ? otherDefaultSize : 0;
+                }
+                p += 4;
+                if((flags & TFHD_BASE_DATA_OFFSET) != 0){
+                    baseOffset = moof.getLong(p);
+                    p += 8;
+                }else if((flags & TFHD_DEFAULT_BASE_IS_MOOF) != 0){
+                    baseOffset = moofOffset;
+                }
+                if((flags & TFHD_SAMPLE_DESCRIPTION_INDEX) != 0){
+                    p += 4;
+                }
+                if((flags & TFHD_DEFAULT_DURATION) != 0){
+                    defaultDuration = moof.getInt(p) & 0xffffffffL;
+                    p += 4;
+                }
+                if((flags & TFHD_DEFAULT_SIZE) != 0){
+                    defaultSize = moof.getInt(p) & 0xffffffffL;
+                    p += 4;
+                }
+                if((flags & TFHD_DEFAULT_FLAGS) != 0){
+                    defaultFlags = moof.getInt(p);
+                }
+                dataOffset = baseOffset;
+            }else if(type == TYPE_TFDT && isVideoTrack){
+                decodeTime = version == 1 ? moof.getLong(p) : moof.getInt(p) & 0xffffffffL;
+            }else if(type == TYPE_TRUN){
+                int sampleCount = moof.getInt(p);
+                p += 4;
+                if((flags & TRUN_DATA_OFFSET) != 0){
+                    dataOffset = baseOffset + moof.getInt(p);
+                    p += 4;
+                }
+                int firstSampleFlags = defaultFlags;
+                if((flags & TRUN_FIRST_SAMPLE_FLAGS) != 0){
+                    firstSampleFlags = moof.getInt(p);
+                    p += 4;
+                }
+                for(int i = 0; i < sampleCount; i++){
+                    long duration = defaultDuration;
+                    long size = defaultSize;
+                    int sampleFlags = i == 0 ? firstSampleFlags : defaultFlags;
+                    long compositionOffset = 0;
+                    if((flags & TRUN_DURATION) != 0){
+                        duration = moof.getInt(p) & 0xffffffffL;
+                        p += 4;
+                    }
+                    if((flags & TRUN_SIZE) != 0){
+                        size = moof.getInt(p) & 0xffffffffL;
+                        p += 4;
+                    }
+                    if((flags & TRUN_FLAGS) != 0){
+                        sampleFlags = moof.getInt(p);
+                        p += 4;
+                    }
+                    if((flags & TRUN_COMPOSITION_OFFSET) != 0){
+                        compositionOffset = moof.getInt(p); // unsigned in version 0, but writers put negative ones too
+                        p += 4;
+                    }
+                    if(add && isVideoTrack){
+                        mSamples.add(dataOffset, (int)size, SampleTable.toMicroseconds(decodeTime + compositionOffset, mTimeScale),
+                                (sampleFlags & SAMPLE_IS_NON_SYNC) == 0);
+                    }
+                    dataOffset += size;
+                    decodeTime += duration;
+                }
+            }
+        }
+        if(add && isVideoTrack){
+            mDecodeTime = decodeTime;
+        }
+        return dataOffset;
+    }
+}
@@ -1,19 +1,27 @@
 package com.zepp.frameplayer;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.LinkedList;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.media.MediaCodec.BufferInfo;
+import android.graphics.SurfaceTexture;
 import android.util.Log;
 import android.view.Surface;
 
-import static java.lang.Thread.sleep;
-
 public class FramePlayer {
 
     public interface OnPreparedListener
@@ -41,6 +49,24 @@ public class FramePlayer {
     {
         void onPositionUpdate(FramePlayer fp, int currentPosition);
     }
+    /**
+     * Receives the frames of {@link #seekSequence(long[], FrameCallback)}, called on a decode thread of the player.
+     */
+    public interface FrameCallback
+    {
+        /**
+         * The frame on screen at requestedTimeUs is decoded and rendered.
+         *
+         * @param presentationTimeUs presentation time of the frame, several requests may get the same frame
+         * @param frameIndex index of the frame in presentation order
+         */
+        void onFrame(FramePlayer fp, long requestedTimeUs, long presentationTimeUs, int frameIndex);
+
+        /**
+         * @param completed false if the player stopped before all frames were delivered
+         */
+        void onSequenceComplete(FramePlayer fp, boolean completed);
+    }
 
     /**
      * Create FramePlayer
@@ -60,37 +86,120 @@ public class FramePlayer {
         }
     }
 
+    /**
+     * Result of {@link #seekToAsync(long)}.
+     */
+    public static final class SeekResult {
+        private static final SeekResult SUPERSEDED = new SeekResult(-1, -1, true);
+
+        /** presentation time of the frame shown, in microseconds, -1 if superseded. */
+        public final long presentationTimeUs;
+        /** index of the frame shown in presentation order, -1 if superseded. */
+        public final int frameIndex;
+        /** true if the seek was dropped because of a later seek or a teardown, no frame was shown for it. */
+        public final boolean superseded;
+
+        private SeekResult(long presentationTimeUs, int frameIndex, boolean superseded){
+            this.presentationTimeUs = presentationTimeUs;
+            this.frameIndex = frameIndex;
+            this.superseded = superseded;
+        }
+    }
+
     public static final int FRAMEPLAYER_ERROR_UNKNOWN = 1;
     public static final int FRAMEPLAYER_ERROR_SERVER_DIED = 100;
     public static final int FRAMEPLAYER_ERROR_IO = -1004;
     public static final int FRAMEPLAYER_ERROR_UNSUPPORTED = -1010;
     public static final int FRAMEPLAYER_ERROR_TIMED_OUT = -110;
 
-    private enum PlayerState{
-        Idle,
-        Initialized,
-        Preparing,
-        Prepared,
-        Started,
-        Paused,
-        Stopped,
-        PlaybackCompleted,
-        End,
-        Error,
-
-    }
     private enum MessageType {
-        Play, Pause, Seek, Stop, Reset, Release
+        Play, Pause, Seek, SeekSequence, Scrub, Stop, Reset, Release, Suspend, Resume
+    }
+    private static class SeekSequenceRequest {
+        long[] timesUs; // ascending
+        FrameCallback callback;
     }
 
     private class PlayerMessage {
         public MessageType messageType;
         public long content;
+        public Object payload;
+        public PlayerFuture<Void> processed; // for callers that wait until the message is handled.
+        public PlayerFuture<Void> after; // the worker parks at the message until it completes
+        public volatile boolean handled;
+        public long sequence = UNSEQUENCED; // order in which the command was accepted
+        public int traceId = -1; // index of the command in mTrace
     }
 
+    // teardown messages are not sequenced, they are always the last ones.
+    private static final long UNSEQUENCED = Long.MAX_VALUE;
+    private static final Comparator<PlayerMessage> sMessageOrder = new Comparator<PlayerMessage>() {
+        @Override
+        public int compare(PlayerMessage lhs, PlayerMessage rhs) {
+            return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+        }
+    };
+
+    private static final EnumSet<PlayerState> START_STATES =
+            EnumSet.of(PlayerState.Prepared, PlayerState.Paused, PlayerState.PlaybackCompleted);
+    private static final EnumSet<PlayerState> PAUSE_STATES =
+            EnumSet.of(PlayerState.Started, PlayerState.PlaybackCompleted);
+    private static final EnumSet<PlayerState> SEEK_STATES = EnumSet.of(PlayerState.Prepared, PlayerState.Started,
+            PlayerState.Paused, PlayerState.PlaybackCompleted, PlayerState.Suspended);
+    private static final EnumSet<PlayerState> SEEK_SEQUENCE_STATES = EnumSet.of(PlayerState.Prepared,
+            PlayerState.Started, PlayerState.Paused, PlayerState.PlaybackCompleted);
+    private static final EnumSet<PlayerState> SUSPEND_STATES = EnumSet.of(PlayerState.Prepared, PlayerState.Started,
+            PlayerState.Paused, PlayerState.PlaybackCompleted);
+    private static final EnumSet<PlayerState> STOP_STATES = EnumSet.of(PlayerState.Prepared, PlayerState.Started,
+            PlayerState.Paused, PlayerState.PlaybackCompleted, PlayerState.Suspended);
+    private static final EnumSet<PlayerState> PREPARE_STATES = EnumSet.of(PlayerState.Initialized, PlayerState.Stopped);
+
     private static final int TIMEOUT_USEC = 20000;
+    private static final long GAP_WAIT_NS = 100 * 1000;
+    private static final int EVENT_RING_SIZE = 256;
+    // systrace sections, an async one per seek spans from the request to the frame shown. Its name holds the
+    // id of the player, the seek sequences of the players would collide as cookies.
+    private static final String SEEK_SECTION = "FramePlayer.seek#";
+    private static final AtomicInteger sPlayerIds = new AtomicInteger();
+    private static final String[] sCommandSections = new String[MessageType.values().length];
+    static {
+        for(MessageType type : MessageType.values()){
+            sCommandSections[type.ordinal()] = "FramePlayer." + type.name();
+        }
+    }
+    // a clip being recorded is checked for new fragments at this interval. Once it stopped growing for a while
+    // it's checked at the idle interval, until a fragment arrives again or the file is finished.
+    private static final long LIVE_INDEX_INTERVAL_NS = 200L * 1000 * 1000;
+    private static final long LIVE_IDLE_INDEX_INTERVAL_NS = 2L * 1000 * 1000 * 1000;
+    private static final long LIVE_GROWTH_TIMEOUT_NS = 10L * 1000 * 1000 * 1000;
+    private static final long FRAME_DROPPED = -1;
+    private static final long SEEK_ABORTED = Long.MIN_VALUE;
+    // the seek goes on in the next worker steps, one frame a step.
+    private static final long SEEK_PENDING = Long.MIN_VALUE + 1;
+    private static final int JOB_NONE = 0;
+    private static final int JOB_SEEK = 1;
+    private static final int JOB_SEQUENCE = 2;
+    private static final int PREFETCH_TIMEOUT_USEC = 5000;
+    private static final int MAX_PREFETCHED_FRAMES = 4;
+    private static final int MAX_PREFETCH_MISSES = 20;
+    // a decoder is considered wedged if no output arrives in the base time plus the time of decoding a
+    // group of pictures.
+    private static final long STALL_BASE_NS = 500L * 1000 * 1000;
+    private static final long STALL_PER_FRAME_NS = 30L * 1000 * 1000;
+    private static final int MAX_RECOVERY_ATTEMPTS = 2;
+    // frames later than this are dropped, behind by more than this the decoder skips to the next key frame.
+    private static final long LATE_FRAME_THRESHOLD_NS = 40L * 1000 * 1000;
+    private static final long SKIP_TO_SYNC_THRESHOLD_NS = 500L * 1000 * 1000;
+    private static final int MAX_CONSECUTIVE_DROPS = 5;
+    // clips above this rate get decoder hints, keys are from API 23/30.
+    private static final int HFR_THRESHOLD_FPS = 60;
+    private static final String KEY_OPERATING_RATE = "operating-rate";
+    private static final String KEY_PRIORITY = "priority";
+    private static final String KEY_LOW_LATENCY = "low-latency";
     private static final String TAG = "FramePlayer";
     private static final String VIDEO_PREFIX_IN_MIME = "video/";
+    // MediaCodec.setOutputSurface is only available from API 23.
+    private static final Method sSetOutputSurfaceMethod = findSetOutputSurfaceMethod();
 
     //region Private members
     private BufferInfo mCurFrameInfo = new BufferInfo(); // save information of current frame
@@ -98,23 +207,85 @@ public class FramePlayer {
     private volatile long mCurPresentationTimeUs;
     private volatile long mSeekTargetTimeUs;
     private Object mObjForSeekSync = new Object();
-    private long mEstimatedKeyframeInterval;
-    private long mIdenticalFrameInterval;
-    private long mLastRenderingTimeUs;
+    // playback clock, the frame at mClockAnchorUs is due at mClockAnchorNs. 0 to anchor at the next frame.
+    private long mClockAnchorNs;
+    private long mClockAnchorUs;
+    // decoded frame held until it's due, -1 if none.
+    private int mPendingFrameIndex = -1;
+    private long mPendingFrameDueNs;
 
     private BlockingQueue<PlayerMessage> mCtrlMsgQueue;
-    private MediaExtractor mExtractor;
+    private SampleTableDemuxer mDemuxer;
     private MediaCodec mDecoder;
+    private String mDecoderName; // null if created by type
+    private Exception mDecoderFailure; // why the last decoder failed to start
     private Surface mSurface;
-    private Thread mWorkerThread;
-    private Thread mPrepareThread;
+    private Surface mPlaceholderSurface; // holds the decoder output while suspended
+    private SurfaceTexture mPlaceholderTexture;
+    private boolean mIsSurfaceDetached; // only accessed by worker thread
+
+    // decoded frames held in the decoder ahead of the frame on screen, only accessed by worker thread.
+    private static class PrefetchedFrame {
+        int bufferIndex;
+        BufferInfo info;
+    }
+    private final LinkedList<PrefetchedFrame> mPrefetchedFrames = new LinkedList<PrefetchedFrame>();
+    private final SeekPredictor mSeekPredictor = new SeekPredictor();
+    private int mWarmedSyncSample;
+    private int mPrefetchMisses;
+
+    // decoder watchdog, only accessed by worker thread except the counters.
+    private long mLastOutputNs;
+    private long mRecoveryStartNs;
+    private int mRecoveryAttempts;
+    private volatile int mRecoveryCount;
+    private volatile long mLastRecoveryTimeNs;
+    private volatile long mTotalRecoveryTimeNs;
+    private int mConsecutiveDrops;
+    private volatile int mDroppedFrameCount;
+    private volatile int mSkippedToSyncCount;
+
+    // teardown and the operations requested after it run in order on a background thread.
+    private final LinkedList<Runnable> mLifecycleTasks = new LinkedList<Runnable>();
+    private boolean mIsLifecycleThreadRunning;
+    private volatile PlayerScheduler.Worker mWorker;
+    private volatile Future<?> mPrepareTask;
 
     private String mSource;
-    private volatile PlayerState mState;
+    private FileDescriptor mSourceFd;
+    private long mSourceOffset;
+    private long mSourceLength;
+    private MappedDataSource mDataSource;
+    private final PlayerStateWord mState = new PlayerStateWord(PlayerState.Idle);
     private volatile boolean mIsStopPlayback;
-    private MediaInfoExtractor.MediaInfo mMediaInfo;
+    // replaced as fragments of a clip being recorded are indexed.
+    private volatile MediaInfoExtractor.MediaInfo mMediaInfo;
+    // non null while the fragmented clip may still grow, only accessed by worker thread once prepared.
+    private FragmentIndexer mFragmentIndexer;
+    private long mNextIndexUpdateNs;
+    private long mLastGrowthNs;
     private String mMime;
     private MediaFormat mFormat;
+    private MediaFormat mHintedFormat; // mFormat with high frame rate hints, null for normal clips
+    private ProxyScrubber mScrubber; // non null while scrubbing on the proxy, only accessed by worker thread
+    private volatile float mMaxRenderFrameRate;
+    private volatile int mRenderInterval = 1; // render every Nth frame in playback
+    private int mFramesSinceRender; // only accessed by worker thread
+    // a seek or seek sequence decoding over many worker steps, only accessed by worker thread.
+    private int mDecodeJob = JOB_NONE;
+    private PlayerMessage mJobMessage; // completed with the job, null if the worker started it itself
+    private long mJobTargetUs;
+    private boolean mJobNotify;
+    private boolean mJobSuperseded; // stopped at the target of a later seek, the frame is not the one asked for
+    private int mJobPrevBufferIndex;
+    private long mJobPrevTimeUs;
+    private int mJobDecodedFrames;
+    private long mJobStartNs;
+    private long mJobStallBudgetNs;
+    private SeekSequenceRequest mSequenceRequest;
+    private long[] mSequenceTargetsUs;
+    private int mSequenceNext;
+    private boolean mSequenceNeedPosition;
 
     private OnPositionUpdateListener mOnPositionUpdateListener;
     private OnCompletionListener mOnCompletionListener;
@@ -122,12 +293,21 @@ public class FramePlayer {
     private OnSeekCompleteListener mOnSeekCompleteListener;
     private OnVideoSizeChangedListener mOnVideoSizeChangedListener;
     private OnPreparedListener mOnPreparedListener;
+    private volatile OverlayStore mOverlayStore;
+    private volatile OverlayStore.OnOverlayFrameListener mOnOverlayFrameListener;
+    private volatile CommandTrace mTrace;
+    private final EventRing mEventRing = new EventRing(EVENT_RING_SIZE);
+    private final String mSeekSection = SEEK_SECTION + sPlayerIds.incrementAndGet();
+    // dequeue timeouts in a row, traced as one event when the run ends, only accessed by worker thread.
+    private int mInputTimeouts;
+    private int mOutputTimeouts;
+    private final CallbackDispatcher mCallbackDispatcher =
+            new CallbackDispatcher(PlayerScheduler.getInstance().getCallbackExecutor());
     //endregion
 
     //region Constructor
     public FramePlayer() {
-        mCtrlMsgQueue = new LinkedBlockingDeque<PlayerMessage>();
-        changeStateTo(PlayerState.Idle);
+        mCtrlMsgQueue = new PriorityBlockingQueue<PlayerMessage>(11, sMessageOrder);
     }
     //endregion
     //region Callback
@@ -152,6 +332,27 @@ public class FramePlayer {
     {
         mOnPreparedListener = listener;
     }
+    /**
+     * Deliver the overlay slice of every frame presented, in playback, seeking, scrubbing and seekSequence,
+     * with the exact presentation time of the frame. Slices are coalesced like position updates.
+     *
+     * @param store null to stop
+     */
+    public void setOverlayStore(OverlayStore store, OverlayStore.OnOverlayFrameListener listener){
+        mOverlayStore = store;
+        mOnOverlayFrameListener = store != null ? listener : null;
+    }
+
+    /**
+     * Set the executor the listeners are called on, except {@link OnErrorListener} which decides the state
+     * of the player and is called where the error happens. Callbacks of a player are never called
+     * concurrently and keep their order, position updates are coalesced to the latest one.
+     *
+     * @param executor null to use the thread shared by all players
+     */
+    public void setCallbackExecutor(Executor executor){
+        mCallbackDispatcher.setExecutor(executor != null ? executor : PlayerScheduler.getInstance().getCallbackExecutor());
+    }
     //endregion
 
     //region Public interface
@@ -162,29 +363,93 @@ public class FramePlayer {
         mSurface = surface;
     }
 
-    public void setDataSource(String source) throws IOException, NullPointerException, IllegalArgumentException{
+    public void setDataSource(final String source) throws IOException, NullPointerException, IllegalArgumentException{
         if(source == null)
             throw new NullPointerException("The source is null.");
         if(source.isEmpty())
             throw new IllegalArgumentException("Source cannot be empty.");
-        if(mState != PlayerState.Idle)
+        if(transitTarget(EnumSet.of(PlayerState.Idle), PlayerState.Initialized, false) == PlayerStateWord.REJECTED)
+            throw new IllegalStateException("Cannot set source in current state");
+
+        runAfterTeardown(new Runnable() {
+            @Override
+            public void run() {
+                mSource = source;
+                mSourceFd = null;
+                changeStateTo(PlayerState.Initialized);
+            }
+        });
+    }
+
+    /**
+     * Set a region of an opened file as data source, e.g. a clip stored inside a larger container file.
+     * The file descriptor is not closed by the player.
+     *
+     * @param fd the file descriptor of the file
+     * @param offset the offset into the file where the clip starts, in bytes
+     * @param length the length of the clip in bytes
+     */
+    public void setDataSource(final FileDescriptor fd, final long offset, final long length) throws IOException, NullPointerException, IllegalArgumentException{
+        if(fd == null)
+            throw new NullPointerException("The file descriptor is null.");
+        if(!fd.valid())
+            throw new IllegalArgumentException("The file descriptor is invalid.");
+        if(offset < 0 || length <= 0)
+            throw new IllegalArgumentException("Invalid offset or length.");
+        if(transitTarget(EnumSet.of(PlayerState.Idle), PlayerState.Initialized, false) == PlayerStateWord.REJECTED)
             throw new IllegalStateException("Cannot set source in current state");
 
-        mSource = source;
-        changeStateTo(PlayerState.Initialized);
+        runAfterTeardown(new Runnable() {
+            @Override
+            public void run() {
+                mSourceFd = fd;
+                mSourceOffset = offset;
+                mSourceLength = length;
+                changeStateTo(PlayerState.Initialized);
+            }
+        });
     }
 
     public void prepareAsync() throws IllegalStateException{
+        prepareAsync(null);
+    }
+    /**
+     * Same as {@link #prepareAsync()}, the decoder is configured after the given operation completed. A surface
+     * takes one decoder at a time, pass the teardown of the previous player of the surface.
+     *
+     * @param after null to prepare at once
+     */
+    public void prepareAsync(PlayerFuture<Void> after) throws IllegalStateException{
         if(mSurface == null){
             throw new IllegalStateException("Surface is null, call setSurface first.");
         }
-        if(mState != PlayerState.Initialized
-                && mState != PlayerState.Stopped){
+        if(transitTarget(PREPARE_STATES, PlayerState.Preparing, false) == PlayerStateWord.REJECTED){
             throw new IllegalStateException("Prepare operation is invalid in current state.");
         }
-        mPrepareThread = new Thread("PrepareAsnycWorker"){
+        final Runnable prepare = new Runnable() {
+            @Override
+            public void run() {
+                // torn down while waiting, the teardown has run already.
+                if(PlayerStateWord.targetOf(mState.get()) == PlayerState.Preparing){
+                    startPrepareTask();
+                }
+            }
+        };
+        if(after == null){
+            runAfterTeardown(prepare);
+            return;
+        }
+        after.addListener(new PlayerFuture.OnCompleteListener<Void>() {
+            @Override
+            public void onComplete(PlayerFuture<Void> future) {
+                runAfterTeardown(prepare);
+            }
+        });
+    }
+    private void startPrepareTask(){
+        mPrepareTask = PlayerScheduler.getInstance().prepare(new Runnable() {
             @Override
-            public void run(){
+            public void run() {
                 try {
                     changeStateTo(PlayerState.Preparing);
                     prepareInternal();
@@ -195,129 +460,259 @@ public class FramePlayer {
                     e.printStackTrace();
                     onError(FRAMEPLAYER_ERROR_SERVER_DIED, FRAMEPLAYER_ERROR_UNSUPPORTED);
                 }
-                Log.d(TAG, "[FramePlayer]: prepare thread exited.");
+                Log.d(TAG, "[FramePlayer]: prepare task done.");
             }
-        };
-        mPrepareThread.start();
+        });
     }
 
     public void prepare() throws IllegalStateException, IOException{
         if(mSurface == null){
             throw new IllegalStateException("Surface is null, call setSurface first.");
         }
-        if(mState != PlayerState.Initialized
-                && mState != PlayerState.Stopped){
+        if(transitTarget(PREPARE_STATES, PlayerState.Preparing, false) == PlayerStateWord.REJECTED){
             throw new IllegalStateException("Prepare operation is invalid in current state.");
         }
 
+        waitLifecycleTasksDone();
+        changeStateTo(PlayerState.Preparing);
         prepareInternal();
     }
     public void start() throws IllegalStateException{
-        if(mState == PlayerState.Started){
-            return;
-        }
-
-        if(mState == PlayerState.Prepared
-                || mState == PlayerState.Paused
-                || mState == PlayerState.PlaybackCompleted){
-            PlayerMessage message = new PlayerMessage();
-            message.messageType = MessageType.Play;
-            pushMessage(message);
-        }else{
+        long word = transitTarget(START_STATES, PlayerState.Started, true);
+        if(word == PlayerStateWord.REJECTED){
+            if(getExpectedState() == PlayerState.Started){
+                return;
+            }
             throw new IllegalStateException();
         }
+        PlayerMessage message = new PlayerMessage();
+        message.messageType = MessageType.Play;
+        message.sequence = PlayerStateWord.sequenceOf(word);
+        pushMessage(message);
     }
     public void stop() throws IllegalStateException {
-        if(mState == PlayerState.Stopped){
-            return;
-        }
+        stopAsync().await();
+    }
 
-        if (mState == PlayerState.Prepared
-                || mState == PlayerState.Started
-                || mState == PlayerState.Paused
-                || mState == PlayerState.PlaybackCompleted){
-            PlayerMessage message = new PlayerMessage();
-            message.messageType = MessageType.Stop;
-            pushMessage(message);
-            waitAllBGThreadsExit();
-        }else{
-            throw new IllegalStateException("Cannot change to stopped state.");
+    /**
+     * Stop without blocking, the decoder and threads are released in background.
+     * Operations requested before the returned future completes, e.g. {@link #prepareAsync()},
+     * are executed after the teardown.
+     */
+    public PlayerFuture<Void> stopAsync() throws IllegalStateException {
+        if(transitTarget(STOP_STATES, PlayerState.Stopped, false) != PlayerStateWord.REJECTED){
+            return teardownAsync(MessageType.Stop);
         }
-
+        if(getExpectedState() == PlayerState.Stopped){
+            return teardownAsync(null);
+        }
+        throw new IllegalStateException("Cannot change to stopped state.");
     }
     public void pause() throws IllegalStateException{
-        if(mState == PlayerState.Paused){
-            return;
-        }
-
-        if(mState == PlayerState.Started
-                || mState == PlayerState.PlaybackCompleted){
-            PlayerMessage message = new PlayerMessage();
-            message.messageType = MessageType.Pause;
-            pushMessage(message);
-        }else{
+        long word = transitTarget(PAUSE_STATES, PlayerState.Paused, true);
+        if(word == PlayerStateWord.REJECTED){
+            if(getExpectedState() == PlayerState.Paused){
+                return;
+            }
             throw new IllegalStateException();
         }
+        PlayerMessage message = new PlayerMessage();
+        message.messageType = MessageType.Pause;
+        message.sequence = PlayerStateWord.sequenceOf(word);
+        pushMessage(message);
     }
 
     public void seekTo(long msec){
-        if( !canSeeking() ){
-            throw new IllegalStateException("Cannot handle seeking request in current state.");
-        }
-
-        long usec = msec * 1000; // to microsecond
-        if(usec < 0){
-            usec = 0;
-        }
-        else if(usec > mMediaInfo.durationUs){
-            usec = mMediaInfo.durationUs;
-        }
+        long usec = pushSeekMessage(msec * 1000, null);
         onPositionUpdate(usec);
-        synchronized (mObjForSeekSync){
-            mSeekTargetTimeUs = usec;
-            PlayerMessage message = new PlayerMessage();
-            message.messageType = MessageType.Seek;
-            message.content = usec;
-            pushMessage(message);
-        }
     }
     public void seekToWithoutCallback(long msec){
-        if( !canSeeking() ){
+        pushSeekMessage(msec * 1000, null);
+    }
+
+    /**
+     * Same as {@link #seekTo(long)}, the returned future completes with the exact frame shown
+     * after the seek, or as superseded if a later seek or a teardown dropped it.
+     */
+    public PlayerFuture<SeekResult> seekToAsync(long msec){
+        return seekToFrameAsync(msec * 1000);
+    }
+    /**
+     * Same as {@link #seekToAsync(long)} with a position in microseconds, so the presentation time of a frame,
+     * e.g. one of a {@link MotionSignal}, shows exactly that frame.
+     */
+    public PlayerFuture<SeekResult> seekToFrameAsync(long timeUs){
+        PlayerFuture<SeekResult> future = new PlayerFuture<SeekResult>();
+        long usec = pushSeekMessage(timeUs, future);
+        onPositionUpdate(usec);
+        return future;
+    }
+    /**
+     * Visit many timestamps in one decoding pass. The requests are sorted and grouped by the key frame
+     * they are decoded from, every group of pictures is decoded forward only once, so the cost depends on
+     * the number of groups touched rather than the number of requests. Each frame is rendered and
+     * delivered to the callback as soon as it is reached.
+     *
+     * @param timestampsUs requested positions in microseconds, in any order
+     */
+    public void seekSequence(long[] timestampsUs, FrameCallback callback) throws IllegalStateException, NullPointerException{
+        if(timestampsUs == null || callback == null){
+            throw new NullPointerException("Invalid argument.");
+        }
+        SeekSequenceRequest request = new SeekSequenceRequest();
+        request.timesUs = timestampsUs.clone();
+        Arrays.sort(request.timesUs);
+        request.callback = callback;
+
+        long word = transitTarget(SEEK_SEQUENCE_STATES, null, true);
+        if(word == PlayerStateWord.REJECTED){
             throw new IllegalStateException("Cannot handle seeking request in current state.");
         }
+        PlayerMessage message = new PlayerMessage();
+        message.messageType = MessageType.SeekSequence;
+        message.payload = request;
+        message.sequence = PlayerStateWord.sequenceOf(word);
+        pushMessage(message);
+    }
+    /**
+     * Detach the player from its surface and release the decoder, e.g. when the surface is destroyed.
+     * Parsed index, position and last state are kept, so {@link #resume(Surface)} shows the last
+     * frame again without preparing. Returns after the player stopped using the surface.
+     */
+    public void suspend() throws IllegalStateException{
+        suspend(false);
+    }
+
+    /**
+     * @param releaseDecoder true to release the decoder in any case, e.g. to give it to another player.
+     *                       Otherwise the decoder is kept on a placeholder surface where supported(API 23).
+     */
+    public void suspend(boolean releaseDecoder) throws IllegalStateException{
+        suspendAsync(releaseDecoder).await();
+    }
+
+    /**
+     * Same as {@link #suspend(boolean)} without blocking, e.g. to evict a player on the UI thread.
+     *
+     * @return completes when the player stopped using the surface, and released the decoder if asked
+     */
+    public PlayerFuture<Void> suspendAsync(boolean releaseDecoder) throws IllegalStateException{
+        long word = transitTarget(SUSPEND_STATES, PlayerState.Suspended, true);
+        if(word == PlayerStateWord.REJECTED){
+            if(getExpectedState() != PlayerState.Suspended){
+                throw new IllegalStateException("Cannot suspend in current state.");
+            }
+            if(!releaseDecoder){
+                return PlayerFuture.completed(null);
+            }
+            // suspended already, may still hold the decoder.
+            word = transitTarget(EnumSet.of(PlayerState.Suspended), PlayerState.Suspended, true);
+            if(word == PlayerStateWord.REJECTED){
+                return PlayerFuture.completed(null); // resumed or torn down meanwhile
+            }
+        }
+        PlayerMessage message = new PlayerMessage();
+        message.messageType = MessageType.Suspend;
+        message.content = releaseDecoder ? 1 : 0;
+        message.sequence = PlayerStateWord.sequenceOf(word);
+        message.processed = new PlayerFuture<Void>();
+        pushMessage(message);
+        return message.processed;
+    }
 
-        long usec = msec * 1000; // to microsecond
-        if(usec < 0){
-            usec = 0;
+    /**
+     * Resume a suspended player on a new surface, the player is paused afterwards.
+     */
+    public void resume(Surface surface) throws IllegalStateException, NullPointerException{
+        resume(surface, null);
+    }
+
+    /**
+     * Same as {@link #resume(Surface)}, the decoder is configured after the given operation completed, e.g. after
+     * the players evicted for this one released their decoders. Later commands are executed after the resume.
+     *
+     * @param after null to resume at once
+     */
+    public void resume(Surface surface, PlayerFuture<Void> after) throws IllegalStateException, NullPointerException{
+        if(surface == null){
+            throw new NullPointerException("Invalid argument.");
         }
-        else if(usec > mMediaInfo.durationUs){
-            usec = mMediaInfo.durationUs;
+        long word = transitTarget(EnumSet.of(PlayerState.Suspended), PlayerState.Paused, true);
+        if(word == PlayerStateWord.REJECTED){
+            throw new IllegalStateException("Player is not suspended.");
         }
-        synchronized (mObjForSeekSync){
-            mSeekTargetTimeUs = usec;
-            PlayerMessage message = new PlayerMessage();
-            message.messageType = MessageType.Seek;
-            message.content = usec;
-            pushMessage(message);
+        final PlayerMessage message = new PlayerMessage();
+        message.messageType = MessageType.Resume;
+        message.payload = surface;
+        message.sequence = PlayerStateWord.sequenceOf(word);
+        message.after = after;
+        pushMessage(message);
+        if(after != null){
+            // the worker parks at the message until then, a teardown meanwhile drops the message.
+            after.addListener(new PlayerFuture.OnCompleteListener<Void>() {
+                @Override
+                public void onComplete(PlayerFuture<Void> future) {
+                    wakeWorker();
+                }
+            });
         }
     }
-    public void reset(){
-        if(mState == PlayerState.Idle)
-            return;
-
+    /**
+     * Start scrubbing, e.g. when a drag on the seek bar starts. Until {@link #endScrub()}, seeks show the
+     * frames of the proxy of the clip if it has one(see {@link ProxyGenerator}), every proxy frame decodes
+     * on its own. The proxy decoder replaces the one of the clip meanwhile, a pooled player keeps to its
+     * decoder budget. Ignored while playing, or if the source isn't a file path.
+     */
+    public void beginScrub() throws IllegalStateException{
+        if(!pushScrubMessage(true)){
+            throw new IllegalStateException("Cannot scrub in current state.");
+        }
+    }
+    /**
+     * Stop scrubbing, the frame of the last seek is decoded from the clip. Any other command than seeking
+     * stops scrubbing as well.
+     */
+    public void endScrub(){
+        pushScrubMessage(false);
+    }
+    private boolean pushScrubMessage(boolean begin){
+        long word = transitTarget(SEEK_SEQUENCE_STATES, null, true);
+        if(word == PlayerStateWord.REJECTED){
+            return false;
+        }
         PlayerMessage message = new PlayerMessage();
-        message.messageType = MessageType.Reset;
+        message.messageType = MessageType.Scrub;
+        message.content = begin ? 1 : 0;
+        message.sequence = PlayerStateWord.sequenceOf(word);
         pushMessage(message);
-        waitAllBGThreadsExit();
+        return true;
+    }
+    public boolean isSuspended(){
+        return getExpectedState() == PlayerState.Suspended;
+    }
+
+    public void reset(){
+        resetAsync().await();
+    }
+    /**
+     * Reset without blocking, see {@link #stopAsync()}.
+     */
+    public PlayerFuture<Void> resetAsync(){
+        if(transitTarget(EnumSet.complementOf(EnumSet.of(PlayerState.Idle)), PlayerState.Idle, false) == PlayerStateWord.REJECTED)
+            return teardownAsync(null);
+        return teardownAsync(MessageType.Reset);
     }
     public void release(){
-        if(mState == PlayerState.End){
-            return;
+        releaseAsync().await();
+    }
+    /**
+     * Release without blocking, see {@link #stopAsync()}.
+     */
+    public PlayerFuture<Void> releaseAsync(){
+        if(transitTarget(EnumSet.complementOf(EnumSet.of(PlayerState.End)), PlayerState.End, false) == PlayerStateWord.REJECTED){
+            return teardownAsync(null);
         }
-        PlayerMessage message = new PlayerMessage();
-        message.messageType = MessageType.Release;
-        pushMessage(message);
-        waitAllBGThreadsExit();
+        return teardownAsync(MessageType.Release);
     }
 
     public int getVideoWidth(){
@@ -355,7 +750,83 @@ public class FramePlayer {
     }
     public boolean isReachEOS(){return isDecoderReachEOS();}
     public boolean isPlaying(){
-        return mState == PlayerState.Started;
+        return getExpectedState() == PlayerState.Started;
+    }
+    /**
+     * Limit the rate frames are rendered at in playback, e.g. to play a 240fps clip in real time on a 60Hz
+     * display. Every frame is still decoded, only every Nth is rendered. Seeking is not affected.
+     *
+     * @param fps the maximum rate, 0 to render every frame
+     */
+    public void setMaxRenderFrameRate(float fps){
+        mMaxRenderFrameRate = Math.max(fps, 0);
+        updateRenderInterval();
+    }
+    /**
+     * Forget what the last user set on a reset player, so a player taken from {@link FramePlayerPool}
+     * starts like a new one: listeners, overlay, surface, render rate, callback executor and trace.
+     */
+    void clearSettings(){
+        mOnPositionUpdateListener = null;
+        mOnSeekCompleteListener = null;
+        mOnCompletionListener = null;
+        mOnErrorListener = null;
+        mOnVideoSizeChangedListener = null;
+        mOnPreparedListener = null;
+        setOverlayStore(null, null);
+        setCallbackExecutor(null);
+        mSurface = null;
+        setMaxRenderFrameRate(0);
+        stopTrace();
+    }
+    /**
+     * Record the commands given to the player and its decoder work until {@link #stopTrace()}, e.g. to attach
+     * to a bug report and replay with {@link TraceReplayer}. A trace running already is stopped.
+     *
+     * @param maxEvents events recorded at most, about 17 bytes each
+     */
+    public CommandTrace startTrace(int maxEvents) throws IllegalStateException{
+        MediaInfoExtractor.MediaInfo mediaInfo = mMediaInfo;
+        if(mediaInfo == null){
+            throw new IllegalStateException("Cannot trace before prepared.");
+        }
+        SampleTable sampleTable = mediaInfo.sampleTable;
+        int sampleCount = sampleTable.getSampleCount();
+        long[] sampleTimesUs = new long[sampleCount];
+        for(int i = 0; i < sampleCount; i++){
+            sampleTimesUs[i] = sampleTable.getTimeUs(i);
+        }
+        long[] syncNumbers = sampleTable.getSyncSampleNumbers();
+        int[] syncSamples = new int[syncNumbers.length];
+        for(int i = 0; i < syncNumbers.length; i++){
+            syncSamples[i] = (int)syncNumbers[i] - 1;
+        }
+        CommandTrace trace = new CommandTrace(sampleTimesUs, syncSamples, Math.max(mCurPresentationTimeUs, 0),
+                maxEvents);
+        stopTrace();
+        mTrace = trace;
+        return trace;
+    }
+    /**
+     * @return the trace stopped, null if none was running.
+     */
+    public CommandTrace stopTrace(){
+        CommandTrace trace = mTrace;
+        mTrace = null;
+        if(trace != null){
+            trace.stop();
+        }
+        return trace;
+    }
+    /**
+     * @return the last commands and decoder events of the player, one per line, e.g. to log a slow seek.
+     */
+    public String dumpRecentEvents(){
+        return mEventRing.dump();
+    }
+    public PlayerStats getStats(){
+        return new PlayerStats(mRecoveryCount, mLastRecoveryTimeNs / 1000000, mTotalRecoveryTimeNs / 1000000,
+                mDroppedFrameCount, mSkippedToSyncCount);
     }
     //endregion
 
@@ -365,119 +836,449 @@ public class FramePlayer {
                 && mOnErrorListener.onError(this, what, extra)){
             return;
         }
-        changeStateTo(PlayerState.Error);
+        forceStateTo(PlayerState.Error);
     }
     private void prepareInternal() throws IOException{
-        mMediaInfo = MediaInfoExtractor.extract(mSource);
-        mEstimatedKeyframeInterval = mMediaInfo.perFrameDurationUs * mMediaInfo.fps;
-        mIdenticalFrameInterval = (long)(mMediaInfo.perFrameDurationUs * 0.5);
-        mExtractor = new MediaExtractor();
-        mExtractor.setDataSource(mSource);
-
-        int videoTrackIndex = selectVideoTrack(mExtractor);
-        if(videoTrackIndex < 0)
-            throw new IOException("Can't find video info!");
-
-        mExtractor.selectTrack(videoTrackIndex);
-        mFormat = mExtractor.getTrackFormat(videoTrackIndex);
-        // the MediaCodec has build-in support for rotation from 5.0, but we want to do this by ourselves for
-        // better control of UI layout. So we set the rotation to 0 to tell MediaCodec don't do anything with rotation.
+        TraceSections.begin("FramePlayer.prepare");
         try{
-            Integer rotation = mFormat.getInteger("rotation-degrees");
-            mFormat.setInteger("rotation-degrees", 0);
-        }catch (Exception ex){}
+            prepareStages();
+        }finally {
+            TraceSections.end();
+        }
+    }
+    private void prepareStages() throws IOException{
+        TraceSections.begin("FramePlayer.index");
+        try{
+            // map the clip once, both the metadata parser and the extractor read from it.
+            if(mSourceFd != null){
+                mDataSource = MappedDataSource.open(mSourceFd, mSourceOffset, mSourceLength);
+            }else{
+                mDataSource = MappedDataSource.open(mSource);
+            }
+            // a fragmented clip may still be recorded, it's indexed as it grows and is not cached.
+            mFragmentIndexer = FragmentIndexer.open(mDataSource);
+            if(mFragmentIndexer != null){
+                mMediaInfo = mFragmentIndexer.getMediaInfo();
+                mNextIndexUpdateNs = System.nanoTime() + LIVE_INDEX_INTERVAL_NS;
+                mLastGrowthNs = System.nanoTime();
+                if(mFragmentIndexer.isComplete()){
+                    mFragmentIndexer = null;
+                }
+            }else if(mSourceFd != null){
+                mMediaInfo = MediaInfoExtractor.extract(mDataSource);
+            }else{
+                // shared with other players, don't modify it.
+                mMediaInfo = MediaInfoCache.getInstance().get(mSource, mDataSource);
+            }
+            mDemuxer = new SampleTableDemuxer(mDataSource, mMediaInfo.sampleTable);
+        }finally {
+            TraceSections.end();
+        }
+
+        // MediaExtractor is only used to build the codec format(csd buffers etc.), samples are
+        // read by the demuxer.
+        TraceSections.begin("FramePlayer.format");
+        MediaExtractor extractor = new MediaExtractor();
+        try{
+            extractor.setDataSource(mDataSource.getFileDescriptor(), mDataSource.getOffset(), mDataSource.getLength());
+            int videoTrackIndex = selectVideoTrack(extractor);
+            if(videoTrackIndex < 0)
+                throw new IOException("Can't find video info!");
+            mFormat = extractor.getTrackFormat(videoTrackIndex);
+            prepareFormat(mFormat);
+            // MediaFormat can't be copied or have keys removed before API 29, get another one for the hints.
+            mHintedFormat = null;
+            if(mMediaInfo.fps > HFR_THRESHOLD_FPS){
+                mHintedFormat = extractor.getTrackFormat(videoTrackIndex);
+                prepareFormat(mHintedFormat);
+                applyHighFrameRateHints(mHintedFormat, mMediaInfo.fps);
+            }
+        }finally {
+            extractor.release();
+            TraceSections.end();
+        }
         mMime = mFormat.getString(MediaFormat.KEY_MIME);
+        updateRenderInterval();
 
         restartDecoder();
         resetPositionInfo();
 
         mIsStopPlayback = false;
-        mWorkerThread = new Thread("FramePlayerThread"){
-            @Override
-            public void run() {
-                try {
-                    workLoop();
-                }catch (InterruptedException ie){
-                    ie.printStackTrace();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    onError(FRAMEPLAYER_ERROR_SERVER_DIED, FRAMEPLAYER_ERROR_UNKNOWN);
-                    assert false;
-                }
-                Log.d(TAG, "exit playback loop.");
-            }
-        };
-        mWorkerThread.start();
+        mPendingFrameIndex = -1;
+        mDecodeJob = JOB_NONE;
+        mJobMessage = null;
+        // published before started, so commands pushed from now on wake it up.
+        mWorker = PlayerScheduler.getInstance().newWorker(mWorkerStep);
+        mSeekPredictor.reset();
+        mWarmedSyncSample = -1;
+        mPrefetchMisses = 0;
+        // commands accepted from now on are executed by the new worker.
+        mState.setProcessedSequence(PlayerStateWord.sequenceOf(mState.get()));
+        // state first, the worker may handle a pending teardown message right after started.
         changeStateTo(PlayerState.Prepared);
+        mWorker.wake();
     }
-    private void restartDecoder() {
-        if(mDecoder != null){
-            mDecoder.stop();
-            mDecoder.release();
-            mDecoder = null;
+    /**
+     * Trace the runs of dequeue timeouts that are not ended by a dequeued buffer, before the decoder is reset.
+     */
+    private void traceTimeouts(){
+        if(mInputTimeouts > 0){
+            trace(CommandTrace.DEQUEUE_TIMEOUT, mInputTimeouts);
+            mInputTimeouts = 0;
+        }
+        if(mOutputTimeouts > 0){
+            trace(CommandTrace.DEQUEUE_TIMEOUT, -mOutputTimeouts);
+            mOutputTimeouts = 0;
         }
-        mDecoder = MediaCodec.createDecoderByType(mMime);
-        mDecoder.configure(mFormat, mSurface, null, 0);
-        mDecoder.start();
     }
-    private int selectVideoTrack(MediaExtractor extractor){
-        for (int i = 0; i < extractor.getTrackCount(); i++) {
-            MediaFormat format = extractor.getTrackFormat(i);
-            String mime = format.getString(MediaFormat.KEY_MIME);
-            if (mime.startsWith(VIDEO_PREFIX_IN_MIME)) {
-                return i;
-            }
+    private void flushDecoder(){
+        traceTimeouts();
+        trace(CommandTrace.DECODER_FLUSH, 0);
+        mPrefetchedFrames.clear(); // flush returns all buffers
+        TraceSections.begin("FramePlayer.flush");
+        try{
+            mDecoder.flush();
+        }finally {
+            TraceSections.end();
         }
-        return -1;
+    }
+    private void prepareFormat(MediaFormat format){
+        SampleTable sampleTable = mMediaInfo.sampleTable;
+        int maxSampleSize = sampleTable.getMaxSampleSize();
+        if(mFragmentIndexer != null){
+            // fragments to come may hold larger frames, but never larger than a raw one.
+            maxSampleSize = Math.max(maxSampleSize, (int)(mMediaInfo.width * mMediaInfo.height * 3 / 2));
+        }
+        // samples grow when short NAL length prefixes are replaced with start codes.
+        maxSampleSize = AnnexB.maxConvertedSize(maxSampleSize, sampleTable.getNalLengthSize());
+        if(!format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+                || format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) < maxSampleSize){
+            format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, maxSampleSize);
+        }
+        // the MediaCodec has build-in support for rotation from 5.0, but we want to do this by ourselves for
+        // better control of UI layout. So we set the rotation to 0 to tell MediaCodec don't do anything with rotation.
+        try{
+            Integer rotation = format.getInteger("rotation-degrees");
+            format.setInteger("rotation-degrees", 0);
+        }catch (Exception ex){}
+    }
+    /**
+     * Ask the codec to run fast enough for a high frame rate clip. The keys are ignored by the platforms
+     * that don't know them.
+     */
+    private static void applyHighFrameRateHints(MediaFormat format, long fps){
+        format.setInteger(KEY_OPERATING_RATE, (int)fps);
+        format.setInteger(KEY_PRIORITY, 0); // realtime
+        format.setInteger(KEY_LOW_LATENCY, 1);
+    }
+    private void updateRenderInterval(){
+        MediaInfoExtractor.MediaInfo mediaInfo = mMediaInfo;
+        if(mediaInfo == null || mMaxRenderFrameRate <= 0 || mediaInfo.fps <= mMaxRenderFrameRate){
+            mRenderInterval = 1;
+        }else{
+            mRenderInterval = Math.round(mediaInfo.fps / mMaxRenderFrameRate);
+        }
+    }
+    private void restartDecoder() {
+        traceTimeouts();
+        trace(CommandTrace.DECODER_RESTART, 0);
+        mPrefetchedFrames.clear();
+        TraceSections.begin("FramePlayer.restartDecoder");
+        try{
+            if(mDecoder != null){
+                mDecoder.stop();
+                mDecoder.release();
+                mDecoder = null;
+            }
+            createDecoder();
+        }finally {
+            TraceSections.end();
+        }
+    }
+    private void createDecoder(){
+        for(String name : DecoderSelector.getCandidates(mFormat)){
+            // some codecs refuse an operating rate they can't reach, try them without hints then.
+            if((mHintedFormat != null && startDecoder(name, mHintedFormat)) || startDecoder(name, mFormat)){
+                DecoderSelector.markSucceeded(mFormat, name);
+                return;
+            }
+            DecoderSelector.markFailed(mFormat, name, mDecoderFailure);
+        }
+        // none of the listed decoders works, let the platform decide.
+        mDecoderName = null;
+        mDecoder = MediaCodec.createDecoderByType(mMime);
+        mDecoder.configure(mFormat, mSurface, null, 0);
+        mDecoder.start();
+    }
+    private boolean startDecoder(String name, MediaFormat format){
+        MediaCodec decoder = null;
+        try{
+            decoder = MediaCodec.createByCodecName(name);
+            decoder.configure(format, mSurface, null, 0);
+            decoder.start();
+            mDecoder = decoder;
+            mDecoderName = name;
+            return true;
+        }catch (Exception ex){
+            Log.w(TAG, "Decoder " + name + " failed: " + ex);
+            mDecoderFailure = ex;
+            if(decoder != null){
+                try{
+                    decoder.release();
+                }catch (Exception releaseEx){} // safe ignore
+            }
+            return false;
+        }
+    }
+    private static Method findSetOutputSurfaceMethod(){
+        try{
+            return MediaCodec.class.getMethod("setOutputSurface", Surface.class);
+        }catch (NoSuchMethodException ex){
+            return null;
+        }
+    }
+    private boolean trySetOutputSurface(Surface surface){
+        if(sSetOutputSurfaceMethod == null || mDecoder == null){
+            return false;
+        }
+        try{
+            sSetOutputSurfaceMethod.invoke(mDecoder, surface);
+            return true;
+        }catch (Exception ex){
+            Log.d(TAG, "setOutputSurface failed: " + ex);
+            return false;
+        }
+    }
+    private Surface getPlaceholderSurface(){
+        if(mPlaceholderSurface == null){
+            mPlaceholderTexture = new SurfaceTexture(0);
+            mPlaceholderSurface = new Surface(mPlaceholderTexture);
+        }
+        return mPlaceholderSurface;
+    }
+    private void releasePlaceholderSurface(){
+        if(mPlaceholderSurface != null){
+            mPlaceholderSurface.release();
+            mPlaceholderSurface = null;
+            mPlaceholderTexture.release();
+            mPlaceholderTexture = null;
+        }
+    }
+    private int selectVideoTrack(MediaExtractor extractor){
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            if (mime.startsWith(VIDEO_PREFIX_IN_MIME)) {
+                return i;
+            }
+        }
+        return -1;
     }
     private void extractorSeekTo(long timestamp, int seekFlag){
-        mExtractor.seekTo(timestamp, seekFlag);
+        trace(CommandTrace.DEMUXER_SEEK, timestamp);
+        TraceSections.begin("FramePlayer.demuxerSeek");
+        try{
+            mDemuxer.seekTo(timestamp, seekFlag);
+        }finally {
+            TraceSections.end();
+        }
         mIsExtractorReachedEOS = false;
     }
-    private void workLoop() throws InterruptedException{
-        while (canLoopContinue()) {
-            PlayerMessage message = mCtrlMsgQueue.poll();
+    private final PlayerScheduler.Steppable mWorkerStep = new PlayerScheduler.Steppable() {
+        @Override
+        public long step() {
+            try {
+                return workStep();
+            } catch (Exception e) {
+                e.printStackTrace();
+                abortDecodeJob();
+                onError(FRAMEPLAYER_ERROR_SERVER_DIED, FRAMEPLAYER_ERROR_UNKNOWN);
+                Log.d(TAG, "exit playback loop.");
+                return PlayerScheduler.EXIT;
+            }
+        }
+    };
+    /**
+     * One turn of the worker, it handles a command or decodes a frame. A seek decodes one frame a turn until
+     * the target shows up, the commands after it wait meanwhile. The worker runs on a thread shared with
+     * other players, it's scheduled again after the returned delay, or when a command is pushed.
+     *
+     * @return see {@link PlayerScheduler.Steppable#step()}
+     */
+    private long workStep(){
+        if(!canLoopContinue()){
+            abortDecodeJob();
+            Log.d(TAG, "exit playback loop.");
+            return PlayerScheduler.EXIT;
+        }
+        if(mFragmentIndexer != null){
+            updateFragmentIndex();
+        }
+        if(mDecodeJob != JOB_NONE){
+            // a teardown doesn't wait for the frame.
+            PlayerMessage next = peekMessage();
+            if(next != null && next.sequence == UNSEQUENCED){
+                abortDecodeJob();
+            }else{
+                stepDecodeJob();
+                return 0;
+            }
+        }
+        if(mScrubber != null){
+            // other commands work on the clip, decode its frame again before.
+            PlayerMessage next = peekMessage();
+            if(next != null && next.messageType != MessageType.Seek && next.messageType != MessageType.Scrub){
+                endScrubInternal();
+                return 0;
+            }
+        }
+        PlayerMessage head = peekMessage();
+        if(head != null && head.after != null && !head.after.isDone()){
+            if(hasTeardownMessage()){
+                discardMessage(pollMessage());
+                return 0;
+            }
+            return PlayerScheduler.IDLE; // woken when the message can go on
+        }
+        PlayerMessage message = pollMessage();
 
-            if(message == null){
-                if(mState == PlayerState.Started){
-                    playback();
-                    continue;
-                }
-                // in pause state, wait for command
-                message = mCtrlMsgQueue.take();
+        if(message == null){
+            if(PlayerStateWord.committedOf(mState.get()) == PlayerState.Started){
+                return playback();
+            }
+            // in pause state, decode ahead of the next seek until a command arrives.
+            if(prefetch()){
+                return 0;
             }
+            // a caller holding an earlier sequence number is still pushing its message.
+            if(!mCtrlMsgQueue.isEmpty()){
+                return GAP_WAIT_NS;
+            }
+            if(mFragmentIndexer != null){
+                return Math.max(mNextIndexUpdateNs - System.nanoTime(), 1);
+            }
+            return PlayerScheduler.IDLE;
+        }
+        renderPendingFrame();
+        mPrefetchMisses = 0;
 
-            if(message.messageType == MessageType.Seek) {
-                PlayerMessage nextMessage = mCtrlMsgQueue.peek();
-                if (nextMessage != null && nextMessage.messageType == MessageType.Seek) {
-                    if(nextMessage.content < message.content)
-                        continue; // only ignore pending back seeking message.
+        if(message.messageType == MessageType.Seek) {
+            PlayerMessage nextMessage = peekMessage();
+            if (nextMessage != null && nextMessage.messageType == MessageType.Seek) {
+                if(nextMessage.content < message.content){
+                    discardMessage(message);
+                    return 0; // only ignore pending back seeking message.
                 }
             }
-            processMessage(message);
         }
+        processMessage(message);
+        if(mDecodeJob != JOB_NONE){
+            mJobMessage = message; // done when the job is
+            return 0;
+        }
+        finishMessage(message);
+        return 0;
+    }
+    private void finishMessage(PlayerMessage message){
+        traceExecution(CommandTrace.COMMAND_DONE, message);
+        if(message.processed != null){
+            message.processed.complete(null);
+        }
+        resetWatchdog();
+        mClockAnchorNs = 0; // the frame on screen changed or playback was paused
+    }
+    /**
+     * Index the fragments written since the last update, so the duration and the seek range follow the
+     * recording. Playback that reached the end before a fragment arrived completes as usual.
+     */
+    private void updateFragmentIndex(){
+        long now = System.nanoTime();
+        if(now < mNextIndexUpdateNs){
+            return;
+        }
+        boolean wasIdle = now - mLastGrowthNs > LIVE_GROWTH_TIMEOUT_NS;
+        FragmentIndexer indexer = mFragmentIndexer;
+        try{
+            if(indexer.update()){
+                mMediaInfo = indexer.getMediaInfo();
+                mDemuxer.setSampleTable(mMediaInfo.sampleTable);
+                mLastGrowthNs = now;
+            }
+        }catch (IOException ex){
+            Log.w(TAG, "Failed to index new fragments: " + ex);
+            mFragmentIndexer = null;
+            return;
+        }
+        if(indexer.isComplete()){
+            Log.d(TAG, "Clip is finished, " + mMediaInfo.totalFrames + " frames.");
+            mFragmentIndexer = null;
+            return;
+        }
+        boolean isIdle = now - mLastGrowthNs > LIVE_GROWTH_TIMEOUT_NS;
+        if(isIdle != wasIdle){
+            Log.d(TAG, (isIdle ? "Clip stopped growing, " : "Clip grows again, ") + mMediaInfo.totalFrames + " frames.");
+        }
+        mNextIndexUpdateNs = now + (isIdle ? LIVE_IDLE_INDEX_INTERVAL_NS : LIVE_INDEX_INTERVAL_NS);
     }
     private void putOneFrameToDecoder() {
+        putOneFrameToDecoder(TIMEOUT_USEC);
+    }
+    private void putOneFrameToDecoder(long timeoutUs) {
         if (mIsExtractorReachedEOS)
             return;
 
         ByteBuffer[] inputBuffers = mDecoder.getInputBuffers();
-        int inIndex = mDecoder.dequeueInputBuffer(TIMEOUT_USEC);
+        int inIndex;
+        TraceSections.begin("FramePlayer.dequeueInput");
+        try{
+            inIndex = mDecoder.dequeueInputBuffer(timeoutUs);
+        }finally {
+            TraceSections.end();
+        }
+        if(inIndex == MediaCodec.INFO_TRY_AGAIN_LATER){
+            mInputTimeouts++;
+        }else if(mInputTimeouts > 0){
+            trace(CommandTrace.DEQUEUE_TIMEOUT, mInputTimeouts);
+            mInputTimeouts = 0;
+        }
         if (inIndex >= 0) {
             ByteBuffer buffer = inputBuffers[inIndex];
-            int sampleSize = mExtractor.readSampleData(buffer, 0);
+            int sampleSize = mDemuxer.readSampleData(buffer, 0);
             if (sampleSize < 0) {
                 Log.d(TAG, "InputBuffer BUFFER_FLAG_END_OF_STREAM");
                 mDecoder.queueInputBuffer(inIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
                 mIsExtractorReachedEOS = true;
             } else {
-                mDecoder.queueInputBuffer(inIndex, 0, sampleSize, mExtractor.getSampleTime(), 0);
-                mExtractor.advance();
+                mDecoder.queueInputBuffer(inIndex, 0, sampleSize, mDemuxer.getSampleTime(), 0);
+                trace(CommandTrace.SAMPLE_QUEUED, mDemuxer.getSampleTime());
+                mDemuxer.advance();
             }
         }
     }
     private int takeOneFrameFromDecoder() {
-        int outIndex = mDecoder.dequeueOutputBuffer(mCurFrameInfo, TIMEOUT_USEC);
+        // frames decoded ahead come first, they are the next output of the decoder.
+        if(!mPrefetchedFrames.isEmpty()){
+            PrefetchedFrame frame = mPrefetchedFrames.poll();
+            mCurFrameInfo = frame.info;
+            return frame.bufferIndex;
+        }
+        int outIndex;
+        TraceSections.begin("FramePlayer.dequeueOutput");
+        try{
+            outIndex = mDecoder.dequeueOutputBuffer(mCurFrameInfo, TIMEOUT_USEC);
+        }finally {
+            TraceSections.end();
+        }
+        if(outIndex == MediaCodec.INFO_TRY_AGAIN_LATER){
+            mOutputTimeouts++;
+        }else if(mOutputTimeouts > 0){
+            trace(CommandTrace.DEQUEUE_TIMEOUT, -mOutputTimeouts);
+            mOutputTimeouts = 0;
+        }
+        if(outIndex >= 0){
+            onDecoderOutput();
+            trace(CommandTrace.FRAME_DECODED, mCurFrameInfo.presentationTimeUs);
+        }
         switch (outIndex) {
             case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
                 Log.d(TAG, "INFO_OUTPUT_BUFFERS_CHANGED");
@@ -486,24 +1287,181 @@ public class FramePlayer {
                 MediaFormat newFormat = mDecoder.getOutputFormat();
                 Log.d(TAG, "New format " + newFormat);
                 break;
-            case MediaCodec.INFO_TRY_AGAIN_LATER:
-                break;
             default:
                 break;
         }
         return outIndex;
     }
+    /**
+     * Decode one frame towards the predicted next seek target and hold it in the decoder, so a forward
+     * step or scrub finds it decoded. A target that can't be reached by decoding forward gets its samples
+     * loaded into memory instead.
+     *
+     * @return true if there is more to prefetch
+     */
+    private boolean prefetch(){
+        PlayerState state = PlayerStateWord.committedOf(mState.get());
+        if((state != PlayerState.Paused && state != PlayerState.Prepared) || mScrubber != null
+                || mDecoder == null || mIsSurfaceDetached || isDecoderReachEOS()
+                || mPrefetchMisses > MAX_PREFETCH_MISSES){
+            return false;
+        }
+        long currentUs = Math.max(mCurPresentationTimeUs, 0);
+        long predictedUs = mSeekPredictor.predict(System.nanoTime());
+        if(predictedUs == Long.MIN_VALUE){
+            predictedUs = mMediaInfo.ptsTable.nextFrameTime(currentUs); // stepping forward is the most common
+        }
+        SampleTable sampleTable = mMediaInfo.sampleTable;
+        int syncSample = sampleTable.getSyncSampleForTime(predictedUs);
+        if(predictedUs < currentUs || syncSample > mDemuxer.getSampleIndex()){
+            if(syncSample != mWarmedSyncSample){
+                mWarmedSyncSample = syncSample;
+                int nextSync = sampleTable.getSyncSampleAtOrAfter(syncSample + 1);
+                mDemuxer.warmUp(syncSample, nextSync < 0 ? sampleTable.getSampleCount() : nextSync);
+            }
+            return false;
+        }
+
+        BufferInfo decoded = mPrefetchedFrames.isEmpty() ? mCurFrameInfo : mPrefetchedFrames.getLast().info;
+        if(decoded.presentationTimeUs >= predictedUs
+                || (decoded.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0
+                || mPrefetchedFrames.size() >= Math.min(MAX_PREFETCHED_FRAMES, mDecoder.getOutputBuffers().length - 2)){
+            return false;
+        }
+        putOneFrameToDecoder(PREFETCH_TIMEOUT_USEC);
+        BufferInfo info = new BufferInfo();
+        int bufferIndex = mDecoder.dequeueOutputBuffer(info, PREFETCH_TIMEOUT_USEC);
+        if(bufferIndex >= 0){
+            PrefetchedFrame frame = new PrefetchedFrame();
+            frame.bufferIndex = bufferIndex;
+            frame.info = info;
+            mPrefetchedFrames.add(frame);
+            trace(CommandTrace.FRAME_DECODED, info.presentationTimeUs);
+            mPrefetchMisses = 0;
+        }else{
+            mPrefetchMisses++;
+        }
+        return true;
+    }
+    //region Watchdog
+    private void resetWatchdog(){
+        mLastOutputNs = System.nanoTime();
+    }
+    private void onDecoderOutput(){
+        mLastOutputNs = System.nanoTime();
+        if(mRecoveryStartNs != 0){
+            long recoveryTimeNs = mLastOutputNs - mRecoveryStartNs;
+            mLastRecoveryTimeNs = recoveryTimeNs;
+            mTotalRecoveryTimeNs += recoveryTimeNs;
+            mRecoveryCount++;
+            mRecoveryStartNs = 0;
+            Log.w(TAG, "Decoder recovered in " + recoveryTimeNs / 1000000 + "ms.");
+        }
+        mRecoveryAttempts = 0;
+    }
+    /**
+     * @return how long the decoder may be silent while decoding towards timeUs, the more frames have to be
+     *         decoded from the key frame the longer.
+     */
+    private long getStallBudgetNs(long timeUs){
+        SampleTable sampleTable = mMediaInfo.sampleTable;
+        int syncSample = sampleTable.getSyncSampleForTime(timeUs);
+        int nextSync = sampleTable.getSyncSampleAtOrAfter(syncSample + 1);
+        int gopSize = (nextSync < 0 ? sampleTable.getSampleCount() : nextSync) - syncSample;
+        return STALL_BASE_NS + gopSize * STALL_PER_FRAME_NS;
+    }
+    private boolean isDecoderStalled(long budgetNs){
+        return System.nanoTime() - mLastOutputNs > budgetNs;
+    }
+    /**
+     * Replace a decoder that stopped producing output, the new one is positioned to decode positionUs.
+     * The wedged decoder is released in background, its stop() may block as well.
+     *
+     * @return false if decoders keep stalling, an error is reported then.
+     */
+    private boolean recoverDecoder(long positionUs){
+        if(mRecoveryAttempts >= MAX_RECOVERY_ATTEMPTS){
+            Log.e(TAG, "Decoder keeps stalling, give up.");
+            mRecoveryStartNs = 0;
+            onError(FRAMEPLAYER_ERROR_SERVER_DIED, FRAMEPLAYER_ERROR_TIMED_OUT);
+            return false;
+        }
+        mRecoveryAttempts++;
+        if(mRecoveryStartNs == 0){
+            mRecoveryStartNs = System.nanoTime();
+        }
+        traceTimeouts();
+        Log.w(TAG, "Decoder " + mDecoderName + " stalled, restart at " + positionUs + "us. Recent events:\n"
+                + mEventRing.dump());
+        // rank it down, it's slow at least.
+        DecoderSelector.recordFrameTime(mDecoderName, 1, System.nanoTime() - mLastOutputNs);
+
+        final MediaCodec wedged = mDecoder;
+        mDecoder = null;
+        mPrefetchedFrames.clear();
+        PlayerScheduler.getInstance().runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                try{
+                    wedged.stop();
+                }catch (Exception ex){} // safe ignore
+                try{
+                    wedged.release();
+                }catch (Exception ex){} // safe ignore
+            }
+        });
+
+        createDecoder();
+        mCurFrameInfo = new BufferInfo();
+        extractorSeekTo(Math.max(positionUs, 0), MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        resetWatchdog();
+        return true;
+    }
+    //endregion
     private boolean canLoopContinue(){
         return !mIsStopPlayback;
     }
-    private boolean canSeeking(){
-        return ( mState == PlayerState.Prepared
-                || mState == PlayerState.Started
-                || mState == PlayerState.Paused
-                || mState == PlayerState.PlaybackCompleted);
+    /**
+     * @return the frame time of the seek target
+     */
+    private long pushSeekMessage(long timeUs, PlayerFuture<SeekResult> future){
+        MediaInfoExtractor.MediaInfo mediaInfo = mMediaInfo;
+        if(mediaInfo == null){
+            throw new IllegalStateException("Cannot handle seeking request in current state.");
+        }
+        long usec = toFrameTime(mediaInfo, timeUs);
+        synchronized (mObjForSeekSync){
+            long word = transitTarget(SEEK_STATES, null, true);
+            if(word == PlayerStateWord.REJECTED){
+                throw new IllegalStateException("Cannot handle seeking request in current state.");
+            }
+            mSeekTargetTimeUs = usec;
+            mSeekPredictor.onSeek(usec, System.nanoTime());
+            PlayerMessage message = new PlayerMessage();
+            message.messageType = MessageType.Seek;
+            message.content = usec;
+            message.payload = future;
+            message.sequence = PlayerStateWord.sequenceOf(word);
+            TraceSections.beginAsync(mSeekSection, (int)message.sequence);
+            pushMessage(message);
+        }
+        return usec;
+    }
+    /**
+     * Convert a requested position to the exact presentation time of the frame on screen at that position.
+     */
+    private static long toFrameTime(MediaInfoExtractor.MediaInfo mediaInfo, long usec){
+        if(usec < 0){
+            usec = 0;
+        }
+        else if(usec > mediaInfo.durationUs){
+            usec = mediaInfo.durationUs;
+        }
+        return mediaInfo.ptsTable.frameTimeAt(usec);
     }
     private boolean currentFrameIsTargetFrame(long currentTimestamp, long targetTimestamp){
-        return Math.abs(currentTimestamp - targetTimestamp) < mIdenticalFrameInterval;
+        // seek targets are always snapped to the exact timestamp of a frame, see toFrameTime().
+        return currentTimestamp == targetTimestamp;
     }
     private boolean isDecoderReachEOS(){
         return ((mCurFrameInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0);
@@ -514,13 +1472,107 @@ public class FramePlayer {
         onPositionUpdate(0);
     }
     private void pushMessage(PlayerMessage message) {
+        traceCommand(message);
         try {
             mCtrlMsgQueue.put(message);
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+        wakeWorker();
+    }
+    private void wakeWorker(){
+        PlayerScheduler.Worker worker = mWorker;
+        if(worker != null){
+            worker.wake();
+        }
+    }
+    /**
+     * @return true if a teardown message is queued
+     */
+    private boolean hasTeardownMessage(){
+        for(PlayerMessage message : mCtrlMsgQueue){
+            if(message.sequence == UNSEQUENCED){
+                return true;
+            }
+        }
+        return false;
+    }
+    /**
+     * @return the next message in the order the commands were accepted, null if there is none or the
+     *         next one is still being pushed by its caller.
+     */
+    private PlayerMessage peekMessage(){
+        while(true){
+            PlayerMessage message = mCtrlMsgQueue.peek();
+            if(message == null){
+                return null;
+            }
+            long processed = mState.getProcessedSequence();
+            if(message.sequence == UNSEQUENCED || message.sequence == processed + 1){
+                return message;
+            }
+            if(message.sequence > processed){
+                return null; // the caller that owns the missing sequence number hasn't pushed yet.
+            }
+            // accepted before the last teardown, drop it.
+            if(mCtrlMsgQueue.remove(message)){
+                discardMessage(message);
+            }
+        }
+    }
+    /**
+     * Drop a message without handling it, and wake up whoever waits for it.
+     */
+    @SuppressWarnings("unchecked")
+    private void discardMessage(PlayerMessage message){
+        traceExecution(CommandTrace.COMMAND_DROPPED, message);
+        if(message.messageType == MessageType.Seek){
+            TraceSections.endAsync(mSeekSection, (int)message.sequence);
+        }
+        if(message.messageType == MessageType.Seek && message.payload != null){
+            ((PlayerFuture<SeekResult>)message.payload).complete(SeekResult.SUPERSEDED);
+        }else if(message.messageType == MessageType.SeekSequence){
+            ((SeekSequenceRequest)message.payload).callback.onSequenceComplete(this, false);
+        }
+        if(message.processed != null){
+            message.processed.complete(null);
+        }
+    }
+    @SuppressWarnings("unchecked")
+    private void completeSeek(PlayerMessage message, long presentationTimeUs){
+        TraceSections.endAsync(mSeekSection, (int)message.sequence);
+        if(message.payload == null){
+            return;
+        }
+        PlayerFuture<SeekResult> future = (PlayerFuture<SeekResult>)message.payload;
+        if(presentationTimeUs == SEEK_ABORTED){
+            future.complete(SeekResult.SUPERSEDED);
+        }else{
+            int frameIndex = mMediaInfo.ptsTable.indexOf(presentationTimeUs);
+            future.complete(new SeekResult(presentationTimeUs, frameIndex, false));
+        }
+    }
+    private PlayerMessage pollMessage(){
+        PlayerMessage message = peekMessage();
+        if(message != null && mCtrlMsgQueue.remove(message)){
+            if(message.sequence != UNSEQUENCED){
+                mState.setProcessedSequence(message.sequence);
+            }
+            return message;
+        }
+        return null;
     }
     private void processMessage(PlayerMessage message){
+        message.handled = true;
+        traceExecution(CommandTrace.COMMAND_BEGIN, message);
+        TraceSections.begin(sCommandSections[message.messageType.ordinal()]);
+        try{
+            executeMessage(message);
+        }finally {
+            TraceSections.end();
+        }
+    }
+    private void executeMessage(PlayerMessage message){
         switch (message.messageType){
             case Pause:
                 pauseInternal();
@@ -529,7 +1581,20 @@ public class FramePlayer {
                 startInternal();
                 break;
             case Seek:
-                seekInternal(message.content);
+                long shownUs = mScrubber != null ? scrubSeekInternal(message.content) : seekInternal(message.content);
+                if(shownUs != SEEK_PENDING){
+                    completeSeek(message, shownUs);
+                }
+                break;
+            case Scrub:
+                if(message.content != 0){
+                    beginScrubInternal();
+                }else{
+                    endScrubInternal();
+                }
+                break;
+            case SeekSequence:
+                seekSequenceInternal((SeekSequenceRequest)message.payload);
                 break;
             case Stop:
                 stopInternal();
@@ -540,6 +1605,12 @@ public class FramePlayer {
             case Release:
                 releaseInternal();
                 break;
+            case Suspend:
+                suspendInternal(message.content != 0);
+                break;
+            case Resume:
+                resumeInternal((Surface)message.payload);
+                break;
             default:
                 assert false;
                 break;
@@ -550,9 +1621,13 @@ public class FramePlayer {
         onPositionUpdate(mCurPresentationTimeUs);
         changeStateTo(PlayerState.PlaybackCompleted);
     }
+    /**
+     * Commit the state reached by executing a command, or reached by the player itself, e.g. playback completed.
+     * The target state follows the latter, unless callers have issued commands that are not executed yet.
+     */
     private void changeStateTo(PlayerState state){
-        mState = state;
-        switch (mState){
+        mState.commit(state);
+        switch (state){
             case PlaybackCompleted:
                 onCompletion();
                 break;
@@ -563,52 +1638,255 @@ public class FramePlayer {
                 return;
         }
     }
+    /**
+     * Move both committed and target state, pending commands become invalid, e.g. on error.
+     */
+    private void forceStateTo(PlayerState state){
+        mState.force(state);
+    }
+    /**
+     * @see PlayerStateWord#transit(EnumSet, PlayerState, boolean)
+     */
+    private long transitTarget(EnumSet<PlayerState> from, PlayerState to, boolean sequenced){
+        return mState.transit(from, to, sequenced);
+    }
+    // listeners are called by the dispatcher, the ones set when the event happens get it.
     private void onPositionUpdate(long currentPosition){
         if(mOnPositionUpdateListener != null){
-            mOnPositionUpdateListener.onPositionUpdate(this, (int)currentPosition/1000); // to millisecond
+            mCallbackDispatcher.postPosition(mOnPositionUpdateListener, this, (int)currentPosition/1000); // to millisecond
+        }
+    }
+    // recent events are always kept, a running trace gets them as well.
+    private int trace(int type, long arg){
+        mEventRing.record(type, arg);
+        CommandTrace trace = mTrace;
+        return trace != null ? trace.record(type, arg) : -1;
+    }
+    private void traceCommand(PlayerMessage message){
+        int type = commandTypeOf(message.messageType);
+        if(message.messageType == MessageType.SeekSequence){
+            long[] timesUs = ((SeekSequenceRequest)message.payload).timesUs;
+            mEventRing.record(type, timesUs.length);
+            CommandTrace trace = mTrace;
+            message.traceId = trace != null ? trace.recordSequence(timesUs) : -1;
+        }else{
+            message.traceId = trace(type, message.content);
+        }
+    }
+    /**
+     * @param type COMMAND_BEGIN, COMMAND_DONE or COMMAND_DROPPED
+     */
+    private void traceExecution(int type, PlayerMessage message){
+        mEventRing.record(type, commandTypeOf(message.messageType));
+        CommandTrace trace = mTrace;
+        if(trace != null && message.traceId >= 0){
+            trace.record(type, message.traceId);
+        }
+    }
+    private static int commandTypeOf(MessageType messageType){
+        switch (messageType){
+            case Play: return CommandTrace.START;
+            case Pause: return CommandTrace.PAUSE;
+            case Seek: return CommandTrace.SEEK;
+            case SeekSequence: return CommandTrace.SEEK_SEQUENCE;
+            case Scrub: return CommandTrace.SCRUB;
+            case Stop: return CommandTrace.STOP;
+            case Reset: return CommandTrace.RESET;
+            case Release: return CommandTrace.RELEASE;
+            case Suspend: return CommandTrace.SUSPEND;
+            default: return CommandTrace.RESUME;
+        }
+    }
+    private void onFramePresented(long presentationTimeUs){
+        trace(CommandTrace.FRAME_RENDERED, presentationTimeUs);
+        OverlayStore.OnOverlayFrameListener listener = mOnOverlayFrameListener;
+        OverlayStore store = mOverlayStore;
+        if(listener != null && store != null){
+            MediaInfoExtractor.MediaInfo mediaInfo = mMediaInfo;
+            long endTimeUs = mediaInfo.ptsTable.nextFrameTime(presentationTimeUs);
+            if(endTimeUs <= presentationTimeUs){
+                endTimeUs = presentationTimeUs + mediaInfo.perFrameDurationUs; // the last frame
+            }
+            mCallbackDispatcher.postFrame(listener, store, this, presentationTimeUs, endTimeUs);
         }
     }
     private void onCompletion(){
-        if(mOnCompletionListener != null)
-            mOnCompletionListener.onCompletion(this);
+        final OnCompletionListener listener = mOnCompletionListener;
+        if(listener != null){
+            mCallbackDispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onCompletion(FramePlayer.this);
+                }
+            });
+        }
     }
     private void onPrepared(){
-        if(mOnPreparedListener != null)
-            mOnPreparedListener.onPrepared(this);
+        final OnPreparedListener listener = mOnPreparedListener;
+        if(listener != null){
+            mCallbackDispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onPrepared(FramePlayer.this);
+                }
+            });
+        }
+    }
+    private void onSeekComplete(){
+        final OnSeekCompleteListener listener = mOnSeekCompleteListener;
+        if(listener != null){
+            mCallbackDispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onSeekComplete(FramePlayer.this);
+                }
+            });
+        }
     }
     //endregion
 
     //region Internal operations
-    private void playback(){
+    /**
+     * @return ns until the decoded frame is due, 0 to go on at once
+     */
+    private long playback(){
+        TraceSections.begin("FramePlayer.playback");
+        try{
+            return playbackStep();
+        }finally {
+            TraceSections.end();
+        }
+    }
+    private long playbackStep(){
+        if(mPendingFrameIndex >= 0){
+            long waitNs = mPendingFrameDueNs - System.nanoTime();
+            if(waitNs > 0){
+                return waitNs;
+            }
+            renderPendingFrame();
+            return 0;
+        }
         // two cases: 1. play to EOS. 2. user seek to EOS.
         if(isDecoderReachEOS()){
             onPlaybackComplete();
         }else{
-            long prevFrameTime = mCurFrameInfo.presentationTimeUs;
             putOneFrameToDecoder();
             int bufferIndex = takeOneFrameFromDecoder();
             if(bufferIndex >= 0){
-                long elapsedUs = System.nanoTime() / 1000 - mLastRenderingTimeUs;
-                long timeToBeWait = (mCurFrameInfo.presentationTimeUs - (prevFrameTime + elapsedUs)) / 1000;
-                if (timeToBeWait > 0) {
-                    try {
-                        sleep(timeToBeWait);
-                    }catch (InterruptedException iex){} // safe ignore
+                if(!isDecoderReachEOS()){
+                    if(++mFramesSinceRender < mRenderInterval){
+                        // skipped by the render rate limit, decoded as fast as possible.
+                        mDecoder.releaseOutputBuffer(bufferIndex, false);
+                        return 0;
+                    }
+                    mFramesSinceRender = 0;
+                    long waitNs = paceFrame(bufferIndex);
+                    if(waitNs == FRAME_DROPPED){
+                        return 0;
+                    }
+                    if(waitNs > 0){
+                        // hold the frame in the decoder until it's due, the thread serves other players meanwhile.
+                        mPendingFrameIndex = bufferIndex;
+                        mPendingFrameDueNs = System.nanoTime() + waitNs;
+                        return waitNs;
+                    }
                 }
-                mDecoder.releaseOutputBuffer(bufferIndex, true);
-                mLastRenderingTimeUs = System.nanoTime() / 1000;
-                if(isDecoderReachEOS()){
-                    onPlaybackComplete();
-                }else{
-                    mCurPresentationTimeUs = mCurFrameInfo.presentationTimeUs;
-                    onPositionUpdate(mCurPresentationTimeUs);
+                renderFrame(bufferIndex);
+            }else if(isDecoderStalled(STALL_BASE_NS + STALL_PER_FRAME_NS)){
+                // continue from the next frame
+                if(recoverDecoder(mCurPresentationTimeUs)){
+                    long target = mMediaInfo.ptsTable.nextFrameTime(mCurPresentationTimeUs);
+                    synchronized (mObjForSeekSync){
+                        mSeekTargetTimeUs = target;
+                    }
+                    seekInternal(target, false);
+                    mClockAnchorNs = 0;
                 }
             }
         }
+        return 0;
+    }
+    private void renderFrame(int bufferIndex){
+        mDecoder.releaseOutputBuffer(bufferIndex, true);
+        if(isDecoderReachEOS()){
+            onPlaybackComplete();
+        }else{
+            mCurPresentationTimeUs = mCurFrameInfo.presentationTimeUs;
+            onFramePresented(mCurPresentationTimeUs);
+            onPositionUpdate(mCurPresentationTimeUs);
+        }
+    }
+    /**
+     * Render the frame waiting for its time at once, e.g. before a command changes the frame on screen.
+     */
+    private void renderPendingFrame(){
+        if(mPendingFrameIndex >= 0){
+            int bufferIndex = mPendingFrameIndex;
+            mPendingFrameIndex = -1;
+            renderFrame(bufferIndex);
+        }
+    }
+    /**
+     * Check the frame against the playback clock, drop it if it's too late.
+     * If decoding is far behind the clock, skip to the next key frame after the clock.
+     *
+     * @return ns until the frame is due, 0 to render it now, or FRAME_DROPPED
+     */
+    private long paceFrame(int bufferIndex){
+        long nowNs = System.nanoTime();
+        long presentationTimeUs = mCurFrameInfo.presentationTimeUs;
+        if(mClockAnchorNs == 0){
+            mClockAnchorNs = nowNs;
+            mClockAnchorUs = presentationTimeUs;
+            mConsecutiveDrops = 0;
+            return 0;
+        }
+        long lateNs = nowNs - (mClockAnchorNs + (presentationTimeUs - mClockAnchorUs) * 1000);
+        if(lateNs < 0){
+            mConsecutiveDrops = 0;
+            return -lateNs;
+        }
+        if(lateNs > SKIP_TO_SYNC_THRESHOLD_NS){
+            long clockUs = mClockAnchorUs + (nowNs - mClockAnchorNs) / 1000;
+            int syncSample = mMediaInfo.sampleTable.getSyncSampleAfterTime(clockUs);
+            if(syncSample > mDemuxer.getSampleIndex()){
+                mDecoder.releaseOutputBuffer(bufferIndex, false);
+                mDemuxer.seekToSample(syncSample);
+                mIsExtractorReachedEOS = false;
+                flushDecoder();
+                mSkippedToSyncCount++;
+                mDroppedFrameCount++;
+                Log.d(TAG, "Playback is " + lateNs / 1000000 + "ms behind, skip to sample " + syncSample);
+                return FRAME_DROPPED;
+            }
+        }
+        // show one frame now and then, so the picture doesn't freeze while catching up.
+        if(lateNs > LATE_FRAME_THRESHOLD_NS && mConsecutiveDrops < MAX_CONSECUTIVE_DROPS){
+            mDecoder.releaseOutputBuffer(bufferIndex, false);
+            mDroppedFrameCount++;
+            mConsecutiveDrops++;
+            return FRAME_DROPPED;
+        }
+        mConsecutiveDrops = 0;
+        return 0;
     }
-    private void seekInternal(long timestamp){
+    private long seekInternal(long timestamp){
+        return seekInternal(timestamp, true);
+    }
+    /**
+     * @return presentation time of the frame shown, SEEK_ABORTED if the player is stopping, or SEEK_PENDING
+     *         if the target is decoded by the next steps, the job completes the command then.
+     */
+    private long seekInternal(long timestamp, boolean notify){
         if(currentFrameIsTargetFrame(mCurPresentationTimeUs, timestamp)){
-            return;
+            return timestamp;
+        }
+        if(mIsSurfaceDetached){
+            // no decoder now, the frame is shown when resumed.
+            mCurPresentationTimeUs = timestamp;
+            if(notify)
+                onSeekComplete();
+            return timestamp;
         }
         // we can think that the seeking is atomical, so we set mCurPresentationTimeUs to target timestamp first
         // to make getCurrentPosition return right value
@@ -625,82 +1903,304 @@ public class FramePlayer {
             if(isDecoderReachEOS()){
                 restartDecoder();
             }else{
-                mDecoder.flush();
+                flushDecoder();
             }
 
         }else{
             //should forward seeking
-            if(isDecoderReachEOS()) // already reach EOS.
-                return;
+            if(isDecoderReachEOS()) // already reach EOS, the last frame stays on screen.
+                return lastFrameTime();
 
-            // only do forward seeking if the request timestamp advanced the presentation time of next key frame.
-            if(seekInterval > mEstimatedKeyframeInterval){
+            // only jump forward if the key frame of the target frame has not been fed to the decoder yet,
+            // otherwise decoding on from current position is cheaper.
+            if(mMediaInfo.sampleTable.getSyncSampleForTime(timestamp) > mDemuxer.getSampleIndex()){
                 extractorSeekTo(timestamp, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
-                mDecoder.flush();
+                flushDecoder();
             }
         }
 
-        int prevBufferIndex = -1; // hold the index of previous buffer.
-
-        while (canLoopContinue()){
-            putOneFrameToDecoder();
-            int bufferIndex = takeOneFrameFromDecoder();
-            if( bufferIndex >= 0 ) {
-                boolean seekCompleted = false;
-                // target frame is found.
-                synchronized (mObjForSeekSync){
-                    if (currentFrameIsTargetFrame(mCurFrameInfo.presentationTimeUs, mSeekTargetTimeUs)) {
-                        while (true) {
-                            PlayerMessage message = mCtrlMsgQueue.peek();
-                            if (message != null && message.messageType == MessageType.Seek
-                                    && message.content > mSeekTargetTimeUs){
-                                mCtrlMsgQueue.poll();
-                            }else{
-                                break;
-                            }
-                        }
-                        mCurPresentationTimeUs = mCurFrameInfo.presentationTimeUs;
-                        seekCompleted = true;
-                    }
+        startDecodeToTarget(timestamp, notify);
+        return SEEK_PENDING;
+    }
+    //region Decode jobs
+    /**
+     * Decode from the position of the demuxer until the target frame comes out, and render it.
+     */
+    private void startDecodeToTarget(long timestamp, boolean notify){
+        mDecodeJob = JOB_SEEK;
+        mJobTargetUs = timestamp;
+        mJobNotify = notify;
+        mJobSuperseded = false;
+        mJobPrevBufferIndex = -1; // hold the index of previous buffer.
+        // seeking speed is what matters to us, it's used to rank the decoders.
+        mJobStartNs = System.nanoTime();
+        mJobDecodedFrames = 0;
+        mJobStallBudgetNs = getStallBudgetNs(timestamp);
+        resetWatchdog();
+    }
+    private void stepDecodeJob(){
+        if(mDecodeJob == JOB_SEEK){
+            TraceSections.begin("FramePlayer.decodeToTarget");
+            try{
+                long shownUs = decodeToTargetStep();
+                if(shownUs != SEEK_PENDING){
+                    endDecodeJob(shownUs);
                 }
-                if(!seekCompleted){
-                    if(currentFrameIsTargetFrame(mCurFrameInfo.presentationTimeUs, timestamp)){
-                        mCurPresentationTimeUs = mCurFrameInfo.presentationTimeUs;
-                        seekCompleted = true;
-                    }else if(isDecoderReachEOS()){
-                        mCurPresentationTimeUs = mMediaInfo.durationUs;
-                        seekCompleted = true;
-                    }
+            }finally {
+                TraceSections.end();
+            }
+        }else{
+            TraceSections.begin(sCommandSections[MessageType.SeekSequence.ordinal()]);
+            try{
+                if(seekSequenceStep()){
+                    completeSequence();
+                    endDecodeJob(0);
                 }
-                if(seekCompleted){
-//                    onPositionUpdate(mCurPresentationTimeUs);
-
-                    // if client request to seek to EOS, then render surface will be black.
-                    // buffer one frame to make sure we can display the last frame to surface even reach EOS.
-                    if(prevBufferIndex != -1){
-                        if(isDecoderReachEOS()){
-                            mDecoder.releaseOutputBuffer(prevBufferIndex, true);
-                            mDecoder.releaseOutputBuffer(bufferIndex,false);
+            }finally {
+                TraceSections.end();
+            }
+        }
+    }
+    /**
+     * @param shownUs presentation time of the frame shown by a seek
+     */
+    private void endDecodeJob(long shownUs){
+        PlayerMessage message = mJobMessage;
+        mDecodeJob = JOB_NONE;
+        mJobMessage = null;
+        if(message == null){
+            mClockAnchorNs = 0; // started by the worker, e.g. playback recovering the decoder
+            return;
+        }
+        if(message.messageType == MessageType.Seek){
+            // the later seek completes with the frame when it's processed, it's on screen already.
+            completeSeek(message, mJobSuperseded ? SEEK_ABORTED : shownUs);
+        }else if(message.messageType == MessageType.Resume){
+            // a suspended player is never playing, it's paused after resumed.
+            changeStateTo(PlayerState.Paused);
+        }
+        finishMessage(message);
+    }
+    /**
+     * The player is stopping, complete the job without decoding.
+     */
+    private void abortDecodeJob(){
+        if(mDecodeJob == JOB_NONE){
+            return;
+        }
+        if(mDecodeJob == JOB_SEQUENCE){
+            completeSequence();
+        }
+        PlayerMessage message = mJobMessage;
+        mDecodeJob = JOB_NONE;
+        mJobMessage = null;
+        if(message != null){
+            if(message.messageType == MessageType.Seek){
+                completeSeek(message, SEEK_ABORTED);
+            }
+            finishMessage(message);
+        }
+    }
+    /**
+     * Decode one frame of a seek.
+     *
+     * @return see {@link #seekInternal(long, boolean)}
+     */
+    private long decodeToTargetStep(){
+        putOneFrameToDecoder();
+        int bufferIndex = takeOneFrameFromDecoder();
+        if( bufferIndex >= 0 ) {
+            mJobDecodedFrames++;
+            boolean seekCompleted = false;
+            // target frame is found.
+            synchronized (mObjForSeekSync){
+                if (currentFrameIsTargetFrame(mCurFrameInfo.presentationTimeUs, mSeekTargetTimeUs)) {
+                    while (true) {
+                        PlayerMessage message = peekMessage();
+                        if (message != null && message.messageType == MessageType.Seek
+                                && message.content > mSeekTargetTimeUs){
+                            discardMessage(pollMessage());
                         }else{
-                            mDecoder.releaseOutputBuffer(prevBufferIndex, false);
-                            mDecoder.releaseOutputBuffer(bufferIndex, true);
+                            break;
                         }
+                    }
+                    mCurPresentationTimeUs = mCurFrameInfo.presentationTimeUs;
+                    mJobSuperseded = mSeekTargetTimeUs != mJobTargetUs;
+                    seekCompleted = true;
+                }
+            }
+            if(!seekCompleted){
+                // frames come out in presentation order, passing the target means the target frame
+                // won't come out any more(dropped by decoder). take the first frame after it.
+                if(mCurFrameInfo.presentationTimeUs >= mJobTargetUs && !isDecoderReachEOS()){
+                    mCurPresentationTimeUs = mCurFrameInfo.presentationTimeUs;
+                    seekCompleted = true;
+                }else if(isDecoderReachEOS()){
+                    mCurPresentationTimeUs = mMediaInfo.durationUs;
+                    seekCompleted = true;
+                }
+            }
+            if(seekCompleted){
+//                onPositionUpdate(mCurPresentationTimeUs);
+                if(mJobDecodedFrames > 1){
+                    DecoderSelector.recordFrameTime(mDecoderName, mJobDecodedFrames, System.nanoTime() - mJobStartNs);
+                }
+
+                // if client request to seek to EOS, then render surface will be black.
+                // buffer one frame to make sure we can display the last frame to surface even reach EOS.
+                int prevBufferIndex = mJobPrevBufferIndex;
+                mJobPrevBufferIndex = -1;
+                if(prevBufferIndex != -1){
+                    if(isDecoderReachEOS()){
+                        mDecoder.releaseOutputBuffer(prevBufferIndex, true);
+                        mDecoder.releaseOutputBuffer(bufferIndex,false);
                     }else{
+                        mDecoder.releaseOutputBuffer(prevBufferIndex, false);
                         mDecoder.releaseOutputBuffer(bufferIndex, true);
                     }
+                }else{
+                    mDecoder.releaseOutputBuffer(bufferIndex, true);
+                }
 
-                    if(mOnSeekCompleteListener != null)
-                        mOnSeekCompleteListener.onSeekComplete(this);
-                    return;
+                long shownUs = isDecoderReachEOS() ? lastFrameTime() : mCurPresentationTimeUs;
+                onFramePresented(shownUs);
+                if(mJobNotify)
+                    onSeekComplete();
+                return shownUs;
+            }else{
+                // release previous buffer
+                if(mJobPrevBufferIndex != -1){
+                    mDecoder.releaseOutputBuffer(mJobPrevBufferIndex, false); // don't render to surface
+                }
+                mJobPrevBufferIndex = bufferIndex;
+            }
+        }else if(isDecoderStalled(mJobStallBudgetNs)){
+            mJobPrevBufferIndex = -1; // owned by the released decoder
+            if(!recoverDecoder(mJobTargetUs)){
+                return SEEK_ABORTED;
+            }
+        }
+        return SEEK_PENDING;
+    }
+    private void seekSequenceInternal(SeekSequenceRequest request){
+        long[] requestedUs = request.timesUs;
+        int count = requestedUs.length;
+        long[] targetsUs = new long[count];
+        for(int i = 0; i < count; i++){
+            targetsUs[i] = toFrameTime(mMediaInfo, requestedUs[i]);
+        }
+        int next = 0;
+        // requests of the frame on screen are delivered without decoding.
+        long shownUs = mCurPresentationTimeUs;
+        if(!isDecoderReachEOS() && mCurFrameInfo.presentationTimeUs == shownUs){
+            int frameIndex = mMediaInfo.ptsTable.indexOf(shownUs);
+            while(next < count && targetsUs[next] == shownUs){
+                request.callback.onFrame(this, requestedUs[next], shownUs, frameIndex);
+                next++;
+            }
+        }
+        mSequenceRequest = request;
+        mSequenceTargetsUs = targetsUs;
+        mSequenceNext = next;
+        mSequenceNeedPosition = true;
+        mJobPrevBufferIndex = -1;
+        if(next == count){
+            completeSequence();
+            return;
+        }
+        mDecodeJob = JOB_SEQUENCE;
+    }
+    /**
+     * Decode one frame of a seek sequence.
+     *
+     * @return true if the sequence is done
+     */
+    private boolean seekSequenceStep(){
+        SeekSequenceRequest request = mSequenceRequest;
+        long[] requestedUs = request.timesUs;
+        long[] targetsUs = mSequenceTargetsUs;
+        int count = targetsUs.length;
+        if(mSequenceNeedPosition){
+            // a group is decoded from its key frame only if it hasn't been fed to the decoder,
+            // or the decoder has passed the target already.
+            long decodedUs = mCurFrameInfo.presentationTimeUs;
+            long targetUs = targetsUs[mSequenceNext];
+            if(targetUs < decodedUs || isDecoderReachEOS()
+                    || mMediaInfo.sampleTable.getSyncSampleForTime(targetUs) > mDemuxer.getSampleIndex()){
+                extractorSeekTo(targetUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                if(isDecoderReachEOS()){
+                    restartDecoder();
+                    mCurFrameInfo = new BufferInfo();
                 }else{
-                    // release previous buffer
-                    if(prevBufferIndex != -1){
-                        mDecoder.releaseOutputBuffer(prevBufferIndex, false); // don't render to surface
-                    }
-                    prevBufferIndex = bufferIndex;
+                    flushDecoder();
                 }
             }
+            mSequenceNeedPosition = false;
+            resetWatchdog();
+        }
+
+        putOneFrameToDecoder();
+        int bufferIndex = takeOneFrameFromDecoder();
+        if(bufferIndex < 0){
+            if(isDecoderStalled(getStallBudgetNs(targetsUs[mSequenceNext]))){
+                mJobPrevBufferIndex = -1; // owned by the released decoder
+                return !recoverDecoder(targetsUs[mSequenceNext]);
+            }
+            return false;
+        }
+        boolean reachEOS = isDecoderReachEOS();
+        long presentationTimeUs = mCurFrameInfo.presentationTimeUs;
+        int prevBufferIndex = mJobPrevBufferIndex;
+        if(!reachEOS && presentationTimeUs < targetsUs[mSequenceNext]){
+            // hold the frame, it's the last one if the stream ends before the target.
+            if(prevBufferIndex != -1){
+                mDecoder.releaseOutputBuffer(prevBufferIndex, false);
+            }
+            mJobPrevBufferIndex = bufferIndex;
+            mJobPrevTimeUs = presentationTimeUs;
+            return false;
+        }
+        mJobPrevBufferIndex = -1;
+        if(reachEOS){
+            // the buffer of the end of stream may hold no frame, show the last frame decoded before it.
+            mDecoder.releaseOutputBuffer(bufferIndex, false);
+            if(prevBufferIndex != -1){
+                mDecoder.releaseOutputBuffer(prevBufferIndex, true);
+                presentationTimeUs = mJobPrevTimeUs;
+            }else{
+                presentationTimeUs = mCurPresentationTimeUs >= 0 ? mCurPresentationTimeUs : lastFrameTime();
+            }
+        }else{
+            // frames come out in presentation order, a frame after the target means the target was dropped
+            // by the decoder, deliver the frame after it instead.
+            if(prevBufferIndex != -1){
+                mDecoder.releaseOutputBuffer(prevBufferIndex, false);
+            }
+            mDecoder.releaseOutputBuffer(bufferIndex, true);
+        }
+        mCurPresentationTimeUs = presentationTimeUs;
+        onFramePresented(presentationTimeUs);
+        int frameIndex = mMediaInfo.ptsTable.indexOf(presentationTimeUs);
+        while(mSequenceNext < count && (reachEOS || targetsUs[mSequenceNext] <= presentationTimeUs)){
+            request.callback.onFrame(this, requestedUs[mSequenceNext], presentationTimeUs, frameIndex);
+            mSequenceNext++;
         }
+        mSequenceNeedPosition = true;
+        return mSequenceNext == count;
+    }
+    private void completeSequence(){
+        SeekSequenceRequest request = mSequenceRequest;
+        mSequenceRequest = null;
+        mSequenceTargetsUs = null;
+        if(mSequenceNext > 0){
+            onPositionUpdate(mCurPresentationTimeUs);
+        }
+        request.callback.onSequenceComplete(this, mSequenceNext == request.timesUs.length);
+    }
+    //endregion
+    private long lastFrameTime(){
+        PtsTable ptsTable = mMediaInfo.ptsTable;
+        return ptsTable.timeAt(ptsTable.size() - 1);
     }
     private void pauseInternal(){
         changeStateTo(PlayerState.Paused);
@@ -714,6 +2214,110 @@ public class FramePlayer {
         }
         changeStateTo(PlayerState.Started);
     }
+    private void suspendInternal(boolean releaseDecoder){
+        if(mDecoder != null){
+            // keep the decoder if its output can be moved away from the surface that's going to be destroyed.
+            if(!releaseDecoder && !mIsSurfaceDetached
+                    && !isDecoderReachEOS() && trySetOutputSurface(getPlaceholderSurface())){
+                flushDecoder();
+            }else{
+                mPrefetchedFrames.clear();
+                mDecoder.stop();
+                mDecoder.release();
+                mDecoder = null;
+            }
+        }
+        mSurface = null;
+        mIsSurfaceDetached = true;
+        changeStateTo(PlayerState.Suspended);
+    }
+    private void resumeInternal(Surface surface){
+        mSurface = surface;
+        mIsSurfaceDetached = false;
+        if(!trySetOutputSurface(surface)){
+            restartDecoder();
+        }
+        // a suspended player is never playing, it's paused after resumed, or after the frame is decoded.
+        if(redecodeFrame(mCurPresentationTimeUs, false) != SEEK_PENDING){
+            changeStateTo(PlayerState.Paused);
+        }
+    }
+    /**
+     * Decode the frame at a position again, after the decoder was away from the surface.
+     *
+     * @return see {@link #seekInternal(long, boolean)}
+     */
+    private long redecodeFrame(long target, boolean notify){
+        mCurFrameInfo = new BufferInfo();
+        mCurPresentationTimeUs = Integer.MIN_VALUE;
+        flushDecoder();
+        if(target < 0){
+            extractorSeekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+            return target;
+        }
+        target = mMediaInfo.ptsTable.frameTimeAt(target);
+        synchronized (mObjForSeekSync){
+            mSeekTargetTimeUs = target;
+        }
+        extractorSeekTo(target, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        return seekInternal(target, notify);
+    }
+    private void beginScrubInternal(){
+        if(mScrubber != null || mSourceFd != null || mIsSurfaceDetached
+                || PlayerStateWord.committedOf(mState.get()) == PlayerState.Started || !ProxyGenerator.hasProxy(mSource)){
+            return;
+        }
+        // the proxy decoder takes the surface and the place of the clip decoder in the decoder budget,
+        // see FramePlayerPool. The clip decoder is created again when scrubbing ends.
+        if(mDecoder != null){
+            mPrefetchedFrames.clear();
+            mDecoder.stop();
+            mDecoder.release();
+            mDecoder = null;
+        }
+        ProxyScrubber scrubber = new ProxyScrubber();
+        if(scrubber.open(ProxyGenerator.getProxyPath(mSource), mSurface)){
+            mScrubber = scrubber;
+        }else{
+            reattachDecoder();
+        }
+    }
+    private void endScrubInternal(){
+        if(mScrubber == null){
+            return;
+        }
+        mScrubber.release(); // disconnects from the surface
+        mScrubber = null;
+        reattachDecoder();
+    }
+    private void reattachDecoder(){
+        reattachDecoder(mCurPresentationTimeUs, false);
+    }
+    /**
+     * @return see {@link #seekInternal(long, boolean)}
+     */
+    private long reattachDecoder(long target, boolean notify){
+        if(!trySetOutputSurface(mSurface)){
+            restartDecoder();
+        }
+        return redecodeFrame(target, notify);
+    }
+    /**
+     * @return presentation time of the proxy frame shown
+     */
+    private long scrubSeekInternal(long timestamp){
+        long proxyTimeUs = mScrubber.seekTo(timestamp);
+        if(proxyTimeUs < 0){
+            Log.w(TAG, "Proxy failed, scrub on the clip.");
+            mScrubber.release();
+            mScrubber = null;
+            return reattachDecoder(timestamp, true);
+        }
+        mCurPresentationTimeUs = mMediaInfo.ptsTable.frameTimeAt(proxyTimeUs);
+        onFramePresented(mCurPresentationTimeUs);
+        onSeekComplete();
+        return mCurPresentationTimeUs;
+    }
     private void stopInternal(){
         stopComponent();
         changeStateTo(PlayerState.Stopped);
@@ -729,45 +2333,154 @@ public class FramePlayer {
     }
     private void stopComponent(){
         mIsStopPlayback = true;
-        if(mPrepareThread != null){
-            mPrepareThread.interrupt();
-        }
-        if(mWorkerThread != null){
-            mWorkerThread.interrupt();
-        }
+        mPendingFrameIndex = -1;
+        mPrefetchedFrames.clear();
         if(mDecoder!=null) {
             mDecoder.stop();
             mDecoder.release();
             mDecoder = null;
         }
-        if(mExtractor!=null){
-            mExtractor.release();
-            mExtractor = null;
+        if(mScrubber != null){
+            mScrubber.release();
+            mScrubber = null;
+        }
+        mDemuxer = null;
+        mFragmentIndexer = null;
+        releasePlaceholderSurface();
+        mIsSurfaceDetached = false;
+        if(mDataSource != null){
+            try {
+                mDataSource.close();
+            }catch (IOException ex){} // safe ignore
+            mDataSource = null;
+        }
+        // wake up the callers that wait for the dropped messages.
+        PlayerMessage pending;
+        while((pending = mCtrlMsgQueue.poll()) != null){
+            discardMessage(pending);
         }
-        mCtrlMsgQueue.clear();
         mMediaInfo = null;
     }
     private void resetStuff(){
         mSource = "";
+        mSourceFd = null;
         mOnCompletionListener = null;
         mOnSeekCompleteListener = null;
         mOnErrorListener = null;
     }
-    private void waitAllBGThreadsExit(){
-        try{
-            if(mPrepareThread !=null){
-                mPrepareThread.join();
-                mPrepareThread = null;
-                Log.d(TAG, "[FramePlayer]: prepare thread join done.");
+    //region Lifecycle tasks
+    /**
+     * @return the state after all accepted commands are executed.
+     */
+    private PlayerState getExpectedState(){
+        return PlayerStateWord.targetOf(mState.get());
+    }
+    /**
+     * Run a lifecycle operation now, or after the pending teardown if there is one.
+     */
+    private void runAfterTeardown(Runnable task){
+        synchronized (mLifecycleTasks){
+            if(mIsLifecycleThreadRunning){
+                mLifecycleTasks.add(task);
+                return;
             }
-        }catch (Exception ex){}
+        }
+        task.run();
+    }
+    private void enqueueLifecycleTask(Runnable task){
+        synchronized (mLifecycleTasks){
+            mLifecycleTasks.add(task);
+            if(mIsLifecycleThreadRunning){
+                return;
+            }
+            mIsLifecycleThreadRunning = true;
+        }
+        PlayerScheduler.getInstance().runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                while(true){
+                    Runnable next;
+                    synchronized (mLifecycleTasks){
+                        next = mLifecycleTasks.poll();
+                        if(next == null){
+                            mIsLifecycleThreadRunning = false;
+                            mLifecycleTasks.notifyAll();
+                            return;
+                        }
+                    }
+                    next.run();
+                }
+            }
+        });
+    }
+    private void waitLifecycleTasksDone(){
+        synchronized (mLifecycleTasks){
+            boolean interrupted = false;
+            while(mIsLifecycleThreadRunning){
+                try{
+                    mLifecycleTasks.wait();
+                }catch (InterruptedException ie){
+                    interrupted = true;
+                }
+            }
+            if(interrupted){
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    /**
+     * Post a teardown message to the worker, then wait in background until the prepare task and the worker exit.
+     *
+     * @param messageType null if there is nothing to tear down, the future completes after the queued tasks.
+     */
+    private PlayerFuture<Void> teardownAsync(final MessageType messageType){
+        final PlayerFuture<Void> future = new PlayerFuture<Void>();
+        if(messageType == null){
+            synchronized (mLifecycleTasks){
+                if(!mIsLifecycleThreadRunning){
+                    future.complete(null);
+                    return future;
+                }
+            }
+        }
+        enqueueLifecycleTask(new Runnable() {
+            @Override
+            public void run() {
+                if(messageType != null){
+                    PlayerMessage message = new PlayerMessage();
+                    message.messageType = messageType;
+                    pushMessage(message);
+                    waitWorkersExit();
+                    // no worker handled it(not prepared, or prepare failed), handle it here.
+                    if(!message.handled){
+                        mCtrlMsgQueue.remove(message);
+                        processMessage(message);
+                    }
+                }
+                future.complete(null);
+            }
+        });
+        return future;
+    }
+    private void waitWorkersExit(){
         try{
-            mWorkerThread.join();
-            mWorkerThread = null;
-            Log.d(TAG, "[FramePlayer]: worker thread join done.");
+            // a running prepare task starts the worker, wait for it first.
+            Future<?> prepareTask = mPrepareTask;
+            if(prepareTask != null){
+                prepareTask.get();
+                mPrepareTask = null;
+                Log.d(TAG, "[FramePlayer]: prepare task done.");
+            }
         }catch (Exception ex){}
+        PlayerScheduler.Worker worker = mWorker;
+        if(worker != null){
+            worker.awaitExit();
+            mWorker = null;
+            Log.d(TAG, "[FramePlayer]: worker exited.");
+        }
     }
     //endregion
+    //endregion
 
 }
 
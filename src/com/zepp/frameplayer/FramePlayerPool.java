@@ -0,0 +1,181 @@
+package com.zepp.frameplayer;
+
+import android.util.Log;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pool of {@link FramePlayer}s shared by many views, e.g. the rows of a scrolling feed.
+ *
+ * Players are recycled instead of created for every clip, and the number of players holding a decoder
+ * is capped by a budget, hardware decoders are a scarce resource. When a player needs a decoder and the
+ * budget is used up, the least recently visible player is evicted: its owner is asked to release the
+ * decoder, e.g. by {@link FramePlayer#suspendAsync(boolean)}, and restores it when the player is used again.
+ * Eviction doesn't wait, the requesting player is prepared or resumed once the evicted ones let go.
+ */
+public final class FramePlayerPool {
+    private static final String TAG = "FramePlayerPool";
+
+    public interface Owner
+    {
+        /**
+         * The player has to give up its decoder, called on the thread that requested a decoder. Must not block.
+         *
+         * @return completes when the decoder is released, null if it's released already
+         */
+        PlayerFuture<Void> onEvicted(FramePlayer player);
+    }
+
+    // players holding a decoder, access ordered: the eldest is the least recently visible one.
+    private final LinkedHashMap<FramePlayer, Owner> mActivePlayers = new LinkedHashMap<FramePlayer, Owner>(16, 0.75f, true);
+    private final LinkedList<FramePlayer> mIdlePlayers = new LinkedList<FramePlayer>();
+    private int mDecoderBudget;
+    private int mMaxIdlePlayers;
+
+    /**
+     * @param decoderBudget the maximum number of players holding a decoder at the same time
+     * @param maxIdlePlayers the maximum number of reset players kept for reuse
+     */
+    public FramePlayerPool(int decoderBudget, int maxIdlePlayers){
+        if(decoderBudget <= 0 || maxIdlePlayers < 0){
+            throw new IllegalArgumentException("Invalid budget.");
+        }
+        mDecoderBudget = decoderBudget;
+        mMaxIdlePlayers = maxIdlePlayers;
+    }
+
+    /**
+     * @return an idle player, the player is in Idle state.
+     */
+    public FramePlayer acquire(){
+        synchronized (this){
+            FramePlayer player = mIdlePlayers.poll();
+            if(player != null){
+                return player;
+            }
+        }
+        return new FramePlayer();
+    }
+
+    /**
+     * Give a player back to the pool, it's reset in background and reused later without the listeners,
+     * surface and settings of the caller. The caller must not use the player any more.
+     *
+     * @return completes when the player released its decoder and surface
+     */
+    public PlayerFuture<Void> recycle(final FramePlayer player){
+        releaseDecoder(player);
+        PlayerFuture<Void> reset = player.resetAsync();
+        reset.addListener(new PlayerFuture.OnCompleteListener<Void>() {
+            @Override
+            public void onComplete(PlayerFuture<Void> future) {
+                player.clearSettings();
+                synchronized (FramePlayerPool.this){
+                    if(mIdlePlayers.size() < mMaxIdlePlayers){
+                        mIdlePlayers.add(player);
+                        return;
+                    }
+                }
+                player.releaseAsync();
+            }
+        });
+        return reset;
+    }
+
+    /**
+     * Reserve a decoder for the player before it's prepared or resumed. Players over the budget are
+     * evicted, least recently visible first.
+     *
+     * @return completes when the evicted players released their decoders, pass it to
+     *         {@link FramePlayer#prepareAsync(PlayerFuture)} or {@link FramePlayer#resume(android.view.Surface, PlayerFuture)}
+     */
+    public PlayerFuture<Void> requestDecoder(FramePlayer player, Owner owner){
+        List<Map.Entry<FramePlayer, Owner>> evicted;
+        synchronized (this){
+            mActivePlayers.put(player, owner);
+            evicted = trimToBudget();
+        }
+        return evict(evicted);
+    }
+
+    /**
+     * The player doesn't hold a decoder any more, e.g. it's suspended or released by its owner.
+     */
+    public synchronized void releaseDecoder(FramePlayer player){
+        mActivePlayers.remove(player);
+    }
+
+    /**
+     * Mark the player as the most recently visible one, it's evicted last.
+     */
+    public synchronized void touch(FramePlayer player){
+        mActivePlayers.get(player);
+    }
+
+    public synchronized boolean holdsDecoder(FramePlayer player){
+        return mActivePlayers.containsKey(player);
+    }
+
+    /**
+     * @return completes when the evicted players released their decoders
+     */
+    public PlayerFuture<Void> setDecoderBudget(int decoderBudget){
+        if(decoderBudget <= 0){
+            throw new IllegalArgumentException("Invalid budget.");
+        }
+        List<Map.Entry<FramePlayer, Owner>> evicted;
+        synchronized (this){
+            mDecoderBudget = decoderBudget;
+            evicted = trimToBudget();
+        }
+        return evict(evicted);
+    }
+
+    public synchronized int getActiveDecoderCount(){
+        return mActivePlayers.size();
+    }
+
+    /**
+     * Release the idle players.
+     */
+    public void clear(){
+        List<FramePlayer> idlePlayers;
+        synchronized (this){
+            idlePlayers = new ArrayList<FramePlayer>(mIdlePlayers);
+            mIdlePlayers.clear();
+        }
+        for(FramePlayer player : idlePlayers){
+            player.releaseAsync();
+        }
+    }
+
+    private List<Map.Entry<FramePlayer, Owner>> trimToBudget(){
+        List<Map.Entry<FramePlayer, Owner>> evicted = new ArrayList<Map.Entry<FramePlayer, Owner>>();
+        Iterator<Map.Entry<FramePlayer, Owner>> iterator = mActivePlayers.entrySet().iterator();
+        while(mActivePlayers.size() > mDecoderBudget && iterator.hasNext()){
+            evicted.add(new AbstractMap.SimpleEntry<FramePlayer, Owner>(iterator.next()));
+            iterator.remove();
+        }
+        return evicted;
+    }
+
+    // owners are called without holding the lock, they may call back into the pool.
+    private PlayerFuture<Void> evict(List<Map.Entry<FramePlayer, Owner>> evicted){
+        List<PlayerFuture<Void>> released = new ArrayList<PlayerFuture<Void>>(evicted.size());
+        for(Map.Entry<FramePlayer, Owner> entry : evicted){
+            Log.d(TAG, "Evict player " + entry.getKey());
+            try{
+                released.add(entry.getValue().onEvicted(entry.getKey()));
+            }catch (Exception ex){
+                Log.w(TAG, "Failed to evict player: " + ex);
+            }
+        }
+        return PlayerFuture.whenAll(released);
+    }
+}
@@ -5,6 +5,9 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -18,6 +21,8 @@ import android.view.accessibility.AccessibilityNodeInfo;
 import android.widget.MediaController;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 
 public class FramePlayerView extends TextureView implements MediaController.MediaPlayerControl {
@@ -61,6 +66,12 @@ public class FramePlayerView extends TextureView implements MediaController.Medi
     private Context mContext;
     private String mFilePath;
 
+    private FramePlayerPool mPlayerPool;
+    private Bitmap mPosterFrame;    // last frame shown while the player is evicted from the pool
+    private boolean mEvicted;
+    // teardown of the last player, the next one connects to the surface after it.
+    private PlayerFuture<Void> mPreviousTeardown;
+
     public FramePlayerView(Context context) {
         super(context);
         initVideoView();
@@ -108,15 +119,25 @@ public class FramePlayerView extends TextureView implements MediaController.Medi
         invalidate();
     }
 
+    /**
+     * Take players from the pool instead of creating them, the pool limits the number of decoders
+     * of all the views sharing it. Set it before {@link #setVideoPath(String)}.
+     */
+    public void setPlayerPool(FramePlayerPool pool) {
+        mPlayerPool = pool;
+    }
+
     public void release() {
         try{
             if (mFramePlayer != null) {
-                mFramePlayer.release();
+                recyclePlayer();
             }
         }catch(Exception ex){
             Log.d(TAG, "Encounter exception when stop player: " + ex.getMessage());
         }
         mFramePlayer = null;
+        mPosterFrame = null;
+        mEvicted = false;
         mCurrentState = STATE_IDLE;
         mTargetState  = STATE_IDLE;
         mVideoRotation = 0;
@@ -144,7 +165,7 @@ public class FramePlayerView extends TextureView implements MediaController.Medi
         // called start() previously
         release(false);
         try {
-            mFramePlayer = new FramePlayer();
+            mFramePlayer = mPlayerPool != null ? mPlayerPool.acquire() : new FramePlayer();
 
             mFramePlayer.setOnPositionUpdateListener(mPositionUpdateListener);
             mFramePlayer.setOnVideoSizeChangedListener(mSizeChangedListener);
@@ -154,7 +175,14 @@ public class FramePlayerView extends TextureView implements MediaController.Medi
 
             mFramePlayer.setDataSource(mFilePath);
             mFramePlayer.setSurface(mSurface);
-            mFramePlayer.prepareAsync();
+            // the surface and the decoder budget have to be let go of first.
+            List<PlayerFuture<Void>> released = new ArrayList<PlayerFuture<Void>>(2);
+            released.add(mPreviousTeardown);
+            mPreviousTeardown = null;
+            if (mPlayerPool != null) {
+                released.add(mPlayerPool.requestDecoder(mFramePlayer, mPoolOwner));
+            }
+            mFramePlayer.prepareAsync(PlayerFuture.whenAll(released));
 
             // we don't set the target state here either, but preserve the
             // target state that was there before.
@@ -533,7 +561,14 @@ public class FramePlayerView extends TextureView implements MediaController.Medi
             mSurface = new Surface(surface);
             mSurfaceWidth = width;
             mSurfaceHeight = height;
-            openVideo();
+            if (isSuspended() && mEvicted && mPosterFrame != null && mTargetState != STATE_PLAYING) {
+                // scrolled back into view, show the poster until the player is used again.
+                drawPosterFrame();
+            } else if (isSuspended()) {
+                resumePlayer();
+            } else {
+                openVideo();
+            }
         }
 
         @Override
@@ -542,7 +577,18 @@ public class FramePlayerView extends TextureView implements MediaController.Medi
             Log.i(TAG, "onSurfaceTextureDestroyed");
             mSurface = null;
             if (mMediaController != null) mMediaController.hide();
-            release(true);
+            // keep the prepared player, so coming back doesn't need to prepare again.
+            if (isInPlaybackState() || isSuspended()) {
+                suspendPlayer();
+            } else {
+                // a preparing player may be configuring its decoder with the surface, wait for it.
+                if (mFramePlayer != null && mPlayerPool != null) {
+                    mFramePlayer.reset();
+                } else if (mFramePlayer != null) {
+                    mFramePlayer.release();
+                }
+                release(true);
+            }
             return true;
         }
         @Override
@@ -573,8 +619,11 @@ public class FramePlayerView extends TextureView implements MediaController.Medi
      */
     private void release(boolean cleartargetstate) {
         if (mFramePlayer != null) {
-            mFramePlayer.release();
+            // don't block the UI thread, the player is torn down in background.
+            recyclePlayer();
             mFramePlayer = null;
+            mPosterFrame = null;
+            mEvicted = false;
             mCurrentState = STATE_IDLE;
             if (cleartargetstate) {
                 mTargetState  = STATE_IDLE;
@@ -582,6 +631,14 @@ public class FramePlayerView extends TextureView implements MediaController.Medi
         }
     }
 
+    private void recyclePlayer() {
+        if (mPlayerPool != null) {
+            mPreviousTeardown = mPlayerPool.recycle(mFramePlayer);
+        } else {
+            mPreviousTeardown = mFramePlayer.releaseAsync();
+        }
+    }
+
     @Override
     public boolean onTouchEvent(MotionEvent ev) {
         if (isInPlaybackState() && mMediaController != null) {
@@ -650,11 +707,19 @@ public class FramePlayerView extends TextureView implements MediaController.Medi
 
     @Override
     public void start() {
+        mTargetState = STATE_PLAYING;
+        if (isSuspended()) {
+            // an evicted player showing its poster gets its decoder back.
+            if (mEvicted && mSurface != null) {
+                resumePlayer();
+            }
+            return;
+        }
         if (isInPlaybackState()) {
+            touchPlayer();
             mFramePlayer.start();
             mCurrentState = STATE_PLAYING;
         }
-        mTargetState = STATE_PLAYING;
     }
 
     @Override
@@ -668,14 +733,115 @@ public class FramePlayerView extends TextureView implements MediaController.Medi
         mTargetState = STATE_PAUSED;
     }
 
+    /**
+     * Release the decoder but keep the prepared player and its position, see {@link FramePlayer#suspend()}.
+     */
     public void suspend() {
-        release(false);
+        if (isInPlaybackState()) {
+            suspendPlayer();
+        } else {
+            release(false);
+        }
     }
 
     public void resume() {
-        openVideo();
+        if (isSuspended()) {
+            if (mSurface != null) {
+                resumePlayer();
+            }
+            // otherwise resumed when the surface is available.
+        } else {
+            openVideo();
+        }
+    }
+
+    private boolean isSuspended() {
+        return mFramePlayer != null && mFramePlayer.isSuspended();
+    }
+
+    private void suspendPlayer() {
+        try {
+            if (mPlayerPool != null) {
+                // an invisible view gives its decoder back to the pool.
+                mFramePlayer.suspend(true);
+                mPlayerPool.releaseDecoder(mFramePlayer);
+            } else {
+                mFramePlayer.suspend();
+            }
+            if (mCurrentState == STATE_PLAYING) {
+                mCurrentState = STATE_PAUSED;
+            }
+        } catch (IllegalStateException ex) {
+            Log.d(TAG, "Cannot suspend player: " + ex.getMessage());
+            release(false);
+        }
+    }
+
+    private void resumePlayer() {
+        PlayerFuture<Void> released = null;
+        if (mPlayerPool != null) {
+            released = mPlayerPool.requestDecoder(mFramePlayer, mPoolOwner);
+        }
+        mEvicted = false;
+        mPosterFrame = null;
+        mFramePlayer.resume(mSurface, released);
+        if (mTargetState == STATE_PLAYING) {
+            start();
+        }
+    }
+
+    private void touchPlayer() {
+        if (mPlayerPool != null) {
+            mPlayerPool.touch(mFramePlayer);
+        }
+    }
+
+    /**
+     * Draw the poster on the view, the decoder isn't attached to the surface while evicted.
+     */
+    private void drawPosterFrame() {
+        try {
+            Canvas canvas = mSurface.lockCanvas(null);
+            try {
+                canvas.drawBitmap(mPosterFrame, null, new Rect(0, 0, mSurfaceWidth, mSurfaceHeight), null);
+            } finally {
+                mSurface.unlockCanvasAndPost(canvas);
+            }
+        } catch (Exception ex) {
+            Log.d(TAG, "Cannot draw poster frame: " + ex.getMessage());
+        }
     }
 
+    private final FramePlayerPool.Owner mPoolOwner = new FramePlayerPool.Owner() {
+        @Override
+        public PlayerFuture<Void> onEvicted(FramePlayer player) {
+            if (player != mFramePlayer) {
+                return null;
+            }
+            Log.d(TAG, "Evicted from player pool");
+            if (isInPlaybackState() || isSuspended()) {
+                if (mSurface != null) {
+                    mPosterFrame = getBitmap();
+                }
+                mEvicted = true;
+                try {
+                    // called on the UI thread, the decoder is released in background.
+                    PlayerFuture<Void> suspended = mFramePlayer.suspendAsync(true);
+                    if (mCurrentState == STATE_PLAYING) {
+                        mCurrentState = STATE_PAUSED;
+                        mTargetState = STATE_PAUSED;
+                    }
+                    return suspended;
+                } catch (IllegalStateException ex) {
+                    Log.d(TAG, "Cannot suspend player: " + ex.getMessage());
+                }
+            }
+            // still preparing, open it again when it's visible.
+            release(false);
+            return mPreviousTeardown;
+        }
+    };
+
     @Override
     public int getDuration() {
         if (isInPlaybackState()) {
@@ -708,12 +874,26 @@ public class FramePlayerView extends TextureView implements MediaController.Medi
     @Override
     public void seekTo(int msec) {
         if (isInPlaybackState()) {
+            touchPlayer();
             mFramePlayer.seekTo(msec);
             mSeekWhenPrepared = 0;
         } else {
             mSeekWhenPrepared = msec;
         }
     }
+    /**
+     * See {@link FramePlayer#beginScrub()}.
+     */
+    public void beginScrub() {
+        if (isInPlaybackState() && !isSuspended()) {
+            mFramePlayer.beginScrub();
+        }
+    }
+    public void endScrub() {
+        if (isInPlaybackState()) {
+            mFramePlayer.endScrub();
+        }
+    }
     public void seekToWithoutCallback(int msec) {
         if (isInPlaybackState()) {
             mFramePlayer.seekToWithoutCallback(msec);
@@ -0,0 +1,217 @@
+package com.zepp.frameplayer;
+
+import com.googlecode.mp4parser.DataSource;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Read-only data source backed by a memory-mapped region of a file.
+ *
+ * The region can be a whole file or a slice of a larger container (asset pack, bundle...).
+ * One mapping is shared by the metadata parser and the sample reader, so a clip is read
+ * from disk only once and samples are handed out as zero-copy slices of the mapping.
+ * A region that reaches the end of a file being written can be extended with {@link #remap()}.
+ * A single mapping is limited to 2 GB, so larger regions are mapped as consecutive windows.
+ */
+public class MappedDataSource implements DataSource {
+    private static final int PAGE_SIZE = 4096;
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    private final FileInputStream mStream;
+    private final boolean mOwnsStream;
+    private final long mOffset;
+    private final boolean mFollowsEnd; // the region ends with the file, it grows with the file
+    private volatile long mLength;
+    private volatile MappedByteBuffer[] mWindows;
+    private long mPosition;
+
+    private MappedDataSource(FileInputStream stream, boolean ownsStream, long offset, long length) throws IOException {
+        FileChannel channel = stream.getChannel();
+        long fileSize = channel.size();
+        if(offset < 0 || offset > fileSize){
+            throw new IOException("Offset is out of file range.");
+        }
+        // a negative or oversize length means "up to the end of file", same as MediaExtractor does.
+        mFollowsEnd = length < 0 || offset + length >= fileSize;
+        if(mFollowsEnd){
+            length = fileSize - offset;
+        }
+        mStream = stream;
+        mOwnsStream = ownsStream;
+        mOffset = offset;
+        mLength = length;
+        mWindows = mapWindows(channel, null, length);
+    }
+
+    /**
+     * Map the region as windows of {@link #WINDOW_SIZE}, the last one is partial.
+     * Full windows of a previous mapping are kept, only the tail is mapped again.
+     */
+    private MappedByteBuffer[] mapWindows(FileChannel channel, MappedByteBuffer[] previous, long length)
+            throws IOException {
+        int count = (int)Math.max(1, (length + WINDOW_SIZE - 1) / WINDOW_SIZE);
+        MappedByteBuffer[] windows = new MappedByteBuffer[count];
+        for(int i = 0; i < count; i++){
+            long start = i * WINDOW_SIZE;
+            long size = Math.min(WINDOW_SIZE, length - start);
+            if(previous != null && i < previous.length && previous[i].capacity() == size){
+                windows[i] = previous[i];
+            }else{
+                windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, mOffset + start, size);
+            }
+        }
+        return windows;
+    }
+
+    public static MappedDataSource open(String path) throws IOException {
+        File file = new File(path);
+        FileInputStream stream = new FileInputStream(file);
+        try{
+            return new MappedDataSource(stream, true, 0, file.length());
+        }catch (IOException e){
+            stream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Map a region of an opened file. The caller keeps the ownership of the file descriptor,
+     * it is not closed by {@link #close()}.
+     */
+    public static MappedDataSource open(FileDescriptor fd, long offset, long length) throws IOException {
+        return new MappedDataSource(new FileInputStream(fd), false, offset, length);
+    }
+
+    public FileDescriptor getFileDescriptor() throws IOException {
+        return mStream.getFD();
+    }
+    public long getOffset(){
+        return mOffset;
+    }
+    public long getLength(){
+        return mLength;
+    }
+
+    /**
+     * Map the region again if the file grew since it was mapped, e.g. a clip still being recorded.
+     * Slices handed out before stay valid, they keep the old mapping.
+     *
+     * @return true if the region grew
+     */
+    public synchronized boolean remap() throws IOException {
+        if(!mFollowsEnd){
+            return false;
+        }
+        FileChannel channel = mStream.getChannel();
+        long length = channel.size() - mOffset;
+        if(length <= mLength){
+            return false;
+        }
+        mWindows = mapWindows(channel, mWindows, length);
+        mLength = length;
+        return true;
+    }
+
+    /**
+     * Get a zero-copy view of the mapping. A range across two windows, rare as they are 1 GB each,
+     * is copied into a heap buffer instead.
+     *
+     * @param position relative to the start of the mapped region
+     * @param size bytes of the view
+     */
+    public ByteBuffer slice(long position, int size){
+        MappedByteBuffer[] windows = mWindows;
+        int index = (int)(position / WINDOW_SIZE);
+        int start = (int)(position - index * WINDOW_SIZE);
+        if(start + size <= windows[index].capacity()){
+            ByteBuffer slice = windows[index].duplicate();
+            slice.clear();
+            slice.limit(start + size);
+            slice.position(start);
+            return slice.slice();
+        }
+        ByteBuffer copy = ByteBuffer.allocate(size);
+        while(copy.hasRemaining()){
+            ByteBuffer window = windows[index++].duplicate();
+            window.clear();
+            window.position(start);
+            window.limit(Math.min(window.capacity(), start + copy.remaining()));
+            copy.put(window);
+            start = 0;
+        }
+        copy.flip();
+        return copy;
+    }
+
+    /**
+     * Fault in the pages of a region, so reading it later doesn't wait for the disk.
+     *
+     * @param position relative to the start of the mapped region
+     * @param size bytes of the region
+     */
+    public void touch(long position, long size){
+        MappedByteBuffer[] windows = mWindows;
+        int last = windows.length - 1;
+        long end = Math.min(position + size, last * WINDOW_SIZE + windows[last].capacity());
+        for(long i = Math.max(position, 0); i < end; i += PAGE_SIZE){
+            int index = (int)(i / WINDOW_SIZE);
+            windows[index].get((int)(i - index * WINDOW_SIZE));
+        }
+    }
+
+    //region DataSource
+    @Override
+    public synchronized int read(ByteBuffer byteBuffer) throws IOException {
+        if(mPosition >= mLength){
+            return -1;
+        }
+        int count = (int)Math.min(byteBuffer.remaining(), mLength - mPosition);
+        byteBuffer.put(slice(mPosition, count));
+        mPosition += count;
+        return count;
+    }
+
+    @Override
+    public long size() throws IOException {
+        return mLength;
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        return mPosition;
+    }
+
+    @Override
+    public synchronized void position(long nuPos) throws IOException {
+        mPosition = Math.min(nuPos, mLength);
+    }
+
+    /**
+     * Copied by the file channel, e.g. straight from the page cache to the target file, not through the mapping.
+     */
+    @Override
+    public long transferTo(long startPosition, long count, WritableByteChannel target) throws IOException {
+        count = Math.min(count, mLength - startPosition);
+        return mStream.getChannel().transferTo(mOffset + startPosition, count, target);
+    }
+
+    @Override
+    public ByteBuffer map(long startPosition, long size) throws IOException {
+        return slice(startPosition, (int)size);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(mOwnsStream){
+            mStream.close();
+        }
+    }
+    //endregion
+}
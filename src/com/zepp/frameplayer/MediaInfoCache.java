@@ -0,0 +1,191 @@
+package com.zepp.frameplayer;
+
+import com.googlecode.mp4parser.DataSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import com.zepp.frameplayer.MediaInfoExtractor.MediaInfo;
+
+/**
+ * Process wide cache of {@link MediaInfo}, shared by all players and views.
+ *
+ * Entries are keyed by path, size and modification time of the file, so a modified file is parsed again.
+ * The cache is bounded by the bytes of the index tables held by the entries and evicts the least recently
+ * used entry first. Concurrent requests for the same file are merged, the file is parsed only once.
+ *
+ * A cached MediaInfo is shared, callers must not modify it.
+ */
+public final class MediaInfoCache {
+    private static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+    private static final MediaInfoCache sInstance = new MediaInfoCache(DEFAULT_MAX_BYTES);
+
+    private static final class Key {
+        final String path;
+        final long size;
+        final long lastModified;
+
+        Key(File file){
+            path = file.getAbsolutePath();
+            size = file.length();
+            lastModified = file.lastModified();
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if(this == o) return true;
+            if(!(o instanceof Key)) return false;
+            Key other = (Key)o;
+            return size == other.size && lastModified == other.lastModified && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode(){
+            int result = path.hashCode();
+            result = 31 * result + (int)(size ^ (size >>> 32));
+            result = 31 * result + (int)(lastModified ^ (lastModified >>> 32));
+            return result;
+        }
+    }
+
+    // access ordered, the eldest entry is the least recently used one.
+    private final LinkedHashMap<Key, MediaInfo> mEntries = new LinkedHashMap<Key, MediaInfo>(16, 0.75f, true);
+    private final Map<Key, FutureTask<MediaInfo>> mLoadingTasks = new HashMap<Key, FutureTask<MediaInfo>>();
+    private long mMaxBytes;
+    private long mCurrentBytes;
+
+    private MediaInfoCache(long maxBytes){
+        mMaxBytes = maxBytes;
+    }
+
+    public static MediaInfoCache getInstance(){
+        return sInstance;
+    }
+
+    /**
+     * Get the MediaInfo of a file, parse the file if it is not cached.
+     */
+    public MediaInfo get(final String filePath) throws IOException, IllegalArgumentException{
+        return get(filePath, new Callable<MediaInfo>() {
+            @Override
+            public MediaInfo call() throws Exception {
+                return MediaInfoExtractor.extract(filePath);
+            }
+        });
+    }
+
+    /**
+     * Get the MediaInfo of a file, parse it from the opened source if it is not cached.
+     */
+    MediaInfo get(String filePath, final DataSource source) throws IOException, IllegalArgumentException{
+        return get(filePath, new Callable<MediaInfo>() {
+            @Override
+            public MediaInfo call() throws Exception {
+                return MediaInfoExtractor.extract(source);
+            }
+        });
+    }
+
+    /**
+     * @return the cached MediaInfo of a file, or null if it's not cached.
+     */
+    public synchronized MediaInfo peek(String filePath){
+        return mEntries.get(new Key(new File(filePath)));
+    }
+
+    public synchronized void setMaxBytes(long maxBytes){
+        mMaxBytes = maxBytes;
+        trimToSize(mMaxBytes);
+    }
+
+    public synchronized void evictAll(){
+        trimToSize(-1);
+    }
+
+    private MediaInfo get(String filePath, Callable<MediaInfo> loader) throws IOException, IllegalArgumentException{
+        Key key = new Key(new File(filePath));
+        FutureTask<MediaInfo> task;
+        boolean isLoader = false;
+        synchronized (this){
+            MediaInfo mediaInfo = mEntries.get(key);
+            if(mediaInfo != null){
+                return mediaInfo;
+            }
+            // single flight, join the loading task if somebody is parsing the same file.
+            task = mLoadingTasks.get(key);
+            if(task == null){
+                task = new FutureTask<MediaInfo>(loader);
+                mLoadingTasks.put(key, task);
+                isLoader = true;
+            }
+        }
+
+        if(isLoader){
+            try{
+                task.run();
+            }finally {
+                synchronized (this){
+                    mLoadingTasks.remove(key);
+                    try{
+                        if(task.isDone() && !task.isCancelled()){
+                            put(key, task.get());
+                        }
+                    }catch (Exception ex){} // failed, nothing to cache
+                }
+            }
+        }
+
+        try{
+            boolean interrupted = false;
+            while(true){
+                try{
+                    MediaInfo mediaInfo = task.get();
+                    if(interrupted){
+                        Thread.currentThread().interrupt();
+                    }
+                    return mediaInfo;
+                }catch (InterruptedException ie){
+                    interrupted = true;
+                }
+            }
+        }catch (ExecutionException ee){
+            Throwable cause = ee.getCause();
+            if(cause instanceof IOException){
+                throw (IOException)cause;
+            }else if(cause instanceof RuntimeException){
+                throw (RuntimeException)cause;
+            }else if(cause instanceof Error){
+                throw (Error)cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private void put(Key key, MediaInfo mediaInfo){
+        long size = mediaInfo.getIndexByteSize();
+        if(size > mMaxBytes){
+            return; // never fits
+        }
+        MediaInfo previous = mEntries.put(key, mediaInfo);
+        if(previous != null){
+            mCurrentBytes -= previous.getIndexByteSize();
+        }
+        mCurrentBytes += size;
+        trimToSize(mMaxBytes);
+    }
+
+    private void trimToSize(long maxBytes){
+        Iterator<Map.Entry<Key, MediaInfo>> iterator = mEntries.entrySet().iterator();
+        while(mCurrentBytes > maxBytes && iterator.hasNext()){
+            mCurrentBytes -= iterator.next().getValue().getIndexByteSize();
+            iterator.remove();
+        }
+    }
+}
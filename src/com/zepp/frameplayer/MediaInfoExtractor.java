@@ -1,18 +1,34 @@
 package com.zepp.frameplayer;
 
-import com.googlecode.mp4parser.authoring.Movie;
-import com.googlecode.mp4parser.authoring.Track;
-import com.googlecode.mp4parser.authoring.TrackMetaData;
-import com.googlecode.mp4parser.authoring.container.mp4.MovieCreator;
+import com.coremedia.iso.BoxParser;
+import com.coremedia.iso.IsoFile;
+import com.coremedia.iso.PropertyBoxParserImpl;
+import com.coremedia.iso.boxes.MediaHeaderBox;
+import com.coremedia.iso.boxes.MovieBox;
+import com.coremedia.iso.boxes.TimeToSampleBox;
+import com.coremedia.iso.boxes.TrackBox;
+import com.coremedia.iso.boxes.TrackHeaderBox;
+import com.googlecode.mp4parser.DataSource;
 import com.googlecode.mp4parser.util.Matrix;
 
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MediaInfoExtractor {
     private static final String MP4_VIDEO_TAG = "vide";
     private static final MatrixReader sMatrixReader = new MatrixReader();
-    private static final Object EXTRACT_LOCKER = new Object();
+    // isoparser parses boxes lazily and is not thread safe, every parse and the reading of its boxes hold it.
+    static final Object EXTRACT_LOCKER = new Object();
+    private static final int BOX_HEADER_SIZE = 8;
+    private static final int LARGE_BOX_HEADER_SIZE = 16;
+    private static final int TYPE_MOOV = 0x6d6f6f76;
     // disable public construction.
     private MediaInfoExtractor(){}
 
@@ -25,42 +41,328 @@ public class MediaInfoExtractor {
         public double width;
         public double height;
         public long[] keyFrameIndexes;
+        public PtsTable ptsTable;
+        // true if only the headers were parsed, keyFrameIndexes and ptsTable are null then.
+        public boolean headerOnly;
+        SampleTable sampleTable;
+
+        /**
+         * @return approximate memory held by the sync sample, PTS and sample tables, in bytes.
+         */
+        public long getIndexByteSize(){
+            long size = 0;
+            if(keyFrameIndexes != null){
+                size += keyFrameIndexes.length * 8L;
+            }
+            if(ptsTable != null){
+                size += ptsTable.byteSize();
+            }
+            if(sampleTable != null){
+                size += sampleTable.byteSize();
+            }
+            return size;
+        }
     }
 
     public static MediaInfo extract(String filePath) throws IOException, IllegalArgumentException {
-        MediaInfo mediaInfo = new MediaInfo();
-        Movie video = null;
+        MappedDataSource source = MappedDataSource.open(filePath);
+        try{
+            return extract(source);
+        }finally {
+            source.close();
+        }
+    }
+
+    public static MediaInfo extract(DataSource source) throws IOException, IllegalArgumentException {
+        synchronized (EXTRACT_LOCKER){
+            return extractVideoTrack(findVideoTrack(source));
+        }
+    }
+
+    /**
+     * Fast extraction that only reads the track headers and the time-to-sample table.
+     * Sync samples and sample offsets are not decoded, keyFrameIndexes and ptsTable of the result are null.
+     * Only the "moov" of the file is mapped, not the media data.
+     */
+    public static MediaInfo extractHeader(String filePath) throws IOException, IllegalArgumentException {
+        FileInputStream stream = new FileInputStream(filePath);
+        try{
+            long[] moov = findMovieBox(stream.getChannel());
+            if(moov == null){
+                throw new IllegalArgumentException("Cannot find movie box in target file.");
+            }
+            MappedDataSource source = MappedDataSource.open(stream.getFD(), moov[0], moov[1]);
+            try{
+                return extractHeader(source);
+            }finally {
+                source.close();
+            }
+        }finally {
+            stream.close();
+        }
+    }
 
-        // It seems MovieCreator.build method is not thread safe. it will throw exception when
-        // multiple threads call this function concurrently.So we use synchronized block here for workaround.
+    public static MediaInfo extractHeader(DataSource source) throws IOException, IllegalArgumentException {
         synchronized (EXTRACT_LOCKER){
-            video = MovieCreator.build(filePath);
+            return readHeader(findVideoTrack(source));
         }
+    }
 
-        assert(video.getTracks().size() > 0);
-        for(int i=0; i<video.getTracks().size();i++){
-            Track videoTrack = video.getTracks().get(i);
-            if(videoTrack.getHandler().equals(MP4_VIDEO_TAG)){
-                TrackMetaData metaData = videoTrack.getTrackMetaData();
-                long timeScale = metaData.getTimescale();
-                mediaInfo.width = metaData.getWidth();
-                mediaInfo.height = metaData.getHeight();
+    /**
+     * Walk the top level boxes by their headers, nothing else of the file is read.
+     *
+     * @return offset and size of the "moov" box, null if the file has no complete one
+     */
+    private static long[] findMovieBox(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(LARGE_BOX_HEADER_SIZE);
+        long position = 0;
+        while(position + BOX_HEADER_SIZE <= fileSize){
+            header.clear();
+            while(header.hasRemaining()){
+                if(channel.read(header, position + header.position()) <= 0){
+                    break;
+                }
+            }
+            if(header.position() < BOX_HEADER_SIZE){
+                return null;
+            }
+            long size = header.getInt(0) & 0xffffffffL;
+            if(size == 1){
+                if(header.position() < LARGE_BOX_HEADER_SIZE){
+                    return null;
+                }
+                size = header.getLong(BOX_HEADER_SIZE);
+            }else if(size == 0){
+                size = fileSize - position; // the last box, up to the end of file
+            }
+            if(size < BOX_HEADER_SIZE || position + size > fileSize){
+                return null;
+            }
+            if(header.getInt(4) == TYPE_MOOV){
+                return new long[]{position, size};
+            }
+            position += size;
+        }
+        return null;
+    }
 
-                mediaInfo.rotation = convertMatrixToRotation(metaData.getMatrix());
-                mediaInfo.durationUs = videoTrack.getDuration() * 1000 *1000 / timeScale;
-                mediaInfo.totalFrames = videoTrack.getSamples().size();
+    private static MediaInfo readHeader(TrackBox trackBox) throws IllegalArgumentException {
+        MediaInfo mediaInfo = readTrackHeader(trackBox);
+        mediaInfo.headerOnly = true;
+        MediaHeaderBox mediaHeader = trackBox.getMediaBox().getMediaHeaderBox();
+        long timeScale = mediaHeader.getTimescale();
 
-                // calculate the fps
-                mediaInfo.perFrameDurationUs =  mediaInfo.durationUs /  mediaInfo.totalFrames;
-                mediaInfo.fps = 1*1000*1000 / mediaInfo.perFrameDurationUs;
+        long frames = 0;
+        long duration = 0;
+        for(TimeToSampleBox.Entry entry : trackBox.getSampleTableBox().getTimeToSampleBox().getEntries()){
+            frames += entry.getCount();
+            duration += entry.getCount() * entry.getDelta();
+        }
+        if(frames == 0){
+            throw new IllegalArgumentException("Video track is empty.");
+        }
+        mediaInfo.totalFrames = frames;
+        mediaInfo.durationUs = SampleTable.toMicroseconds(duration > 0 ? duration : mediaHeader.getDuration(), timeScale);
+        mediaInfo.perFrameDurationUs = mediaInfo.durationUs / mediaInfo.totalFrames;
+        if(mediaInfo.perFrameDurationUs > 0){
+            mediaInfo.fps = 1*1000*1000 / mediaInfo.perFrameDurationUs;
+        }
+        return mediaInfo;
+    }
+
+    /**
+     * The caller holds {@link #EXTRACT_LOCKER} while the file is parsed and its boxes are read.
+     */
+    static IsoFile parse(DataSource source) throws IOException {
+        source.position(0); // the source may have been parsed before, e.g. by the cache
+        BoxParser boxParser = new PropertyBoxParserImpl();
+        return new IsoFile(source, boxParser);
+    }
 
-                // get information of key frames
-                mediaInfo.keyFrameIndexes = videoTrack.getSyncSamples().clone();
-                return mediaInfo;
+    static TrackBox findVideoTrack(DataSource source) throws IOException, IllegalArgumentException {
+        IsoFile isoFile = parse(source);
+        MovieBox movieBox = isoFile.getMovieBox();
+        if(movieBox == null){
+            throw new IllegalArgumentException("Cannot find movie box in target file.");
+        }
+        for(TrackBox trackBox : movieBox.getBoxes(TrackBox.class)){
+            if(MP4_VIDEO_TAG.equals(trackBox.getMediaBox().getHandlerBox().getHandlerType())){
+                return trackBox;
             }
         }
         throw new IllegalArgumentException("Cannot find video track in target file.");
     }
+    private static MediaInfo extractVideoTrack(TrackBox trackBox) throws IllegalArgumentException {
+        MediaInfo mediaInfo = readTrackHeader(trackBox);
+        long timeScale = trackBox.getMediaBox().getMediaHeaderBox().getTimescale();
+
+        // index all samples, the demuxer reads the samples from the data source with it.
+        SampleTable sampleTable = SampleTable.build(trackBox.getSampleTableBox(), timeScale);
+        setSampleIndex(mediaInfo, sampleTable, sampleTable.buildPtsTable());
+        return mediaInfo;
+    }
+
+    /**
+     * @return media info with the size and rotation of the track, the sample index is not set.
+     */
+    static MediaInfo readTrackHeader(TrackBox trackBox){
+        MediaInfo mediaInfo = new MediaInfo();
+        TrackHeaderBox trackHeader = trackBox.getTrackHeaderBox();
+        mediaInfo.width = trackHeader.getWidth();
+        mediaInfo.height = trackHeader.getHeight();
+        mediaInfo.rotation = convertMatrixToRotation(trackHeader.getMatrix());
+        return mediaInfo;
+    }
+
+    /**
+     * Set the sample index and the duration, frame count and fps derived from it.
+     */
+    static void setSampleIndex(MediaInfo mediaInfo, SampleTable sampleTable, PtsTable ptsTable)
+            throws IllegalArgumentException {
+        mediaInfo.sampleTable = sampleTable;
+        mediaInfo.ptsTable = ptsTable;
+        mediaInfo.durationUs = sampleTable.getDurationUs();
+        mediaInfo.totalFrames = sampleTable.getSampleCount();
+        if(mediaInfo.totalFrames == 0){
+            throw new IllegalArgumentException("Video track is empty.");
+        }
+
+        // calculate the fps
+        mediaInfo.perFrameDurationUs =  mediaInfo.durationUs /  mediaInfo.totalFrames;
+        mediaInfo.fps = 1*1000*1000 / mediaInfo.perFrameDurationUs;
+
+        // get information of key frames
+        mediaInfo.keyFrameIndexes = sampleTable.getSyncSampleNumbers();
+    }
+    //region Batch extraction
+    public interface ExtractCallback
+    {
+        /**
+         * Called on a thread of the executor as soon as one file is parsed.
+         */
+        void onExtracted(String filePath, MediaInfo mediaInfo);
+        void onError(String filePath, Exception e);
+        /**
+         * Called once after all files are handled or the batch is cancelled.
+         */
+        void onAllExtracted();
+    }
+
+    /**
+     * Handle of a running batch extraction.
+     */
+    public static class BatchExtraction {
+        private final LinkedList<String> mPendingPaths;
+        private final boolean mHeaderOnly;
+        private final ExtractCallback mCallback;
+        private final AtomicInteger mRunningWorkers = new AtomicInteger();
+        private volatile boolean mCancelled;
+
+        private BatchExtraction(Collection<String> filePaths, boolean headerOnly, ExtractCallback callback){
+            mPendingPaths = new LinkedList<String>(filePaths);
+            mHeaderOnly = headerOnly;
+            mCallback = callback;
+        }
+
+        /**
+         * Move files to the head of the queue, e.g. the clips that just became visible.
+         * Files that are already parsed or being parsed are not affected.
+         */
+        public void prioritize(Collection<String> filePaths){
+            synchronized (mPendingPaths){
+                LinkedList<String> moved = new LinkedList<String>();
+                for(String path : filePaths){
+                    if(mPendingPaths.remove(path)){
+                        moved.add(path);
+                    }
+                }
+                mPendingPaths.addAll(0, moved);
+            }
+        }
+
+        /**
+         * Stop parsing the pending files. Files being parsed are finished and still reported.
+         */
+        public void cancel(){
+            mCancelled = true;
+            synchronized (mPendingPaths){
+                mPendingPaths.clear();
+            }
+        }
+
+        public boolean isCancelled(){
+            return mCancelled;
+        }
+
+        private String nextPath(){
+            synchronized (mPendingPaths){
+                return mPendingPaths.poll();
+            }
+        }
+
+        private void start(Executor executor, int parallelism){
+            mRunningWorkers.set(parallelism);
+            for(int i = 0; i < parallelism; i++){
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        work();
+                    }
+                });
+            }
+        }
+
+        // every worker pulls files in priority order until the queue is drained.
+        private void work(){
+            String path;
+            while(!mCancelled && (path = nextPath()) != null){
+                try{
+                    MediaInfo mediaInfo = MediaInfoCache.getInstance().peek(path);
+                    if(mediaInfo == null){
+                        mediaInfo = mHeaderOnly ? extractHeader(path) : MediaInfoCache.getInstance().get(path);
+                    }
+                    mCallback.onExtracted(path, mediaInfo);
+                }catch (Exception e){
+                    mCallback.onError(path, e);
+                }
+            }
+            if(mRunningWorkers.decrementAndGet() == 0){
+                mCallback.onAllExtracted();
+            }
+        }
+    }
+
+    /**
+     * Parse the headers of many files in parallel, see {@link #extractHeader(String)}.
+     *
+     * @param filePaths files ordered by priority, e.g. visible clips first. They are started in this order.
+     * @param executor the executor to parse on, the number of parallel parsing is bounded by the number of cores.
+     * @param callback receives the results as they complete.
+     */
+    public static BatchExtraction extractAll(Collection<String> filePaths, Executor executor, ExtractCallback callback){
+        return extractAll(filePaths, executor, true, callback);
+    }
+
+    /**
+     * @param headerOnly false to parse the full index of every file, the results are put into {@link MediaInfoCache}.
+     */
+    public static BatchExtraction extractAll(Collection<String> filePaths, Executor executor, boolean headerOnly,
+                                             ExtractCallback callback){
+        if(filePaths == null || executor == null || callback == null){
+            throw new NullPointerException("Invalid argument.");
+        }
+        BatchExtraction batch = new BatchExtraction(filePaths, headerOnly, callback);
+        int parallelism = Math.min(filePaths.size(), Runtime.getRuntime().availableProcessors());
+        if(parallelism == 0){
+            callback.onAllExtracted();
+        }else{
+            batch.start(executor, parallelism);
+        }
+        return batch;
+    }
+    //endregion
+
     private static int convertMatrixToRotation(Matrix matrix) throws IllegalArgumentException{
         if(rotationEquals(matrix, Matrix.ROTATE_0)){
             return 0;
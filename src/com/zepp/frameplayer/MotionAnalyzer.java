@@ -0,0 +1,455 @@
+package com.zepp.frameplayer;
+
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.media.MediaCodecInfo.CodecCapabilities;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds the motion in a clip, e.g. the impact frame of a swing, see {@link MotionSignal}.
+ *
+ * The clip is decoded without a surface. Each decoded frame is reduced to a small luma plane right away, so
+ * the decoder gets its buffer back at once. The features of a frame are then computed on the analysis pool
+ * of {@link PlayerScheduler}, frames in parallel: a few analysis workers run for the whole pass and take the
+ * frames from a queue, each with its own scratch buffers. The luma planes come from a small pool: a plane goes
+ * back to the pool once the frame and the one after it are done, and decoding waits while the pool is empty.
+ * Nothing is allocated per frame.
+ */
+public final class MotionAnalyzer {
+    private static final String TAG = "MotionAnalyzer";
+
+    private static final int ANALYSIS_WIDTH = 64;
+    private static final int SAMPLES_PER_PIXEL = 4; // per axis, a luma pixel is the mean of 4x4 samples
+    private static final int TIMEOUT_USEC = 10000;
+    private static final long FRAME_WAIT_MS = 2500;
+
+    // from MediaFormat, only public from API 23
+    private static final String KEY_STRIDE = "stride";
+    private static final String KEY_SLICE_HEIGHT = "slice-height";
+    private static final String KEY_CROP_LEFT = "crop-left";
+    private static final String KEY_CROP_TOP = "crop-top";
+    private static final String KEY_CROP_RIGHT = "crop-right";
+    private static final String KEY_CROP_BOTTOM = "crop-bottom";
+    private static final int COLOR_QCOM_FormatYUV420PackedSemiPlanar32m = 0x7fa30c04;
+
+    private MotionAnalyzer(){}
+
+    /**
+     * Analyze in background, one clip at a time, as the decoder is held.
+     *
+     * @return future of the signal, null if the clip can't be analyzed
+     */
+    public static PlayerFuture<MotionSignal> analyzeAsync(final String source){
+        final PlayerFuture<MotionSignal> future = new PlayerFuture<MotionSignal>();
+        PlayerScheduler.getInstance().transcode(new Runnable() {
+            @Override
+            public void run() {
+                MotionSignal signal = null;
+                try{
+                    signal = analyze(source);
+                }catch (Exception ex){
+                    Log.w(TAG, "Can't analyze " + source + ": " + ex);
+                }
+                future.complete(signal);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Analyze all frames of the clip, blocks until done.
+     */
+    public static MotionSignal analyze(String source) throws IOException {
+        long startNs = System.nanoTime();
+        MappedDataSource dataSource = MappedDataSource.open(source);
+        try{
+            MediaInfoExtractor.MediaInfo mediaInfo = MediaInfoCache.getInstance().get(source, dataSource);
+            MediaFormat format = readFormat(dataSource);
+            // hardware decoders may output tiled frames, try the next decoder then.
+            List<String> names = new ArrayList<String>(DecoderSelector.getCandidates(format));
+            names.add(null);
+            for(String name : names){
+                try{
+                    MotionSignal signal = new Session(dataSource, mediaInfo, format).run(name);
+                    Log.d(TAG, "Analyzed " + signal.size() + " frames of " + source + " in "
+                            + (System.nanoTime() - startNs) / 1000000 + "ms.");
+                    return signal;
+                }catch (UnsupportedLayoutException ex){
+                    Log.d(TAG, "Decoder " + name + " doesn't fit: " + ex.getMessage());
+                }
+            }
+            throw new IOException("No decoder outputs frames that can be analyzed.");
+        }finally {
+            dataSource.close();
+        }
+    }
+
+    private static MediaFormat readFormat(MappedDataSource dataSource) throws IOException{
+        MediaExtractor extractor = new MediaExtractor();
+        try{
+            extractor.setDataSource(dataSource.getFileDescriptor(), dataSource.getOffset(), dataSource.getLength());
+            for(int i = 0; i < extractor.getTrackCount(); i++){
+                MediaFormat format = extractor.getTrackFormat(i);
+                if(format.getString(MediaFormat.KEY_MIME).startsWith("video/")){
+                    return format;
+                }
+            }
+            throw new IOException("Can't find video track.");
+        }finally {
+            extractor.release();
+        }
+    }
+
+    private static final LumaFrame END_OF_FRAMES = new LumaFrame(0, -1);
+
+    private static final class UnsupportedLayoutException extends IOException {
+        UnsupportedLayoutException(String message){
+            super(message);
+        }
+    }
+
+    // a reduced luma plane, used by the analysis of its frame and of the frame after it.
+    private static final class LumaFrame {
+        final byte[] pixels;
+        // the layout the plane is sized for, see Session.setLayout
+        final int generation;
+        final AtomicInteger references = new AtomicInteger();
+        // set while queued for its analysis
+        LumaFrame previous;
+        int index;
+
+        LumaFrame(int size, int generation){
+            pixels = new byte[size];
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * One decoding pass, the decoder and the buffers are only used by it.
+     */
+    private static final class Session {
+        private final MappedDataSource mDataSource;
+        private final MediaInfoExtractor.MediaInfo mMediaInfo;
+        private final MediaFormat mFormat;
+        private final LinkedBlockingQueue<LumaFrame> mFreeFrames = new LinkedBlockingQueue<LumaFrame>();
+        // frames to analyze, a worker exits at END_OF_FRAMES.
+        private final LinkedBlockingQueue<LumaFrame> mQueuedFrames = new LinkedBlockingQueue<LumaFrame>();
+        private final int mWorkerCount = PlayerScheduler.getInstance().getAnalysisParallelism();
+        private final CountDownLatch mWorkersDone = new CountDownLatch(mWorkerCount);
+        private volatile Throwable mFailure;
+        private final long[] mTimesUs;
+        private final float[] mEnergies;
+        private final byte[] mHistograms;
+        private int mWidth;
+        private int mHeight;
+        // offsets of the samples of the luma rows and columns in the decoder output, SAMPLES_PER_PIXEL per pixel.
+        private int[] mRowOffsets;
+        private int[] mColumnOffsets;
+        // bumped by every layout, planes of an earlier one are not pooled again.
+        private volatile int mLayoutGeneration;
+
+        Session(MappedDataSource dataSource, MediaInfoExtractor.MediaInfo mediaInfo, MediaFormat format){
+            mDataSource = dataSource;
+            mMediaInfo = mediaInfo;
+            mFormat = format;
+            int capacity = (int)mediaInfo.totalFrames;
+            mTimesUs = new long[capacity];
+            mEnergies = new float[capacity];
+            mHistograms = new byte[capacity * MotionSignal.HISTOGRAM_BINS];
+        }
+
+        MotionSignal run(String decoderName) throws IOException{
+            MediaCodec decoder = decoderName != null ? MediaCodec.createByCodecName(decoderName)
+                    : MediaCodec.createDecoderByType(mFormat.getString(MediaFormat.KEY_MIME));
+            startWorkers();
+            try{
+                decoder.configure(mFormat, null, null, 0);
+                decoder.start();
+                int count = decode(decoder);
+                waitWorkers();
+                return new MotionSignal(mTimesUs, mEnergies, mHistograms, count);
+            }finally {
+                cancelWorkers();
+                try{
+                    decoder.stop();
+                }catch (Exception ex){} // safe ignore
+                decoder.release();
+            }
+        }
+
+        /**
+         * @return number of frames analyzed
+         */
+        private int decode(MediaCodec decoder) throws IOException{
+            SampleTableDemuxer demuxer = new SampleTableDemuxer(mDataSource, mMediaInfo.sampleTable);
+            ByteBuffer[] inputBuffers = decoder.getInputBuffers();
+            ByteBuffer[] outputBuffers = decoder.getOutputBuffers();
+            BufferInfo info = new BufferInfo();
+            boolean inputDone = false;
+            int count = 0;
+            LumaFrame previous = null;
+            long lastOutputMs = System.currentTimeMillis();
+            while(true){
+                if(!inputDone){
+                    int inIndex = decoder.dequeueInputBuffer(TIMEOUT_USEC);
+                    if(inIndex >= 0){
+                        int size = demuxer.readSampleData(inputBuffers[inIndex], 0);
+                        if(size < 0){
+                            decoder.queueInputBuffer(inIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        }else{
+                            decoder.queueInputBuffer(inIndex, 0, size, demuxer.getSampleTime(), 0);
+                            demuxer.advance();
+                        }
+                    }
+                }
+                int outIndex = decoder.dequeueOutputBuffer(info, TIMEOUT_USEC);
+                if(outIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED){
+                    outputBuffers = decoder.getOutputBuffers();
+                }else if(outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED){
+                    setLayout(decoder.getOutputFormat());
+                }else if(outIndex >= 0){
+                    lastOutputMs = System.currentTimeMillis();
+                    if(info.size > 0 && count < mTimesUs.length){
+                        if(mRowOffsets == null){
+                            setLayout(decoder.getOutputFormat());
+                        }
+                        LumaFrame frame = takeFrame();
+                        if(previous != null && previous.generation != frame.generation){
+                            release(previous); // a plane of another size is not compared
+                            previous = null;
+                        }
+                        reduce(outputBuffers[outIndex], info.offset, frame.pixels);
+                        mTimesUs[count] = info.presentationTimeUs;
+                        submit(previous, frame, count++);
+                        previous = frame;
+                    }
+                    decoder.releaseOutputBuffer(outIndex, false);
+                    if((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0){
+                        break;
+                    }
+                }else if(System.currentTimeMillis() - lastOutputMs > FRAME_WAIT_MS){
+                    throw new IOException("Decoder stalled after " + count + " frames.");
+                }
+            }
+            if(previous != null){
+                release(previous); // no frame after the last one
+            }
+            return count;
+        }
+
+        private void setLayout(MediaFormat format) throws UnsupportedLayoutException{
+            int colorFormat = getInteger(format, MediaFormat.KEY_COLOR_FORMAT, 0);
+            switch (colorFormat){
+                // the luma plane comes first and is linear, only the layout of the chroma differs.
+                case CodecCapabilities.COLOR_FormatYUV420Planar:
+                case CodecCapabilities.COLOR_FormatYUV420PackedPlanar:
+                case CodecCapabilities.COLOR_FormatYUV420SemiPlanar:
+                case CodecCapabilities.COLOR_FormatYUV420PackedSemiPlanar:
+                case CodecCapabilities.COLOR_TI_FormatYUV420PackedSemiPlanar:
+                case CodecCapabilities.COLOR_QCOM_FormatYUV420SemiPlanar:
+                case COLOR_QCOM_FormatYUV420PackedSemiPlanar32m:
+                    break;
+                default:
+                    throw new UnsupportedLayoutException("color format 0x" + Integer.toHexString(colorFormat));
+            }
+            int width = getInteger(format, MediaFormat.KEY_WIDTH, (int)mMediaInfo.width);
+            int height = getInteger(format, MediaFormat.KEY_HEIGHT, (int)mMediaInfo.height);
+            int stride = Math.max(getInteger(format, KEY_STRIDE, width), width);
+            int left = getInteger(format, KEY_CROP_LEFT, 0);
+            int top = getInteger(format, KEY_CROP_TOP, 0);
+            int cropWidth = getInteger(format, KEY_CROP_RIGHT, width - 1) - left + 1;
+            int cropHeight = getInteger(format, KEY_CROP_BOTTOM, height - 1) - top + 1;
+            if(cropWidth <= 0 || cropHeight <= 0){
+                throw new UnsupportedLayoutException("frame size " + width + "x" + height);
+            }
+            mWidth = Math.min(ANALYSIS_WIDTH, cropWidth);
+            mHeight = Math.max(1, Math.round((float)mWidth * cropHeight / cropWidth));
+            mRowOffsets = new int[mHeight * SAMPLES_PER_PIXEL];
+            for(int i = 0; i < mRowOffsets.length; i++){
+                mRowOffsets[i] = (top + (int)((i + 0.5f) * cropHeight / mRowOffsets.length)) * stride;
+            }
+            mColumnOffsets = new int[mWidth * SAMPLES_PER_PIXEL];
+            for(int i = 0; i < mColumnOffsets.length; i++){
+                mColumnOffsets[i] = left + (int)((i + 0.5f) * cropWidth / mColumnOffsets.length);
+            }
+            // the plane size is known now, planes of an earlier layout are dropped, also the ones still in flight.
+            int generation = ++mLayoutGeneration;
+            mFreeFrames.clear();
+            int poolSize = PlayerScheduler.getInstance().getAnalysisParallelism() * 2 + 2;
+            for(int i = 0; i < poolSize; i++){
+                mFreeFrames.add(new LumaFrame(mWidth * mHeight, generation));
+            }
+            Log.d(TAG, "Analyze " + cropWidth + "x" + cropHeight + " frames at " + mWidth + "x" + mHeight
+                    + ", color format 0x" + Integer.toHexString(colorFormat));
+        }
+
+        private static int getInteger(MediaFormat format, String key, int defaultValue){
+            return format.containsKey(key) ? format.getInteger(key) : defaultValue;
+        }
+
+        /**
+         * Reduce the luma of the decoder output to the analysis size.
+         */
+        private void reduce(ByteBuffer buffer, int offset, byte[] pixels){
+            int area = SAMPLES_PER_PIXEL * SAMPLES_PER_PIXEL;
+            int limit = buffer.limit();
+            for(int y = 0; y < mHeight; y++){
+                for(int x = 0; x < mWidth; x++){
+                    int sum = 0;
+                    for(int sy = 0; sy < SAMPLES_PER_PIXEL; sy++){
+                        int row = offset + mRowOffsets[y * SAMPLES_PER_PIXEL + sy];
+                        for(int sx = 0; sx < SAMPLES_PER_PIXEL; sx++){
+                            int index = row + mColumnOffsets[x * SAMPLES_PER_PIXEL + sx];
+                            sum += index < limit ? buffer.get(index) & 0xff : 0;
+                        }
+                    }
+                    pixels[y * mWidth + x] = (byte)(sum / area);
+                }
+            }
+        }
+
+        private LumaFrame takeFrame() throws IOException{
+            try{
+                LumaFrame frame = mFreeFrames.take();
+                while(frame.generation != mLayoutGeneration){
+                    frame = mFreeFrames.take(); // released while the layout changed
+                }
+                frame.references.set(2); // its own analysis and the one of the next frame
+                return frame;
+            }catch (InterruptedException ie){
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Analysis is interrupted.");
+            }
+        }
+
+        private void release(LumaFrame frame){
+            if(frame.references.decrementAndGet() == 0 && frame.generation == mLayoutGeneration){
+                mFreeFrames.add(frame);
+            }
+        }
+
+        private void submit(LumaFrame previous, LumaFrame frame, int index){
+            frame.previous = previous;
+            frame.index = index;
+            mQueuedFrames.add(frame);
+        }
+
+        private void startWorkers(){
+            for(int i = 0; i < mWorkerCount; i++){
+                PlayerScheduler.getInstance().analyze(new Runnable() {
+                    @Override
+                    public void run() {
+                        try{
+                            analyzeFrames();
+                        }finally {
+                            mWorkersDone.countDown();
+                        }
+                    }
+                });
+            }
+        }
+
+        private void analyzeFrames(){
+            int[] histogram = new int[MotionSignal.HISTOGRAM_BINS];
+            while(true){
+                LumaFrame frame;
+                try{
+                    frame = mQueuedFrames.take();
+                }catch (InterruptedException ie){
+                    mFailure = ie;
+                    return;
+                }
+                if(frame == END_OF_FRAMES){
+                    return;
+                }
+                LumaFrame previous = frame.previous;
+                frame.previous = null;
+                try{
+                    if(previous != null){
+                        analyzeFrame(previous.pixels, frame.pixels, frame.index, histogram);
+                    }
+                }catch (RuntimeException ex){
+                    mFailure = ex; // go on, decoding waits for the planes of the frame
+                }finally {
+                    if(previous != null){
+                        release(previous);
+                    }
+                    release(frame);
+                }
+            }
+        }
+
+        /**
+         * Difference energy and histogram of a frame, every frame writes its own entries.
+         */
+        private void analyzeFrame(byte[] previous, byte[] current, int index, int[] histogram){
+            Arrays.fill(histogram, 0);
+            long sum = 0;
+            for(int i = 0; i < current.length; i++){
+                int difference = Math.abs((current[i] & 0xff) - (previous[i] & 0xff));
+                sum += difference;
+                histogram[difference < 2 ? 0 : 31 - Integer.numberOfLeadingZeros(difference)]++;
+            }
+            mEnergies[index] = (float)sum / current.length;
+            for(int bin = 0; bin < MotionSignal.HISTOGRAM_BINS; bin++){
+                mHistograms[index * MotionSignal.HISTOGRAM_BINS + bin] = (byte)(histogram[bin] * 255 / current.length);
+            }
+        }
+
+        /**
+         * Wait until the queued frames are analyzed.
+         */
+        private void waitWorkers() throws IOException{
+            for(int i = 0; i < mWorkerCount; i++){
+                mQueuedFrames.add(END_OF_FRAMES);
+            }
+            try{
+                mWorkersDone.await();
+            }catch (InterruptedException ie){
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Analysis is interrupted.");
+            }
+            if(mFailure != null){
+                throw new IOException("Analysis failed: " + mFailure);
+            }
+        }
+
+        /**
+         * Drop the queued frames and let the workers exit, the next pass gets the analysis pool.
+         */
+        private void cancelWorkers(){
+            if(mWorkersDone.getCount() == 0){
+                return;
+            }
+            mQueuedFrames.clear();
+            for(int i = 0; i < mWorkerCount; i++){
+                mQueuedFrames.add(END_OF_FRAMES);
+            }
+            boolean interrupted = false;
+            while(true){
+                try{
+                    mWorkersDone.await();
+                    break;
+                }catch (InterruptedException ie){
+                    interrupted = true;
+                }
+            }
+            if(interrupted){
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
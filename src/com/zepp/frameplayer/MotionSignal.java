@@ -0,0 +1,106 @@
+package com.zepp.frameplayer;
+
+/**
+ * Per frame motion of a clip, made by {@link MotionAnalyzer}. Frames are in presentation order, a frame is
+ * described by the energy of its difference to the previous frame and a histogram of the differences.
+ *
+ * Times are exact presentation times of the frames, {@link FramePlayer#seekToFrameAsync(long)} shows the
+ * frame of an entry, e.g. {@code player.seekToFrameAsync(signal.getPeakTimeUs())} jumps to the peak motion.
+ */
+public final class MotionSignal {
+    /** Bins of the difference histogram: bin 0 holds differences of 0..1, bin k of [2^k, 2^(k+1)). */
+    public static final int HISTOGRAM_BINS = 8;
+
+    private final long[] mTimesUs;
+    private final float[] mEnergies;
+    private final byte[] mHistograms; // HISTOGRAM_BINS per frame, share of the pixels in 1/255
+    private final int mSize;
+
+    MotionSignal(long[] timesUs, float[] energies, byte[] histograms, int size){
+        mTimesUs = timesUs;
+        mEnergies = energies;
+        mHistograms = histograms;
+        mSize = size;
+    }
+
+    public int size(){
+        return mSize;
+    }
+
+    /**
+     * @return presentation time of the frame at the index, in microseconds.
+     */
+    public long timeAt(int index){
+        checkIndex(index);
+        return mTimesUs[index];
+    }
+
+    /**
+     * @return mean absolute luma difference to the previous frame, 0..255. 0 for the first frame.
+     */
+    public float energyAt(int index){
+        checkIndex(index);
+        return mEnergies[index];
+    }
+
+    /**
+     * @return share of the pixels whose difference falls in the bin, 0..255 for 0..100%.
+     */
+    public int histogramAt(int index, int bin){
+        checkIndex(index);
+        if(bin < 0 || bin >= HISTOGRAM_BINS){
+            throw new IndexOutOfBoundsException("Bin " + bin + " is out of range [0, " + HISTOGRAM_BINS + ").");
+        }
+        return mHistograms[index * HISTOGRAM_BINS + bin] & 0xff;
+    }
+
+    /**
+     * @return index of the frame on screen at timeUs, the first frame if timeUs is before it, -1 if empty.
+     */
+    public int indexOf(long timeUs){
+        int low = 0;
+        int high = mSize - 1;
+        while(low <= high){
+            int mid = (low + high) >>> 1;
+            if(mTimesUs[mid] <= timeUs){
+                low = mid + 1;
+            }else{
+                high = mid - 1;
+            }
+        }
+        return mSize == 0 ? -1 : Math.max(high, 0);
+    }
+
+    /**
+     * @return presentation time of the frame with the most motion, -1 if empty.
+     */
+    public long getPeakTimeUs(){
+        return getPeakTimeUs(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * @return presentation time of the frame with the most motion in [fromUs, toUs], -1 if there is no frame.
+     */
+    public long getPeakTimeUs(long fromUs, long toUs){
+        int peak = -1;
+        for(int i = Math.max(indexOf(fromUs), 0); i < mSize && mTimesUs[i] <= toUs; i++){
+            if(mTimesUs[i] >= fromUs && (peak < 0 || mEnergies[i] > mEnergies[peak])){
+                peak = i;
+            }
+        }
+        return peak < 0 ? -1 : mTimesUs[peak];
+    }
+
+    /**
+     * @return approximate memory used by the signal, in bytes.
+     */
+    public long byteSize(){
+        return mTimesUs.length * 8L + mEnergies.length * 4L + mHistograms.length;
+    }
+
+    private void checkIndex(int index){
+        if(index < 0 || index >= mSize){
+            throw new IndexOutOfBoundsException("Frame index " + index + " is out of range [0, " + mSize + ").");
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.zepp.frameplayer;
+
+import java.util.Arrays;
+
+/**
+ * Overlay data of a clip, e.g. swing plane lines, club path points and sensor readings, one {@link OverlayTrack}
+ * each. Bound to a player by {@link FramePlayer#setOverlayStore}, the listener gets a {@link Slice} of every
+ * frame presented: the samples in the time the frame is on screen and every track interpolated at its
+ * presentation time.
+ *
+ * Tracks can be added or replaced while playing, a slice is filled from the tracks at the time it's delivered.
+ */
+public final class OverlayStore {
+    public interface OnOverlayFrameListener {
+        /**
+         * @param slice reused for the next frame, only valid during the call
+         */
+        void onOverlayFrame(FramePlayer fp, Slice slice);
+    }
+
+    /**
+     * Overlay of the frame on screen in [presentationTimeUs, endTimeUs).
+     */
+    public static final class Slice {
+        private long mPresentationTimeUs;
+        private long mEndTimeUs;
+        private int mTrackCount;
+        private OverlayTrack[] mTracks = new OverlayTrack[0];
+        private int[] mFirstIndexes = new int[0];
+        private int[] mEndIndexes = new int[0];
+        private float[][] mValues = new float[0][];
+        private boolean[] mHasValues = new boolean[0];
+
+        public long getPresentationTimeUs(){
+            return mPresentationTimeUs;
+        }
+
+        public long getEndTimeUs(){
+            return mEndTimeUs;
+        }
+
+        public int getTrackCount(){
+            return mTrackCount;
+        }
+
+        public OverlayTrack getTrack(int track){
+            checkTrack(track);
+            return mTracks[track];
+        }
+
+        /**
+         * @return index in the track of the first sample in [presentationTimeUs, endTimeUs).
+         */
+        public int getFirstIndex(int track){
+            checkTrack(track);
+            return mFirstIndexes[track];
+        }
+
+        /**
+         * @return index in the track after the last sample in [presentationTimeUs, endTimeUs), equal to
+         *         {@link #getFirstIndex(int)} if the frame has no sample of the track.
+         */
+        public int getEndIndex(int track){
+            checkTrack(track);
+            return mEndIndexes[track];
+        }
+
+        /**
+         * @return values of the track interpolated at presentationTimeUs, null if the track is empty.
+         *         Don't keep the array, it's reused.
+         */
+        public float[] getValues(int track){
+            checkTrack(track);
+            return mHasValues[track] ? mValues[track] : null;
+        }
+
+        private void checkTrack(int track){
+            if(track < 0 || track >= mTrackCount){
+                throw new IndexOutOfBoundsException("Track " + track + " is out of range [0, " + mTrackCount + ").");
+            }
+        }
+    }
+
+    private volatile OverlayTrack[] mTracks = new OverlayTrack[0]; // replaced on change
+
+    /**
+     * @return index of the track, used in {@link Slice}.
+     */
+    public synchronized int addTrack(OverlayTrack track){
+        if(track == null){
+            throw new IllegalArgumentException("Track is null.");
+        }
+        OverlayTrack[] tracks = Arrays.copyOf(mTracks, mTracks.length + 1);
+        tracks[tracks.length - 1] = track;
+        mTracks = tracks;
+        return tracks.length - 1;
+    }
+
+    public synchronized void setTrack(int index, OverlayTrack track){
+        if(track == null){
+            throw new IllegalArgumentException("Track is null.");
+        }
+        OverlayTrack[] tracks = mTracks.clone();
+        tracks[index] = track;
+        mTracks = tracks;
+    }
+
+    public OverlayTrack getTrack(int index){
+        return mTracks[index];
+    }
+
+    public int getTrackCount(){
+        return mTracks.length;
+    }
+
+    /**
+     * Fill the slice of [startUs, endUs), the slice only allocates when the tracks grow.
+     */
+    public void fill(Slice slice, long startUs, long endUs){
+        OverlayTrack[] tracks = mTracks;
+        int count = tracks.length;
+        if(slice.mTracks.length < count){
+            slice.mTracks = new OverlayTrack[count];
+            slice.mFirstIndexes = new int[count];
+            slice.mEndIndexes = new int[count];
+            slice.mHasValues = new boolean[count];
+            slice.mValues = Arrays.copyOf(slice.mValues, count);
+        }
+        slice.mPresentationTimeUs = startUs;
+        slice.mEndTimeUs = endUs;
+        slice.mTrackCount = count;
+        for(int i = 0; i < count; i++){
+            OverlayTrack track = tracks[i];
+            slice.mTracks[i] = track;
+            slice.mFirstIndexes[i] = track.firstIndexAtOrAfter(startUs);
+            slice.mEndIndexes[i] = Math.max(track.firstIndexAtOrAfter(endUs), slice.mFirstIndexes[i]);
+            float[] values = slice.mValues[i];
+            if(values == null || values.length != track.getChannelCount()){
+                values = new float[track.getChannelCount()];
+                slice.mValues[i] = values;
+            }
+            slice.mHasValues[i] = track.interpolate(startUs, values);
+        }
+        // don't keep tracks no longer in the store
+        Arrays.fill(slice.mTracks, count, slice.mTracks.length, null);
+    }
+}
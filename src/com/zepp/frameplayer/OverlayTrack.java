@@ -0,0 +1,183 @@
+package com.zepp.frameplayer;
+
+import java.util.Arrays;
+
+/**
+ * Time series drawn over the video, e.g. the club head position or a sensor reading. A sample has a time and
+ * a fixed number of channels, e.g. 2 for a point. Samples are stored as primitive columns sorted by time, so a
+ * lookup is a binary search and reading a sample doesn't allocate. A track never changes once built.
+ */
+public final class OverlayTrack {
+    private final long[] mTimesUs;
+    private final float[] mValues; // mChannels values per sample
+    private final int mChannels;
+    private final int mSize;
+
+    private OverlayTrack(long[] timesUs, float[] values, int channels, int size){
+        mTimesUs = timesUs;
+        mValues = values;
+        mChannels = channels;
+        mSize = size;
+    }
+
+    public static final class Builder {
+        private final int mChannels;
+        private long[] mTimesUs = new long[64];
+        private float[] mValues;
+        private int mSize;
+        private boolean mIsSorted = true;
+
+        public Builder(int channels){
+            if(channels <= 0){
+                throw new IllegalArgumentException("Invalid channel count " + channels);
+            }
+            mChannels = channels;
+            mValues = new float[64 * channels];
+        }
+
+        /**
+         * @param values mChannels values, samples can be added in any order
+         */
+        public Builder add(long timeUs, float... values){
+            if(values.length != mChannels){
+                throw new IllegalArgumentException("Expect " + mChannels + " values, got " + values.length);
+            }
+            if(mSize == mTimesUs.length){
+                mTimesUs = Arrays.copyOf(mTimesUs, mSize * 2);
+                mValues = Arrays.copyOf(mValues, mSize * 2 * mChannels);
+            }
+            if(mSize > 0 && timeUs < mTimesUs[mSize - 1]){
+                mIsSorted = false;
+            }
+            mTimesUs[mSize] = timeUs;
+            System.arraycopy(values, 0, mValues, mSize * mChannels, mChannels);
+            mSize++;
+            return this;
+        }
+
+        public OverlayTrack build(){
+            long[] timesUs = Arrays.copyOf(mTimesUs, mSize);
+            float[] values = Arrays.copyOf(mValues, mSize * mChannels);
+            if(!mIsSorted){
+                sort(timesUs, values);
+            }
+            return new OverlayTrack(timesUs, values, mChannels, mSize);
+        }
+
+        // insertion sort of the rows, samples out of order are rare and only a few steps out of place.
+        private void sort(long[] timesUs, float[] values){
+            float[] row = new float[mChannels];
+            for(int i = 1; i < timesUs.length; i++){
+                long time = timesUs[i];
+                System.arraycopy(values, i * mChannels, row, 0, mChannels);
+                int j = i - 1;
+                while(j >= 0 && timesUs[j] > time){
+                    timesUs[j + 1] = timesUs[j];
+                    System.arraycopy(values, j * mChannels, values, (j + 1) * mChannels, mChannels);
+                    j--;
+                }
+                timesUs[j + 1] = time;
+                System.arraycopy(row, 0, values, (j + 1) * mChannels, mChannels);
+            }
+        }
+    }
+
+    public int size(){
+        return mSize;
+    }
+
+    public int getChannelCount(){
+        return mChannels;
+    }
+
+    public long timeAt(int index){
+        checkIndex(index);
+        return mTimesUs[index];
+    }
+
+    public float valueAt(int index, int channel){
+        checkIndex(index);
+        if(channel < 0 || channel >= mChannels){
+            throw new IndexOutOfBoundsException("Channel " + channel + " is out of range [0, " + mChannels + ").");
+        }
+        return mValues[index * mChannels + channel];
+    }
+
+    /**
+     * @return index of the last sample at or before timeUs, -1 if all samples are after it.
+     */
+    public int indexOf(long timeUs){
+        return firstIndexAfter(timeUs) - 1;
+    }
+
+    /**
+     * @return index of the first sample at or after timeUs, {@link #size()} if none. The samples in
+     *         [fromUs, toUs) are the ones in [firstIndexAtOrAfter(fromUs), firstIndexAtOrAfter(toUs)).
+     */
+    public int firstIndexAtOrAfter(long timeUs){
+        int low = 0;
+        int high = mSize;
+        while(low < high){
+            int mid = (low + high) >>> 1;
+            if(mTimesUs[mid] < timeUs){
+                low = mid + 1;
+            }else{
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Linear interpolation of the samples around timeUs, clamped to the first and the last sample.
+     *
+     * @param out receives {@link #getChannelCount()} values
+     * @return false if the track is empty, out is not changed then.
+     */
+    public boolean interpolate(long timeUs, float[] out){
+        if(mSize == 0){
+            return false;
+        }
+        int after = firstIndexAfter(timeUs);
+        int before = after - 1;
+        if(before < 0 || after >= mSize){
+            System.arraycopy(mValues, (before < 0 ? 0 : mSize - 1) * mChannels, out, 0, mChannels);
+            return true;
+        }
+        float fraction = (float)(timeUs - mTimesUs[before]) / (mTimesUs[after] - mTimesUs[before]);
+        for(int channel = 0; channel < mChannels; channel++){
+            float from = mValues[before * mChannels + channel];
+            float to = mValues[after * mChannels + channel];
+            out[channel] = from + (to - from) * fraction;
+        }
+        return true;
+    }
+
+    /**
+     * @return approximate memory used by the track, in bytes.
+     */
+    public long byteSize(){
+        return mTimesUs.length * 8L + mValues.length * 4L;
+    }
+
+    // index of the first sample after timeUs
+    private int firstIndexAfter(long timeUs){
+        int low = 0;
+        int high = mSize;
+        while(low < high){
+            int mid = (low + high) >>> 1;
+            if(mTimesUs[mid] <= timeUs){
+                low = mid + 1;
+            }else{
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void checkIndex(int index){
+        if(index < 0 || index >= mSize){
+            throw new IndexOutOfBoundsException("Sample index " + index + " is out of range [0, " + mSize + ").");
+        }
+    }
+}
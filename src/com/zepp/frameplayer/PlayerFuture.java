@@ -0,0 +1,150 @@
+package com.zepp.frameplayer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Result of an asynchronous player operation. It's completed by the player, callers can block on it
+ * or register a listener.
+ */
+public class PlayerFuture<V> implements Future<V> {
+    public interface OnCompleteListener<V>
+    {
+        /**
+         * Called on the thread that completes the operation, or on the thread that registers the listener
+         * if the operation is already completed.
+         */
+        void onComplete(PlayerFuture<V> future);
+    }
+
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private List<OnCompleteListener<V>> mListeners = new ArrayList<OnCompleteListener<V>>();
+    private volatile V mResult;
+
+    PlayerFuture(){}
+
+    static <V> PlayerFuture<V> completed(V result){
+        PlayerFuture<V> future = new PlayerFuture<V>();
+        future.complete(result);
+        return future;
+    }
+
+    /**
+     * @return completes when all the operations completed, null ones are skipped.
+     */
+    static PlayerFuture<Void> whenAll(List<PlayerFuture<Void>> futures){
+        final PlayerFuture<Void> all = new PlayerFuture<Void>();
+        final AtomicInteger pending = new AtomicInteger(1); // released below, after all listeners are added
+        OnCompleteListener<Void> listener = new OnCompleteListener<Void>() {
+            @Override
+            public void onComplete(PlayerFuture<Void> future) {
+                if(pending.decrementAndGet() == 0){
+                    all.complete(null);
+                }
+            }
+        };
+        for(PlayerFuture<Void> future : futures){
+            if(future != null){
+                pending.incrementAndGet();
+                future.addListener(listener);
+            }
+        }
+        listener.onComplete(null);
+        return all;
+    }
+
+    /**
+     * @return false if the future has been completed already.
+     */
+    boolean complete(V result){
+        List<OnCompleteListener<V>> listeners;
+        synchronized (this){
+            if(mListeners == null){
+                return false;
+            }
+            mResult = result;
+            listeners = mListeners;
+            mListeners = null;
+            mDone.countDown();
+        }
+        for(OnCompleteListener<V> listener : listeners){
+            listener.onComplete(this);
+        }
+        return true;
+    }
+
+    public void addListener(OnCompleteListener<V> listener){
+        synchronized (this){
+            if(mListeners != null){
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.onComplete(this);
+    }
+
+    /**
+     * @return the result, or null if it's not completed yet.
+     */
+    public V getNow(){
+        return mResult;
+    }
+
+    /**
+     * Wait until completed, ignoring interruptions.
+     */
+    public V await(){
+        boolean interrupted = false;
+        while(true){
+            try{
+                mDone.await();
+                break;
+            }catch (InterruptedException ie){
+                interrupted = true;
+            }
+        }
+        if(interrupted){
+            Thread.currentThread().interrupt();
+        }
+        return mResult;
+    }
+
+    //region Future
+    /**
+     * Player operations can't be cancelled.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mDone.getCount() == 0;
+    }
+
+    @Override
+    public V get() throws InterruptedException {
+        mDone.await();
+        return mResult;
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        if(!mDone.await(timeout, unit)){
+            throw new TimeoutException();
+        }
+        return mResult;
+    }
+    //endregion
+}
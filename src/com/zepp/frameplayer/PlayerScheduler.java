@@ -0,0 +1,251 @@
+package com.zepp.frameplayer;
+
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads shared by all players, so the number of threads stays flat however many players are open.
+ *
+ * Player workers are multiplexed on a few decode threads: a worker runs in steps, each step handles one
+ * command or decodes one frame, and the worker is only scheduled while it has something to do. A command
+ * decoding many frames, e.g. a seek, goes on over many steps, so a long seek of a player doesn't hold a thread
+ * the others wait for. A step still blocks for the codec calls of its command, e.g. waiting for an output
+ * buffer or restarting a decoder. Steps of a worker never run concurrently and run one after another, so the
+ * commands of a player keep their order.
+ * Preparing runs on a small bounded pool, the blocking lifecycle work(teardown, codec release) on a cached one.
+ * Listener callbacks are delivered on a thread of their own by default, see {@link CallbackDispatcher}.
+ * Jobs holding codecs(transcoding, analysis decoding) run one at a time, the per frame analysis work on a
+ * pool sized by the cores.
+ */
+final class PlayerScheduler {
+    private static final String TAG = "PlayerScheduler";
+
+    /** Returned by a step to wait until the worker is woken up. */
+    static final long IDLE = -1;
+    /** Returned by a step when the worker is done, it's never scheduled again. */
+    static final long EXIT = -2;
+
+    interface Steppable
+    {
+        /**
+         * @return ns to wait before the next step, 0 to run the next step as soon as possible, IDLE or EXIT
+         */
+        long step();
+    }
+
+    // steps take a frame at most, a few threads serve many players.
+    private static final int DECODE_THREADS = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+    private static final int PREPARE_THREADS = 2;
+    private static final int ANALYSIS_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_QUEUED = 1;        // a step is queued to run at once
+    private static final int STATE_WAITING = 2;       // a step is scheduled to run later
+    private static final int STATE_RUNNING = 3;
+    private static final int STATE_RUNNING_WOKEN = 4; // woken up while running, runs again at once
+    private static final int STATE_EXITED = 5;
+
+    private static final PlayerScheduler sInstance = new PlayerScheduler();
+
+    private final ScheduledThreadPoolExecutor mDecodeExecutor;
+    private final ThreadPoolExecutor mPrepareExecutor;
+    private final ExecutorService mBackgroundExecutor;
+    private final ThreadPoolExecutor mCallbackExecutor;
+    private final ThreadPoolExecutor mTranscodeExecutor;
+    private final ThreadPoolExecutor mAnalysisExecutor;
+
+    private PlayerScheduler(){
+        mDecodeExecutor = new ScheduledThreadPoolExecutor(DECODE_THREADS, new NamedThreadFactory("FramePlayerDecode"));
+        mDecodeExecutor.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        mDecodeExecutor.allowCoreThreadTimeOut(true);
+        mPrepareExecutor = new ThreadPoolExecutor(PREPARE_THREADS, PREPARE_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("FramePlayerPrepare"));
+        mPrepareExecutor.allowCoreThreadTimeOut(true);
+        mBackgroundExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("FramePlayerLifecycle"));
+        mCallbackExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("FramePlayerCallback"));
+        mCallbackExecutor.allowCoreThreadTimeOut(true);
+        mTranscodeExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("FramePlayerTranscode"));
+        mTranscodeExecutor.allowCoreThreadTimeOut(true);
+        mAnalysisExecutor = new ThreadPoolExecutor(ANALYSIS_THREADS, ANALYSIS_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("FramePlayerAnalysis"));
+        mAnalysisExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    static PlayerScheduler getInstance(){
+        return sInstance;
+    }
+
+    /**
+     * Create a worker, it's not scheduled until {@link Worker#wake()} is called.
+     */
+    Worker newWorker(Steppable task){
+        return new Worker(task);
+    }
+
+    Future<?> prepare(Runnable task){
+        return mPrepareExecutor.submit(task);
+    }
+
+    /**
+     * Run work that may block for long, e.g. waiting for a worker to exit or releasing a wedged codec.
+     */
+    void runInBackground(Runnable task){
+        mBackgroundExecutor.execute(task);
+    }
+
+    /**
+     * Run a job holding codecs, e.g. a transcoding or the decoding of an analysis. Jobs run one at a time.
+     */
+    void transcode(Runnable task){
+        mTranscodeExecutor.execute(task);
+    }
+
+    /**
+     * Run a piece of per frame analysis, pieces run in parallel.
+     */
+    Future<?> analyze(Runnable task){
+        return mAnalysisExecutor.submit(task);
+    }
+
+    int getAnalysisParallelism(){
+        return ANALYSIS_THREADS;
+    }
+
+    /**
+     * The default executor of listener callbacks, shared by all players.
+     */
+    Executor getCallbackExecutor(){
+        return mCallbackExecutor;
+    }
+
+    final class Worker implements Runnable {
+        private final Steppable mTask;
+        private final AtomicInteger mState = new AtomicInteger(STATE_IDLE);
+        private final CountDownLatch mExited = new CountDownLatch(1);
+        // a delayed step only runs if no other step ran since it was scheduled, only written by the running step.
+        private volatile long mWaitGeneration;
+
+        private Worker(Steppable task){
+            mTask = task;
+        }
+
+        /**
+         * Run a step as soon as possible, e.g. a command is pushed. A worker woken up while running runs
+         * another step right after the current one.
+         */
+        void wake(){
+            while(true){
+                int state = mState.get();
+                switch (state){
+                    case STATE_IDLE:
+                    case STATE_WAITING:
+                        if(mState.compareAndSet(state, STATE_QUEUED)){
+                            mDecodeExecutor.execute(this);
+                            return;
+                        }
+                        break;
+                    case STATE_RUNNING:
+                        if(mState.compareAndSet(state, STATE_RUNNING_WOKEN)){
+                            return;
+                        }
+                        break;
+                    default:
+                        return; // queued already, or exited
+                }
+            }
+        }
+
+        /**
+         * Wait until a step returned EXIT, ignoring interruptions.
+         */
+        void awaitExit(){
+            boolean interrupted = false;
+            while(true){
+                try{
+                    mExited.await();
+                    break;
+                }catch (InterruptedException ie){
+                    interrupted = true;
+                }
+            }
+            if(interrupted){
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            if(mState.compareAndSet(STATE_QUEUED, STATE_RUNNING)){
+                runStep();
+            }
+        }
+
+        private void runDelayed(long generation){
+            if(generation == mWaitGeneration && mState.compareAndSet(STATE_WAITING, STATE_RUNNING)){
+                runStep();
+            }
+        }
+
+        private void runStep(){
+            long next;
+            try{
+                next = mTask.step();
+            }catch (RuntimeException ex){
+                Log.e(TAG, "Worker step failed: " + ex);
+                next = EXIT;
+            }
+            if(next == EXIT){
+                mState.set(STATE_EXITED);
+                mExited.countDown();
+                return;
+            }
+            if(next > 0){
+                final long generation = ++mWaitGeneration;
+                if(mState.compareAndSet(STATE_RUNNING, STATE_WAITING)){
+                    mDecodeExecutor.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            runDelayed(generation);
+                        }
+                    }, next, TimeUnit.NANOSECONDS);
+                    return;
+                }
+            }else if(next == IDLE){
+                if(mState.compareAndSet(STATE_RUNNING, STATE_IDLE)){
+                    return;
+                }
+            }
+            // run at once, or woken up while running.
+            mState.set(STATE_QUEUED);
+            mDecodeExecutor.execute(this);
+        }
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final String mPrefix;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        NamedThreadFactory(String prefix){
+            mPrefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, mPrefix + "-" + mCount.incrementAndGet());
+        }
+    }
+}
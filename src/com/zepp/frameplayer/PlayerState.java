@@ -0,0 +1,19 @@
+package com.zepp.frameplayer;
+
+/**
+ * States of a {@link FramePlayer}, packed into a {@link PlayerStateWord} by ordinal.
+ */
+enum PlayerState{
+    Idle,
+    Initialized,
+    Preparing,
+    Prepared,
+    Started,
+    Paused,
+    Stopped,
+    PlaybackCompleted,
+    Suspended,
+    End,
+    Error,
+
+}
@@ -0,0 +1,109 @@
+package com.zepp.frameplayer;
+
+import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Committed state, target state and command sequence number of a {@link FramePlayer}, packed into one long,
+ * so a command is validated and accepted with a single compare-and-set.
+ *  bits 0-7:  committed state, the state the worker is in now.
+ *  bits 8-15: target state, the state after all accepted commands are executed.
+ *  bits 16-:  sequence number of the last accepted worker command.
+ *
+ * Callers accept commands with {@link #transit}, the worker takes them in sequence order, marks them with
+ * {@link #setProcessedSequence} and commits the states they lead to. Only java.* is used here.
+ */
+final class PlayerStateWord {
+    static final long REJECTED = -1;
+
+    private static final int STATE_BITS = 8;
+    private static final long STATE_MASK = (1L << STATE_BITS) - 1;
+    private static final PlayerState[] sStates = PlayerState.values();
+
+    private final AtomicLong mWord;
+    private volatile long mProcessedSequence; // sequence number of the last command taken by the worker
+
+    PlayerStateWord(PlayerState initial){
+        mWord = new AtomicLong(pack(initial, initial, 0));
+    }
+
+    static long pack(PlayerState committed, PlayerState target, long sequence){
+        return committed.ordinal() | ((long)target.ordinal() << STATE_BITS) | (sequence << (2 * STATE_BITS));
+    }
+    static PlayerState committedOf(long word){
+        return sStates[(int)(word & STATE_MASK)];
+    }
+    static PlayerState targetOf(long word){
+        return sStates[(int)((word >>> STATE_BITS) & STATE_MASK)];
+    }
+    static long sequenceOf(long word){
+        return word >>> (2 * STATE_BITS);
+    }
+
+    long get(){
+        return mWord.get();
+    }
+
+    long getProcessedSequence(){
+        return mProcessedSequence;
+    }
+
+    /**
+     * Called by the worker when it takes a command, or with the current sequence number when a new worker
+     * starts, so the commands accepted before are not waited for.
+     */
+    void setProcessedSequence(long sequence){
+        mProcessedSequence = sequence;
+    }
+
+    /**
+     * Accept a command issued by a caller, atomically with the validation of current target state.
+     *
+     * @param from the target states the command is valid in
+     * @param to the target state after the command, null if the command doesn't change it
+     * @param sequenced true for commands executed by the worker, they take a sequence number
+     * @return the new state word, or REJECTED if the command is invalid in current target state
+     */
+    long transit(EnumSet<PlayerState> from, PlayerState to, boolean sequenced){
+        while(true){
+            long word = mWord.get();
+            PlayerState target = targetOf(word);
+            if(!from.contains(target)){
+                return REJECTED;
+            }
+            long newWord = pack(committedOf(word), to != null ? to : target, sequenceOf(word) + (sequenced ? 1 : 0));
+            if(mWord.compareAndSet(word, newWord)){
+                return newWord;
+            }
+        }
+    }
+
+    /**
+     * Commit the state the worker reached. The target follows only when no accepted command is pending,
+     * otherwise it's already the state after the pending ones.
+     */
+    void commit(PlayerState state){
+        while(true){
+            long word = mWord.get();
+            PlayerState target = targetOf(word);
+            if(target == committedOf(word) && sequenceOf(word) == mProcessedSequence){
+                target = state;
+            }
+            if(mWord.compareAndSet(word, pack(state, target, sequenceOf(word)))){
+                return;
+            }
+        }
+    }
+
+    /**
+     * Move both committed and target state, pending commands become invalid, e.g. on error.
+     */
+    void force(PlayerState state){
+        while(true){
+            long word = mWord.get();
+            if(mWord.compareAndSet(word, pack(state, state, sequenceOf(word)))){
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.zepp.frameplayer;
+
+/**
+ * Snapshot of the health counters of a {@link FramePlayer}, see {@link FramePlayer#getStats()}.
+ */
+public final class PlayerStats {
+    /** times a stalled decoder was replaced and produced output again. */
+    public final int recoveryCount;
+    /** time from detecting the last stall to the first frame of the new decoder, in milliseconds. */
+    public final long lastRecoveryTimeMs;
+    /** sum of the recovery times, in milliseconds. */
+    public final long totalRecoveryTimeMs;
+    /** frames decoded but not rendered during playback because they were too late. */
+    public final int droppedFrames;
+    /** times playback was too far behind and jumped to the next key frame. */
+    public final int skipsToKeyFrame;
+
+    PlayerStats(int recoveryCount, long lastRecoveryTimeMs, long totalRecoveryTimeMs,
+                int droppedFrames, int skipsToKeyFrame){
+        this.recoveryCount = recoveryCount;
+        this.lastRecoveryTimeMs = lastRecoveryTimeMs;
+        this.totalRecoveryTimeMs = totalRecoveryTimeMs;
+        this.droppedFrames = droppedFrames;
+        this.skipsToKeyFrame = skipsToKeyFrame;
+    }
+
+    @Override
+    public String toString(){
+        return "PlayerStats{recoveries=" + recoveryCount
+                + ", lastRecoveryMs=" + lastRecoveryTimeMs
+                + ", totalRecoveryMs=" + totalRecoveryTimeMs
+                + ", dropped=" + droppedFrames
+                + ", skips=" + skipsToKeyFrame + "}";
+    }
+}
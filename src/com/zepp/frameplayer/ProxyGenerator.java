@@ -0,0 +1,552 @@
+package com.zepp.frameplayer;
+
+import android.graphics.SurfaceTexture;
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.os.Build;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Transcodes a clip into a small proxy where every frame is a key frame, stored next to the clip as
+ * {@code <clip>.proxy.mp4}. While scrubbing, a player shows the frames of the proxy, see
+ * {@link FramePlayer#beginScrub()}. A proxy frame decodes on its own, instead of decoding the group of
+ * pictures it's in like a frame of a long GOP camera file.
+ *
+ * Decoded frames are scaled by GL on their way to the encoder, so API 18 is required. The timestamps of
+ * the clip are kept, a proxy frame has the time of the clip frame it's made from.
+ */
+public final class ProxyGenerator {
+    private static final String TAG = "ProxyGenerator";
+
+    public static final int DEFAULT_HEIGHT = 360;
+
+    private static final String PROXY_SUFFIX = ".proxy.mp4";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String ENCODER_MIME = "video/avc";
+    private static final float BITS_PER_PIXEL = 0.25f; // every frame is intra coded, needs more than usual
+    private static final int DEFAULT_FPS = 30;
+    private static final int TIMEOUT_USEC = 10000;
+    private static final long FRAME_WAIT_MS = 2500;
+    // frames handed to the encoder that it hasn't returned yet, the decoder waits beyond this.
+    private static final int MAX_FRAMES_IN_ENCODER = 4;
+
+    private ProxyGenerator(){}
+
+    public static boolean isSupported(){
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+    }
+
+    public static String getProxyPath(String source){
+        return source + PROXY_SUFFIX;
+    }
+
+    /**
+     * @return true if the clip has a proxy that is newer than the clip
+     */
+    public static boolean hasProxy(String source){
+        File proxy = new File(getProxyPath(source));
+        return proxy.isFile() && proxy.lastModified() >= new File(source).lastModified();
+    }
+
+    /**
+     * Generate the proxy in background, clips are transcoded one at a time.
+     *
+     * @return future of the proxy path, null if the proxy can't be generated
+     */
+    public static PlayerFuture<String> generateAsync(final String source, final int height){
+        final PlayerFuture<String> future = new PlayerFuture<String>();
+        PlayerScheduler.getInstance().transcode(new Runnable() {
+            @Override
+            public void run() {
+                String proxyPath = null;
+                try{
+                    proxyPath = generate(source, height);
+                }catch (Exception ex){
+                    Log.w(TAG, "Can't generate proxy of " + source + ": " + ex);
+                }
+                future.complete(proxyPath);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Generate the proxy if the clip doesn't have an up to date one, blocks until done.
+     *
+     * @param height the height of the proxy, a smaller clip keeps its size
+     * @return the proxy path
+     */
+    public static String generate(String source, int height) throws IOException{
+        if(!isSupported()){
+            throw new IOException("Proxy generation requires API 18.");
+        }
+        String proxyPath = getProxyPath(source);
+        if(hasProxy(source)){
+            return proxyPath;
+        }
+        File tempFile = new File(proxyPath + TEMP_SUFFIX);
+        long startNs = System.nanoTime();
+        new Transcoder(source, tempFile.getPath(), height).run();
+        if(!tempFile.renameTo(new File(proxyPath))){
+            tempFile.delete();
+            throw new IOException("Can't move proxy to " + proxyPath);
+        }
+        Log.d(TAG, "Proxy of " + source + " generated in " + (System.nanoTime() - startNs) / 1000000 + "ms.");
+        return proxyPath;
+    }
+
+    /**
+     * Decoder -> SurfaceTexture -> GL -> encoder input surface -> muxer, one frame at a time.
+     */
+    private static final class Transcoder {
+        private final String mSource;
+        private final String mOutput;
+        private final int mHeight;
+
+        private MediaExtractor mExtractor;
+        private MediaCodec mDecoder;
+        private MediaCodec mEncoder;
+        private MediaMuxer mMuxer;
+        private EncoderSurface mEncoderSurface;
+        private FrameRenderer mRenderer;
+        private int mTrackIndex = -1;
+        private int mFramesInEncoder;
+
+        Transcoder(String source, String output, int height){
+            mSource = source;
+            mOutput = output;
+            mHeight = height;
+        }
+
+        void run() throws IOException{
+            boolean completed = false;
+            try{
+                setUp();
+                transcode();
+                completed = true;
+            }finally {
+                tearDown();
+                if(!completed){
+                    new File(mOutput).delete();
+                }
+            }
+        }
+
+        private void setUp() throws IOException{
+            MediaInfoExtractor.MediaInfo mediaInfo = MediaInfoCache.getInstance().get(mSource);
+            mExtractor = new MediaExtractor();
+            mExtractor.setDataSource(mSource);
+            MediaFormat inputFormat = null;
+            for(int i = 0; i < mExtractor.getTrackCount(); i++){
+                MediaFormat format = mExtractor.getTrackFormat(i);
+                if(format.getString(MediaFormat.KEY_MIME).startsWith("video/")){
+                    mExtractor.selectTrack(i);
+                    inputFormat = format;
+                    break;
+                }
+            }
+            if(inputFormat == null){
+                throw new IOException("Can't find video track.");
+            }
+            // frames are kept upright as stored, the rotation goes to the proxy as a hint.
+            if(inputFormat.containsKey("rotation-degrees")){
+                inputFormat.setInteger("rotation-degrees", 0);
+            }
+
+            int sourceWidth = inputFormat.getInteger(MediaFormat.KEY_WIDTH);
+            int sourceHeight = inputFormat.getInteger(MediaFormat.KEY_HEIGHT);
+            int height = Math.min(mHeight, sourceHeight);
+            int width = alignTo16(sourceWidth * height / sourceHeight);
+            height = alignTo16(height);
+            int fps = mediaInfo.fps > 0 ? (int)mediaInfo.fps : DEFAULT_FPS;
+
+            MediaFormat outputFormat = MediaFormat.createVideoFormat(ENCODER_MIME, width, height);
+            outputFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+            outputFormat.setInteger(MediaFormat.KEY_BIT_RATE, (int)(width * height * fps * BITS_PER_PIXEL));
+            outputFormat.setInteger(MediaFormat.KEY_FRAME_RATE, fps);
+            outputFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 0); // all key frames
+            mEncoder = MediaCodec.createEncoderByType(ENCODER_MIME);
+            mEncoder.configure(outputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mEncoderSurface = new EncoderSurface(mEncoder.createInputSurface());
+            mEncoderSurface.makeCurrent();
+            mEncoder.start();
+
+            mRenderer = new FrameRenderer(width, height);
+            mDecoder = MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
+            mDecoder.configure(inputFormat, mRenderer.getSurface(), null, 0);
+            mDecoder.start();
+
+            mMuxer = new MediaMuxer(mOutput, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            mMuxer.setOrientationHint(mediaInfo.rotation);
+        }
+
+        private void transcode() throws IOException{
+            BufferInfo info = new BufferInfo();
+            boolean inputDone = false;
+            boolean decoderDone = false;
+            while(true){
+                if(!inputDone){
+                    inputDone = feedDecoder();
+                }
+                if(!decoderDone){
+                    int outIndex = mDecoder.dequeueOutputBuffer(info, TIMEOUT_USEC);
+                    if(outIndex >= 0){
+                        boolean endOfStream = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                        boolean render = info.size > 0;
+                        mDecoder.releaseOutputBuffer(outIndex, render);
+                        if(render){
+                            mRenderer.awaitFrame();
+                            mRenderer.drawFrame();
+                            mEncoderSurface.setPresentationTime(info.presentationTimeUs * 1000);
+                            mEncoderSurface.swapBuffers();
+                            mFramesInEncoder++;
+                        }
+                        if(endOfStream){
+                            mEncoder.signalEndOfInputStream();
+                            decoderDone = true;
+                        }
+                    }
+                }
+                // keep the pipeline short, wait for the encoder when it's behind.
+                if(drainEncoder(decoderDone || mFramesInEncoder >= MAX_FRAMES_IN_ENCODER)){
+                    return;
+                }
+            }
+        }
+
+        private boolean feedDecoder(){
+            int inIndex = mDecoder.dequeueInputBuffer(TIMEOUT_USEC);
+            if(inIndex < 0){
+                return false;
+            }
+            ByteBuffer buffer = mDecoder.getInputBuffers()[inIndex];
+            int sampleSize = mExtractor.readSampleData(buffer, 0);
+            if(sampleSize < 0){
+                mDecoder.queueInputBuffer(inIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                return true;
+            }
+            mDecoder.queueInputBuffer(inIndex, 0, sampleSize, mExtractor.getSampleTime(), 0);
+            mExtractor.advance();
+            return false;
+        }
+
+        /**
+         * @param wait true to wait for one output frame of the encoder
+         * @return true if the encoder reached the end of stream
+         */
+        private boolean drainEncoder(boolean wait) throws IOException{
+            BufferInfo info = new BufferInfo();
+            while(true){
+                int outIndex = mEncoder.dequeueOutputBuffer(info, wait ? TIMEOUT_USEC : 0);
+                if(outIndex == MediaCodec.INFO_TRY_AGAIN_LATER){
+                    return false;
+                }else if(outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED){
+                    if(mTrackIndex >= 0){
+                        throw new IOException("Encoder format changed twice.");
+                    }
+                    mTrackIndex = mMuxer.addTrack(mEncoder.getOutputFormat());
+                    mMuxer.start();
+                }else if(outIndex >= 0){
+                    ByteBuffer data = mEncoder.getOutputBuffers()[outIndex];
+                    if((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0){
+                        info.size = 0; // already in the track format
+                    }
+                    if(info.size > 0){
+                        if(mTrackIndex < 0){
+                            throw new IOException("Encoder output before its format.");
+                        }
+                        data.position(info.offset);
+                        data.limit(info.offset + info.size);
+                        mMuxer.writeSampleData(mTrackIndex, data, info);
+                        mFramesInEncoder--;
+                        wait = false;
+                    }
+                    mEncoder.releaseOutputBuffer(outIndex, false);
+                    if((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0){
+                        return true;
+                    }
+                }
+            }
+        }
+
+        private void tearDown(){
+            if(mDecoder != null){
+                try{
+                    mDecoder.stop();
+                }catch (Exception ex){} // safe ignore
+                mDecoder.release();
+            }
+            if(mEncoder != null){
+                try{
+                    mEncoder.stop();
+                }catch (Exception ex){} // safe ignore
+                mEncoder.release();
+            }
+            if(mRenderer != null){
+                mRenderer.release();
+            }
+            if(mEncoderSurface != null){
+                mEncoderSurface.release();
+            }
+            if(mMuxer != null){
+                try{
+                    if(mTrackIndex >= 0){
+                        mMuxer.stop();
+                    }
+                }catch (Exception ex){} // safe ignore
+                mMuxer.release();
+            }
+            if(mExtractor != null){
+                mExtractor.release();
+            }
+        }
+
+        private static int alignTo16(int value){
+            return Math.max(16, (value + 8) / 16 * 16);
+        }
+    }
+
+    /**
+     * EGL window surface on the encoder input surface.
+     */
+    private static final class EncoderSurface {
+        private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+
+        private EGLDisplay mDisplay = EGL14.EGL_NO_DISPLAY;
+        private EGLContext mContext = EGL14.EGL_NO_CONTEXT;
+        private EGLSurface mSurface = EGL14.EGL_NO_SURFACE;
+        private Surface mInputSurface;
+
+        EncoderSurface(Surface inputSurface) throws IOException{
+            mInputSurface = inputSurface;
+            mDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+            int[] version = new int[2];
+            if(!EGL14.eglInitialize(mDisplay, version, 0, version, 1)){
+                throw new IOException("Can't initialize EGL.");
+            }
+            int[] configAttributes = {
+                    EGL14.EGL_RED_SIZE, 8,
+                    EGL14.EGL_GREEN_SIZE, 8,
+                    EGL14.EGL_BLUE_SIZE, 8,
+                    EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                    EGL_RECORDABLE_ANDROID, 1,
+                    EGL14.EGL_NONE
+            };
+            EGLConfig[] configs = new EGLConfig[1];
+            int[] configCount = new int[1];
+            if(!EGL14.eglChooseConfig(mDisplay, configAttributes, 0, configs, 0, 1, configCount, 0)
+                    || configCount[0] == 0){
+                throw new IOException("No recordable EGL config.");
+            }
+            int[] contextAttributes = {EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE};
+            mContext = EGL14.eglCreateContext(mDisplay, configs[0], EGL14.EGL_NO_CONTEXT, contextAttributes, 0);
+            int[] surfaceAttributes = {EGL14.EGL_NONE};
+            mSurface = EGL14.eglCreateWindowSurface(mDisplay, configs[0], mInputSurface, surfaceAttributes, 0);
+            if(mContext == null || mSurface == null || EGL14.eglGetError() != EGL14.EGL_SUCCESS){
+                throw new IOException("Can't create EGL surface.");
+            }
+        }
+
+        void makeCurrent(){
+            EGL14.eglMakeCurrent(mDisplay, mSurface, mSurface, mContext);
+        }
+
+        void setPresentationTime(long timeNs){
+            EGLExt.eglPresentationTimeANDROID(mDisplay, mSurface, timeNs);
+        }
+
+        void swapBuffers(){
+            EGL14.eglSwapBuffers(mDisplay, mSurface);
+        }
+
+        void release(){
+            if(mDisplay != EGL14.EGL_NO_DISPLAY){
+                EGL14.eglMakeCurrent(mDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+                EGL14.eglDestroySurface(mDisplay, mSurface);
+                EGL14.eglDestroyContext(mDisplay, mContext);
+                EGL14.eglReleaseThread();
+                EGL14.eglTerminate(mDisplay);
+                mDisplay = EGL14.EGL_NO_DISPLAY;
+            }
+            mInputSurface.release();
+        }
+    }
+
+    /**
+     * Receives decoded frames on a SurfaceTexture and draws them scaled to the current EGL surface.
+     */
+    private static final class FrameRenderer implements SurfaceTexture.OnFrameAvailableListener {
+        private static final String VERTEX_SHADER =
+                "uniform mat4 uTexMatrix;\n" +
+                "attribute vec4 aPosition;\n" +
+                "attribute vec4 aTexCoord;\n" +
+                "varying vec2 vTexCoord;\n" +
+                "void main() {\n" +
+                "    gl_Position = aPosition;\n" +
+                "    vTexCoord = (uTexMatrix * aTexCoord).xy;\n" +
+                "}\n";
+        private static final String FRAGMENT_SHADER =
+                "#extension GL_OES_EGL_image_external : require\n" +
+                "precision mediump float;\n" +
+                "varying vec2 vTexCoord;\n" +
+                "uniform samplerExternalOES sTexture;\n" +
+                "void main() {\n" +
+                "    gl_FragColor = texture2D(sTexture, vTexCoord);\n" +
+                "}\n";
+        // x, y, u, v of a full screen triangle strip
+        private static final float[] VERTICES = {
+                -1f, -1f, 0f, 0f,
+                 1f, -1f, 1f, 0f,
+                -1f,  1f, 0f, 1f,
+                 1f,  1f, 1f, 1f,
+        };
+        private static final int FLOAT_SIZE = 4;
+        private static final int STRIDE = 4 * FLOAT_SIZE;
+
+        private final int mWidth;
+        private final int mHeight;
+        private final FloatBuffer mVertices;
+        private final float[] mTexMatrix = new float[16];
+        private final Object mFrameLock = new Object();
+        private boolean mFrameAvailable;
+        private int mProgram;
+        private int mTextureId;
+        private int mPositionLocation;
+        private int mTexCoordLocation;
+        private int mTexMatrixLocation;
+        private SurfaceTexture mSurfaceTexture;
+        private Surface mSurface;
+
+        FrameRenderer(int width, int height) throws IOException{
+            mWidth = width;
+            mHeight = height;
+            mVertices = ByteBuffer.allocateDirect(VERTICES.length * FLOAT_SIZE).order(ByteOrder.nativeOrder()).asFloatBuffer();
+            mVertices.put(VERTICES).position(0);
+
+            mProgram = createProgram();
+            mPositionLocation = GLES20.glGetAttribLocation(mProgram, "aPosition");
+            mTexCoordLocation = GLES20.glGetAttribLocation(mProgram, "aTexCoord");
+            mTexMatrixLocation = GLES20.glGetUniformLocation(mProgram, "uTexMatrix");
+
+            int[] textures = new int[1];
+            GLES20.glGenTextures(1, textures, 0);
+            mTextureId = textures[0];
+            GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTextureId);
+            GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+
+            // the listener is called on the main looper, this thread has none.
+            mSurfaceTexture = new SurfaceTexture(mTextureId);
+            mSurfaceTexture.setOnFrameAvailableListener(this);
+            mSurface = new Surface(mSurfaceTexture);
+        }
+
+        Surface getSurface(){
+            return mSurface;
+        }
+
+        @Override
+        public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+            synchronized (mFrameLock){
+                mFrameAvailable = true;
+                mFrameLock.notifyAll();
+            }
+        }
+
+        void awaitFrame() throws IOException{
+            synchronized (mFrameLock){
+                long deadline = System.currentTimeMillis() + FRAME_WAIT_MS;
+                while(!mFrameAvailable){
+                    long waitMs = deadline - System.currentTimeMillis();
+                    if(waitMs <= 0){
+                        throw new IOException("Decoded frame didn't arrive.");
+                    }
+                    try{
+                        mFrameLock.wait(waitMs);
+                    }catch (InterruptedException ie){
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted.");
+                    }
+                }
+                mFrameAvailable = false;
+            }
+            mSurfaceTexture.updateTexImage();
+        }
+
+        void drawFrame(){
+            mSurfaceTexture.getTransformMatrix(mTexMatrix);
+            GLES20.glViewport(0, 0, mWidth, mHeight);
+            GLES20.glClearColor(0f, 0f, 0f, 1f);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            GLES20.glUseProgram(mProgram);
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+            GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTextureId);
+            mVertices.position(0);
+            GLES20.glVertexAttribPointer(mPositionLocation, 2, GLES20.GL_FLOAT, false, STRIDE, mVertices);
+            GLES20.glEnableVertexAttribArray(mPositionLocation);
+            mVertices.position(2);
+            GLES20.glVertexAttribPointer(mTexCoordLocation, 2, GLES20.GL_FLOAT, false, STRIDE, mVertices);
+            GLES20.glEnableVertexAttribArray(mTexCoordLocation);
+            GLES20.glUniformMatrix4fv(mTexMatrixLocation, 1, false, mTexMatrix, 0);
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        }
+
+        void release(){
+            mSurface.release();
+            mSurfaceTexture.release();
+            GLES20.glDeleteTextures(1, new int[]{mTextureId}, 0);
+            GLES20.glDeleteProgram(mProgram);
+        }
+
+        private static int createProgram() throws IOException{
+            int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER);
+            int fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER);
+            int program = GLES20.glCreateProgram();
+            GLES20.glAttachShader(program, vertexShader);
+            GLES20.glAttachShader(program, fragmentShader);
+            GLES20.glLinkProgram(program);
+            int[] status = new int[1];
+            GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+            if(status[0] != GLES20.GL_TRUE){
+                GLES20.glDeleteProgram(program);
+                throw new IOException("Can't link program.");
+            }
+            return program;
+        }
+
+        private static int loadShader(int type, String source) throws IOException{
+            int shader = GLES20.glCreateShader(type);
+            GLES20.glShaderSource(shader, source);
+            GLES20.glCompileShader(shader);
+            int[] status = new int[1];
+            GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+            if(status[0] == 0){
+                String log = GLES20.glGetShaderInfoLog(shader);
+                GLES20.glDeleteShader(shader);
+                throw new IOException("Can't compile shader: " + log);
+            }
+            return shader;
+        }
+    }
+}
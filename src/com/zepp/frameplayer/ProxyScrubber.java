@@ -0,0 +1,166 @@
+package com.zepp.frameplayer;
+
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Shows frames of the proxy of a clip while scrubbing, see {@link ProxyGenerator}. Every proxy frame is a
+ * key frame, so a seek feeds the sample of the target and takes the next output, without decoding a group
+ * of pictures. The proxy decoder is chosen like the one of the clip, and replaces it while scrubbing, so a
+ * player holds one decoder at a time. Only accessed by the worker of the player.
+ */
+final class ProxyScrubber {
+    private static final String TAG = "ProxyScrubber";
+    private static final int TIMEOUT_USEC = 5000;
+    private static final long SEEK_TIMEOUT_NS = 500L * 1000 * 1000;
+
+    private MappedDataSource mDataSource;
+    private MediaInfoExtractor.MediaInfo mMediaInfo;
+    private SampleTableDemuxer mDemuxer;
+    private MediaCodec mDecoder;
+    private final BufferInfo mFrameInfo = new BufferInfo();
+
+    /**
+     * @return false if the proxy can't be decoded, the scrubber is released then.
+     */
+    boolean open(String proxyPath, Surface surface){
+        try{
+            mDataSource = MappedDataSource.open(proxyPath);
+            mMediaInfo = MediaInfoCache.getInstance().get(proxyPath, mDataSource);
+            mDemuxer = new SampleTableDemuxer(mDataSource, mMediaInfo.sampleTable);
+            mDecoder = createDecoder(readFormat(), surface);
+            return true;
+        }catch (Exception ex){
+            Log.w(TAG, "Can't open proxy " + proxyPath + ": " + ex);
+            release();
+            return false;
+        }
+    }
+
+    /**
+     * Render the proxy frame on screen at the time.
+     *
+     * @return presentation time of the frame shown, or -1 if the decoder failed to show it
+     */
+    long seekTo(long timeUs){
+        SampleTable sampleTable = mMediaInfo.sampleTable;
+        long frameTimeUs = mMediaInfo.ptsTable.frameTimeAt(timeUs);
+        mDemuxer.seekToSample(sampleTable.getSyncSampleForTime(frameTimeUs));
+        mDecoder.flush();
+
+        long deadline = System.nanoTime() + SEEK_TIMEOUT_NS;
+        boolean inputDone = false;
+        while(System.nanoTime() < deadline){
+            if(!inputDone){
+                inputDone = feedDecoder();
+            }
+            int outIndex = mDecoder.dequeueOutputBuffer(mFrameInfo, TIMEOUT_USEC);
+            if(outIndex < 0){
+                continue;
+            }
+            boolean endOfStream = (mFrameInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+            // a proxy made by an encoder that ignored the all key frames request decodes from its key frame.
+            if(mFrameInfo.presentationTimeUs < frameTimeUs && !endOfStream){
+                mDecoder.releaseOutputBuffer(outIndex, false);
+                continue;
+            }
+            mDecoder.releaseOutputBuffer(outIndex, mFrameInfo.size > 0);
+            return endOfStream && mFrameInfo.size == 0 ? frameTimeUs : mFrameInfo.presentationTimeUs;
+        }
+        Log.w(TAG, "Proxy decoder didn't show " + timeUs + "us in time.");
+        return -1;
+    }
+
+    void release(){
+        if(mDecoder != null){
+            try{
+                mDecoder.stop();
+            }catch (Exception ex){} // safe ignore
+            mDecoder.release();
+            mDecoder = null;
+        }
+        mDemuxer = null;
+        if(mDataSource != null){
+            try{
+                mDataSource.close();
+            }catch (IOException ex){} // safe ignore
+            mDataSource = null;
+        }
+    }
+
+    /**
+     * @return the first of the candidates of {@link DecoderSelector} that starts, or the default decoder.
+     */
+    private static MediaCodec createDecoder(MediaFormat format, Surface surface){
+        for(String name : DecoderSelector.getCandidates(format)){
+            MediaCodec decoder = null;
+            try{
+                decoder = MediaCodec.createByCodecName(name);
+                decoder.configure(format, surface, null, 0);
+                decoder.start();
+                DecoderSelector.markSucceeded(format, name);
+                return decoder;
+            }catch (Exception ex){
+                Log.w(TAG, "Proxy decoder " + name + " failed: " + ex);
+                if(decoder != null){
+                    decoder.release();
+                }
+                DecoderSelector.markFailed(format, name, ex);
+            }
+        }
+        MediaCodec decoder = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+        try{
+            decoder.configure(format, surface, null, 0);
+            decoder.start();
+            return decoder;
+        }catch (RuntimeException ex){
+            decoder.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return true if the end of stream is queued
+     */
+    private boolean feedDecoder(){
+        int inIndex = mDecoder.dequeueInputBuffer(TIMEOUT_USEC);
+        if(inIndex < 0){
+            return false;
+        }
+        ByteBuffer buffer = mDecoder.getInputBuffers()[inIndex];
+        int sampleSize = mDemuxer.readSampleData(buffer, 0);
+        if(sampleSize < 0){
+            mDecoder.queueInputBuffer(inIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            return true;
+        }
+        mDecoder.queueInputBuffer(inIndex, 0, sampleSize, mDemuxer.getSampleTime(), 0);
+        mDemuxer.advance();
+        return false;
+    }
+
+    private MediaFormat readFormat() throws IOException{
+        MediaExtractor extractor = new MediaExtractor();
+        try{
+            extractor.setDataSource(mDataSource.getFileDescriptor(), mDataSource.getOffset(), mDataSource.getLength());
+            for(int i = 0; i < extractor.getTrackCount(); i++){
+                MediaFormat format = extractor.getTrackFormat(i);
+                if(format.getString(MediaFormat.KEY_MIME).startsWith("video/")){
+                    if(format.containsKey("rotation-degrees")){
+                        format.setInteger("rotation-degrees", 0); // the view rotates, as for the clip
+                    }
+                    return format;
+                }
+            }
+            throw new IOException("Can't find video track.");
+        }finally {
+            extractor.release();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.zepp.frameplayer;
+
+import java.util.Arrays;
+
+/**
+ * Presentation timestamps of all frames of a video track, in presentation order.
+ *
+ * Frame rates of phone recordings are variable, so a frame can't be located by dividing a timestamp
+ * with the average frame duration. The table keeps the exact timestamp of every frame instead.
+ * To stay compact, timestamps are delta-encoded as int, with an absolute timestamp stored at the
+ * start of every block of {@link #BLOCK_SIZE} frames; a lookup is a binary search over the blocks
+ * plus a short scan inside one block.
+ *
+ * The table of a file being recorded grows with {@link #extend(long[], int)}; a table never changes once
+ * built, the extended one shares its arrays and only writes past the end of the previous one.
+ */
+public final class PtsTable {
+    private static final int BLOCK_SHIFT = 5;
+    public static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+    private final long[] mBlockTimesUs; // timestamp of the first frame of each block
+    private final int[] mDeltasUs;      // distance to the previous frame, 0 for the first frame of a block
+    private final int mSize;
+
+    private PtsTable(long[] blockTimesUs, int[] deltasUs, int size){
+        mBlockTimesUs = blockTimesUs;
+        mDeltasUs = deltasUs;
+        mSize = size;
+    }
+
+    /**
+     * @param timestampsUs timestamps of the frames in any order, e.g. decoding order. The array is not modified.
+     */
+    public static PtsTable build(long[] timestampsUs){
+        return build(timestampsUs, timestampsUs.length);
+    }
+
+    static PtsTable build(long[] timestampsUs, int count){
+        long[] sorted = Arrays.copyOf(timestampsUs, count);
+        Arrays.sort(sorted);
+        long[] blockTimes = new long[blockCountOf(count)];
+        int[] deltas = new int[count];
+        for(int i = 0; i < count; i++){
+            if((i & (BLOCK_SIZE - 1)) == 0){
+                blockTimes[i >> BLOCK_SHIFT] = sorted[i];
+            }else{
+                deltas[i] = (int)(sorted[i] - sorted[i - 1]);
+            }
+        }
+        return new PtsTable(blockTimes, deltas, count);
+    }
+
+    /**
+     * Add the frames of a new fragment. Frames are only reordered inside a fragment, so the new timestamps
+     * are sorted and appended; the table is rebuilt if they overlap the last frame of this one.
+     *
+     * @param timestampsUs timestamps of all frames in decoding order, the first {@link #size()} are in this table
+     * @param count number of frames of the new table
+     */
+    PtsTable extend(long[] timestampsUs, int count){
+        if(count <= mSize){
+            return this;
+        }
+        long[] added = Arrays.copyOfRange(timestampsUs, mSize, count);
+        Arrays.sort(added);
+        if(mSize > 0 && added[0] < timeAt(mSize - 1)){
+            return build(timestampsUs, count);
+        }
+        long[] blockTimes = mBlockTimesUs;
+        int[] deltas = mDeltasUs;
+        if(count > deltas.length){
+            deltas = Arrays.copyOf(deltas, Math.max(count, deltas.length * 2));
+        }
+        if(blockCountOf(count) > blockTimes.length){
+            blockTimes = Arrays.copyOf(blockTimes, Math.max(blockCountOf(count), blockTimes.length * 2));
+        }
+        long previous = mSize > 0 ? timeAt(mSize - 1) : 0;
+        for(int i = mSize; i < count; i++){
+            long time = added[i - mSize];
+            if((i & (BLOCK_SIZE - 1)) == 0){
+                blockTimes[i >> BLOCK_SHIFT] = time;
+            }else{
+                deltas[i] = (int)(time - previous);
+            }
+            previous = time;
+        }
+        return new PtsTable(blockTimes, deltas, count);
+    }
+
+    private static int blockCountOf(int size){
+        return (size + BLOCK_SIZE - 1) >> BLOCK_SHIFT;
+    }
+
+    public int size(){
+        return mSize;
+    }
+
+    /**
+     * @return presentation time of the frame at the index, in microseconds.
+     */
+    public long timeAt(int index){
+        if(index < 0 || index >= mSize){
+            throw new IndexOutOfBoundsException("Frame index " + index + " is out of range [0, " + mSize + ").");
+        }
+        int block = index >> BLOCK_SHIFT;
+        long time = mBlockTimesUs[block];
+        for(int i = (block << BLOCK_SHIFT) + 1; i <= index; i++){
+            time += mDeltasUs[i];
+        }
+        return time;
+    }
+
+    /**
+     * @return index of the frame that is on screen at timeUs, i.e. the last frame whose presentation time
+     *         is not after timeUs. The first frame is returned if timeUs is before it.
+     */
+    public int indexOf(long timeUs){
+        if(mSize == 0){
+            return -1;
+        }
+        // find the last block which starts at or before timeUs
+        int low = 0;
+        int high = blockCountOf(mSize) - 1;
+        while(low <= high){
+            int mid = (low + high) >>> 1;
+            if(mBlockTimesUs[mid] <= timeUs){
+                low = mid + 1;
+            }else{
+                high = mid - 1;
+            }
+        }
+        if(high < 0){
+            return 0;
+        }
+        int index = high << BLOCK_SHIFT;
+        int blockEnd = Math.min(index + BLOCK_SIZE, mSize);
+        long time = mBlockTimesUs[high];
+        while(index + 1 < blockEnd && time + mDeltasUs[index + 1] <= timeUs){
+            index++;
+            time += mDeltasUs[index];
+        }
+        return index;
+    }
+
+    /**
+     * @return presentation time of the frame that is on screen at timeUs.
+     */
+    public long frameTimeAt(long timeUs){
+        return timeAt(indexOf(timeUs));
+    }
+
+    /**
+     * @return presentation time of the first frame after the one on screen at timeUs,
+     *         or the time of the last frame if there is none.
+     */
+    public long nextFrameTime(long timeUs){
+        return timeAt(Math.min(indexOf(timeUs) + 1, mSize - 1));
+    }
+
+    /**
+     * @return presentation time of the frame before the one on screen at timeUs,
+     *         or the time of the first frame if there is none.
+     */
+    public long previousFrameTime(long timeUs){
+        return timeAt(Math.max(indexOf(timeUs) - 1, 0));
+    }
+
+    /**
+     * @return approximate memory used by the table, in bytes.
+     */
+    public long byteSize(){
+        return mBlockTimesUs.length * 8L + mDeltasUs.length * 4L;
+    }
+}
@@ -0,0 +1,376 @@
+package com.zepp.frameplayer;
+
+import com.coremedia.iso.boxes.ChunkOffsetBox;
+import com.coremedia.iso.boxes.CompositionTimeToSample;
+import com.coremedia.iso.boxes.SampleDescriptionBox;
+import com.coremedia.iso.boxes.SampleSizeBox;
+import com.coremedia.iso.boxes.SampleTableBox;
+import com.coremedia.iso.boxes.SampleToChunkBox;
+import com.coremedia.iso.boxes.SyncSampleBox;
+import com.coremedia.iso.boxes.TimeToSampleBox;
+import com.coremedia.iso.boxes.sampleentry.AbstractSampleEntry;
+import com.mp4parser.iso14496.part15.AvcConfigurationBox;
+import com.mp4parser.iso14496.part15.HevcConfigurationBox;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Flattened sample index of a video track, built from the boxes of its "stbl".
+ * Samples are kept in decoding order, everything is stored in primitive arrays so that
+ * the position, size and timestamp of any sample can be read in O(1).
+ *
+ * The index of a fragmented file grows with {@link Builder}, a table is a snapshot of the first
+ * samples and never changes, even though it may share its arrays with later snapshots.
+ */
+final class SampleTable {
+    private final long[] mOffsets;      // position of each sample, relative to the start of the data source
+    private final int[] mSizes;
+    private final long[] mTimesUs;      // presentation time of each sample
+    private final int[] mSyncSamples;   // ascending indexes of sync samples
+    private final int mSampleCount;     // the arrays may be longer, see Builder
+    private final int mSyncCount;
+    private final long mDurationUs;
+    private final int mMaxSampleSize;
+    private final int mNalLengthSize;   // length prefix of the NAL units of AVC/HEVC samples, 0 for other codecs
+
+    private SampleTable(long[] offsets, int[] sizes, long[] timesUs, int[] syncSamples, long durationUs,
+                        int nalLengthSize){
+        this(offsets, sizes, timesUs, syncSamples, sizes.length, syncSamples.length, durationUs, maxOf(sizes),
+                nalLengthSize);
+    }
+
+    private SampleTable(long[] offsets, int[] sizes, long[] timesUs, int[] syncSamples, int sampleCount, int syncCount,
+                        long durationUs, int maxSampleSize, int nalLengthSize){
+        mOffsets = offsets;
+        mSizes = sizes;
+        mTimesUs = timesUs;
+        mSyncSamples = syncSamples;
+        mSampleCount = sampleCount;
+        mSyncCount = syncCount;
+        mDurationUs = durationUs;
+        mMaxSampleSize = maxSampleSize;
+        mNalLengthSize = nalLengthSize;
+    }
+
+    private static int maxOf(int[] sizes){
+        int maxSize = 0;
+        for(int size : sizes){
+            maxSize = Math.max(maxSize, size);
+        }
+        return maxSize;
+    }
+
+    static SampleTable build(SampleTableBox stbl, long timeScale) throws IllegalArgumentException{
+        SampleSizeBox stsz = stbl.getSampleSizeBox();
+        ChunkOffsetBox chunkOffsetBox = stbl.getChunkOffsetBox();
+        SampleToChunkBox stsc = stbl.getSampleToChunkBox();
+        TimeToSampleBox stts = stbl.getTimeToSampleBox();
+        if(stsz == null || chunkOffsetBox == null || stsc == null || stts == null){
+            throw new IllegalArgumentException("Sample table of video track is incomplete.");
+        }
+        int sampleCount = (int)stsz.getSampleCount();
+
+        // sample sizes
+        int[] sizes = new int[sampleCount];
+        if(stsz.getSampleSize() > 0){
+            Arrays.fill(sizes, (int)stsz.getSampleSize());
+        }else{
+            long[] sampleSizes = stsz.getSampleSizes();
+            for(int i = 0; i < sampleCount; i++){
+                sizes[i] = (int)sampleSizes[i];
+            }
+        }
+
+        // sample offsets, samples of one chunk are stored back to back.
+        long[] offsets = new long[sampleCount];
+        long[] chunkOffsets = chunkOffsetBox.getChunkOffsets();
+        long[] samplesPerChunk = stsc.blowup(chunkOffsets.length);
+        int sampleIndex = 0;
+        for(int chunk = 0; chunk < chunkOffsets.length && sampleIndex < sampleCount; chunk++){
+            long offset = chunkOffsets[chunk];
+            for(long i = 0; i < samplesPerChunk[chunk] && sampleIndex < sampleCount; i++){
+                offsets[sampleIndex] = offset;
+                offset += sizes[sampleIndex];
+                sampleIndex++;
+            }
+        }
+
+        // decoding time + composition offset = presentation time
+        long[] timestamps = new long[sampleCount];
+        long decodingTime = 0;
+        sampleIndex = 0;
+        for(TimeToSampleBox.Entry entry : stts.getEntries()){
+            for(long i = 0; i < entry.getCount() && sampleIndex < sampleCount; i++){
+                timestamps[sampleIndex++] = decodingTime;
+                decodingTime += entry.getDelta();
+            }
+        }
+        while(sampleIndex < sampleCount){
+            timestamps[sampleIndex++] = decodingTime;
+        }
+        CompositionTimeToSample ctts = stbl.getCompositionTimeToSample();
+        if(ctts != null){
+            sampleIndex = 0;
+            for(CompositionTimeToSample.Entry entry : ctts.getEntries()){
+                for(int i = 0; i < entry.getCount() && sampleIndex < sampleCount; i++){
+                    timestamps[sampleIndex++] += entry.getOffset();
+                }
+            }
+        }
+        long[] timesUs = new long[sampleCount];
+        for(int i = 0; i < sampleCount; i++){
+            timesUs[i] = toMicroseconds(timestamps[i], timeScale);
+        }
+
+        // no "stss" means every sample is a sync sample.
+        int[] syncSamples;
+        SyncSampleBox stss = stbl.getSyncSampleBox();
+        if(stss != null){
+            long[] sampleNumbers = stss.getSampleNumber();
+            syncSamples = new int[sampleNumbers.length];
+            for(int i = 0; i < sampleNumbers.length; i++){
+                syncSamples[i] = (int)sampleNumbers[i] - 1; // sample numbers are 1-based
+            }
+            Arrays.sort(syncSamples);
+            if(syncSamples.length == 0){
+                syncSamples = new int[]{0}; // a broken "stss", decoding has to start from the first sample anyway.
+            }
+        }else{
+            syncSamples = new int[sampleCount];
+            for(int i = 0; i < sampleCount; i++){
+                syncSamples[i] = i;
+            }
+        }
+
+        return new SampleTable(offsets, sizes, timesUs, syncSamples, toMicroseconds(decodingTime, timeScale),
+                readNalLengthSize(stbl));
+    }
+
+    /**
+     * @return bytes of the length prefixes of the NAL units, from the "avcC"/"hvcC" of the sample entry;
+     * 0 if the samples are not length-prefixed NAL units.
+     */
+    static int readNalLengthSize(SampleTableBox stbl){
+        SampleDescriptionBox stsd = stbl.getSampleDescriptionBox();
+        AbstractSampleEntry entry = stsd != null ? stsd.getSampleEntry() : null;
+        if(entry == null){
+            return 0;
+        }
+        List<AvcConfigurationBox> avcC = entry.getBoxes(AvcConfigurationBox.class);
+        if(!avcC.isEmpty()){
+            return avcC.get(0).getLengthSizeMinusOne() + 1;
+        }
+        List<HevcConfigurationBox> hvcC = entry.getBoxes(HevcConfigurationBox.class);
+        if(!hvcC.isEmpty()){
+            return hvcC.get(0).getLengthSizeMinusOne() + 1;
+        }
+        return 0;
+    }
+
+    static long toMicroseconds(long time, long timeScale){
+        return time * 1000 * 1000 / timeScale;
+    }
+
+    int getSampleCount(){
+        return mSampleCount;
+    }
+    long getOffset(int index){
+        return mOffsets[index];
+    }
+    int getSize(int index){
+        return mSizes[index];
+    }
+    long getTimeUs(int index){
+        return mTimesUs[index];
+    }
+    long getDurationUs(){
+        return mDurationUs;
+    }
+    int getMaxSampleSize(){
+        return mMaxSampleSize;
+    }
+    int getNalLengthSize(){
+        return mNalLengthSize;
+    }
+    long byteSize(){
+        return mOffsets.length * 8L + mSizes.length * 4L + mTimesUs.length * 8L + mSyncSamples.length * 4L;
+    }
+    PtsTable buildPtsTable(){
+        return PtsTable.build(mTimesUs, mSampleCount);
+    }
+
+    /**
+     * @param previous the PTS table of an earlier snapshot of this table, or null
+     * @return PTS table of this snapshot, only the samples added since the previous one are sorted in.
+     */
+    PtsTable extendPtsTable(PtsTable previous){
+        if(previous == null){
+            return buildPtsTable();
+        }
+        return previous.extend(mTimesUs, mSampleCount);
+    }
+    boolean isSyncSample(int index){
+        return Arrays.binarySearch(mSyncSamples, 0, mSyncCount, index) >= 0;
+    }
+
+    /**
+     * @return 1-based sample numbers of the sync samples, the same as the content of "stss".
+     */
+    long[] getSyncSampleNumbers(){
+        long[] numbers = new long[mSyncCount];
+        for(int i = 0; i < mSyncCount; i++){
+            numbers[i] = mSyncSamples[i] + 1;
+        }
+        return numbers;
+    }
+
+    /**
+     * @return index of the last sync sample at or before the given sample, the first sync sample if none.
+     */
+    int getSyncSampleAtOrBefore(int index){
+        int pos = Arrays.binarySearch(mSyncSamples, 0, mSyncCount, index);
+        if(pos < 0){
+            pos = -pos - 2; // insertion point - 1
+        }
+        return mSyncSamples[Math.max(pos, 0)];
+    }
+
+    /**
+     * @return index of the first sync sample at or after the given sample, -1 if none.
+     */
+    int getSyncSampleAtOrAfter(int index){
+        int pos = Arrays.binarySearch(mSyncSamples, 0, mSyncCount, index);
+        if(pos < 0){
+            pos = -pos - 1; // insertion point
+        }
+        return pos < mSyncCount ? mSyncSamples[pos] : -1;
+    }
+
+    /**
+     * Sync samples never get reordered, so their timestamps are ascending in decoding order.
+     *
+     * @return position in the sync sample list of the last sync sample whose timestamp is not after timeUs,
+     *         0 if all of them are after timeUs.
+     */
+    private int findSyncPosition(long timeUs){
+        int low = 0;
+        int high = mSyncCount - 1;
+        while(low <= high){
+            int mid = (low + high) >>> 1;
+            if(mTimesUs[mSyncSamples[mid]] <= timeUs){
+                low = mid + 1;
+            }else{
+                high = mid - 1;
+            }
+        }
+        return Math.max(high, 0);
+    }
+
+    /**
+     * @return index of the sync sample that has to be decoded first to show the frame at timeUs.
+     */
+    int getSyncSampleForTime(long timeUs){
+        return mSyncSamples[findSyncPosition(timeUs)];
+    }
+
+    /**
+     * @return index of the first sync sample whose timestamp is not before timeUs, -1 if none.
+     */
+    int getSyncSampleAfterTime(long timeUs){
+        int pos = findSyncPosition(timeUs);
+        if(mTimesUs[mSyncSamples[pos]] < timeUs){
+            pos++;
+        }
+        return pos < mSyncCount ? mSyncSamples[pos] : -1;
+    }
+
+    /**
+     * @return index of the sync sample whose timestamp is closest to timeUs.
+     */
+    int getClosestSyncSample(long timeUs){
+        int before = getSyncSampleForTime(timeUs);
+        int after = getSyncSampleAfterTime(timeUs);
+        if(after < 0){
+            return before;
+        }
+        return (Math.abs(mTimesUs[after] - timeUs) < Math.abs(timeUs - mTimesUs[before])) ? after : before;
+    }
+
+    /**
+     * Appends samples in decoding order, e.g. the runs of the fragments of a file being recorded. Arrays grow
+     * by doubling and are shared with the snapshots built so far, samples are only written past their end.
+     * Not thread safe, the snapshots are.
+     */
+    static final class Builder {
+        private long[] mOffsets;
+        private int[] mSizes;
+        private long[] mTimesUs;
+        private int[] mSyncSamples;
+        private int mSampleCount;
+        private int mSyncCount;
+        private int mMaxSampleSize;
+        private long mDurationUs;
+        private int mNalLengthSize;
+
+        Builder(){
+            mOffsets = new long[64];
+            mSizes = new int[64];
+            mTimesUs = new long[64];
+            mSyncSamples = new int[8];
+        }
+
+        /**
+         * Start with the samples of a table, e.g. the ones in the "moov" of a fragmented file.
+         */
+        Builder(SampleTable table){
+            this();
+            for(int i = 0; i < table.getSampleCount(); i++){
+                add(table.getOffset(i), table.getSize(i), table.getTimeUs(i), table.isSyncSample(i));
+            }
+            mDurationUs = table.getDurationUs();
+            mNalLengthSize = table.getNalLengthSize();
+        }
+
+        void add(long offset, int size, long timeUs, boolean sync){
+            if(mSampleCount == mSizes.length){
+                int capacity = mSampleCount * 2;
+                mOffsets = Arrays.copyOf(mOffsets, capacity);
+                mSizes = Arrays.copyOf(mSizes, capacity);
+                mTimesUs = Arrays.copyOf(mTimesUs, capacity);
+            }
+            mOffsets[mSampleCount] = offset;
+            mSizes[mSampleCount] = size;
+            mTimesUs[mSampleCount] = timeUs;
+            // decoding has to start from the first sample anyway.
+            if(sync || mSyncCount == 0){
+                if(mSyncCount == mSyncSamples.length){
+                    mSyncSamples = Arrays.copyOf(mSyncSamples, mSyncCount * 2);
+                }
+                mSyncSamples[mSyncCount++] = mSampleCount;
+            }
+            mMaxSampleSize = Math.max(mMaxSampleSize, size);
+            mSampleCount++;
+        }
+
+        /**
+         * @param durationUs decoding time at the end of the last sample
+         */
+        void setDurationUs(long durationUs){
+            mDurationUs = durationUs;
+        }
+
+        void setNalLengthSize(int nalLengthSize){
+            mNalLengthSize = nalLengthSize;
+        }
+
+        int getSampleCount(){
+            return mSampleCount;
+        }
+
+        SampleTable build(){
+            return new SampleTable(mOffsets, mSizes, mTimesUs, mSyncSamples, mSampleCount, mSyncCount,
+                    mDurationUs, mMaxSampleSize, mNalLengthSize);
+        }
+    }
+}
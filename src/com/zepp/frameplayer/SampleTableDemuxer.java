@@ -0,0 +1,135 @@
+package com.zepp.frameplayer;
+
+import android.media.MediaExtractor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Demuxer of the video track that reads samples by index, using the offsets, sizes and timestamps
+ * of the {@link SampleTable}. Sample data is copied straight from the mapped source into the
+ * codec input buffer. The interface mirrors the part of {@link MediaExtractor} used by the player.
+ */
+final class SampleTableDemuxer {
+    private final MappedDataSource mSource;
+    private SampleTable mTable;
+    private int mSampleIndex;
+
+    SampleTableDemuxer(MappedDataSource source, SampleTable table){
+        mSource = source;
+        mTable = table;
+        mSampleIndex = 0;
+    }
+
+    SampleTable getSampleTable(){
+        return mTable;
+    }
+
+    /**
+     * Replace the table with a later snapshot of it, e.g. after new fragments of a clip being recorded
+     * are indexed. The read position is kept.
+     */
+    void setSampleTable(SampleTable table){
+        mTable = table;
+    }
+
+    /**
+     * Copy the current sample to the buffer, AVC/HEVC samples are converted to Annex-B like
+     * {@link MediaExtractor} does.
+     *
+     * @return size of the sample in the buffer, or -1 if there is no more sample.
+     */
+    int readSampleData(ByteBuffer buffer, int offset){
+        if(isEndOfStream()){
+            return -1;
+        }
+        ByteBuffer sample = mSource.slice(mTable.getOffset(mSampleIndex), mTable.getSize(mSampleIndex));
+        buffer.clear();
+        buffer.position(offset);
+        int size;
+        if(mTable.getNalLengthSize() > 0){
+            size = AnnexB.convert(sample, mTable.getNalLengthSize(), buffer);
+        }else{
+            size = sample.remaining();
+            buffer.put(sample);
+        }
+        buffer.limit(offset + size);
+        buffer.position(offset);
+        return size;
+    }
+
+    /**
+     * @return presentation time of the current sample, or -1 if there is no more sample.
+     */
+    long getSampleTime(){
+        if(isEndOfStream()){
+            return -1;
+        }
+        return mTable.getTimeUs(mSampleIndex);
+    }
+
+    int getSampleFlags(){
+        if(isEndOfStream()){
+            return 0;
+        }
+        return mTable.isSyncSample(mSampleIndex) ? MediaExtractor.SAMPLE_FLAG_SYNC : 0;
+    }
+
+    boolean advance(){
+        if(isEndOfStream()){
+            return false;
+        }
+        mSampleIndex++;
+        return !isEndOfStream();
+    }
+
+    int getSampleIndex(){
+        return mSampleIndex;
+    }
+
+    void seekToSample(int index){
+        mSampleIndex = Math.max(0, Math.min(index, mTable.getSampleCount()));
+    }
+
+    /**
+     * Seek to a sync sample, same semantics as {@link MediaExtractor#seekTo(long, int)}.
+     */
+    void seekTo(long timeUs, int mode){
+        switch (mode){
+            case MediaExtractor.SEEK_TO_NEXT_SYNC:
+                int next = mTable.getSyncSampleAfterTime(timeUs);
+                seekToSample(next < 0 ? mTable.getSampleCount() : next);
+                break;
+            case MediaExtractor.SEEK_TO_CLOSEST_SYNC:
+                seekToSample(mTable.getClosestSyncSample(timeUs));
+                break;
+            case MediaExtractor.SEEK_TO_PREVIOUS_SYNC:
+            default:
+                seekToSample(mTable.getSyncSampleForTime(timeUs));
+                break;
+        }
+    }
+
+    /**
+     * Load the data of the samples in [fromIndex, toIndex) into memory, without moving the read position.
+     */
+    void warmUp(int fromIndex, int toIndex){
+        toIndex = Math.min(toIndex, mTable.getSampleCount());
+        if(fromIndex < 0 || fromIndex >= toIndex){
+            return;
+        }
+        long start = mTable.getOffset(fromIndex);
+        long end = mTable.getOffset(toIndex - 1) + mTable.getSize(toIndex - 1);
+        if(end > start){
+            mSource.touch(start, end - start);
+        }else{
+            // samples are not stored in order, e.g. interleaved with other tracks in odd ways.
+            for(int i = fromIndex; i < toIndex; i++){
+                mSource.touch(mTable.getOffset(i), mTable.getSize(i));
+            }
+        }
+    }
+
+    boolean isEndOfStream(){
+        return mSampleIndex >= mTable.getSampleCount();
+    }
+}
@@ -0,0 +1,48 @@
+package com.zepp.frameplayer;
+
+/**
+ * Tracks the direction and speed of recent seeks, to guess which position is requested next.
+ * Seeks are recorded by the callers of the player, predictions are read by the player thread.
+ */
+final class SeekPredictor {
+    private static final int HISTORY_SIZE = 4;
+    // a pause longer than this ends the scrubbing, older seeks say nothing about the next one.
+    private static final long IDLE_NS = 1000L * 1000 * 1000;
+
+    private final long[] mTargetsUs = new long[HISTORY_SIZE];
+    private final long[] mTimesNs = new long[HISTORY_SIZE];
+    private int mCount;
+    private int mNext;
+
+    synchronized void onSeek(long targetUs, long nowNs){
+        if(mCount > 0 && nowNs - mTimesNs[last()] > IDLE_NS){
+            mCount = 0;
+        }
+        mTargetsUs[mNext] = targetUs;
+        mTimesNs[mNext] = nowNs;
+        mNext = (mNext + 1) % HISTORY_SIZE;
+        mCount = Math.min(mCount + 1, HISTORY_SIZE);
+    }
+
+    synchronized void reset(){
+        mCount = 0;
+    }
+
+    /**
+     * @return the position that is expected to be requested next, or Long.MIN_VALUE if the recent seeks
+     *         show no motion.
+     */
+    synchronized long predict(long nowNs){
+        if(mCount < 2 || nowNs - mTimesNs[last()] > IDLE_NS){
+            return Long.MIN_VALUE;
+        }
+        int first = (mNext - mCount + HISTORY_SIZE) % HISTORY_SIZE;
+        // the average step of the recent seeks, i.e. the velocity in media time per seek.
+        long step = (mTargetsUs[last()] - mTargetsUs[first]) / (mCount - 1);
+        return mTargetsUs[last()] + step;
+    }
+
+    private int last(){
+        return (mNext - 1 + HISTORY_SIZE) % HISTORY_SIZE;
+    }
+}
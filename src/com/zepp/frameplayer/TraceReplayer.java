@@ -0,0 +1,629 @@
+package com.zepp.frameplayer;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Replays a {@link CommandTrace} against a simulated decoder, e.g. on a desktop JVM to reproduce a scrub
+ * latency bug from the field or to benchmark a change of the seek logic.
+ *
+ * The replay runs on a virtual clock, so it is deterministic: every command is issued at its recorded time,
+ * waits for the commands before it, and executes the way {@link FramePlayer} does, decoding from the key
+ * frame if needed. The decoder costs time per sample fed and outputs frames in presentation order, it holds
+ * as many frames as the reordering of the clip needs.
+ *
+ * Usage: {@code java com.zepp.frameplayer.TraceReplayer <trace> [frameMs keyFrameMs]}
+ */
+public final class TraceReplayer {
+    private static final long NONE = Long.MIN_VALUE;
+
+    private TraceReplayer(){}
+
+    /**
+     * Time the simulated decoder takes.
+     */
+    public static final class DecoderModel {
+        private static final long DEFAULT_FRAME_NS = 2000000;
+        private static final long DEFAULT_FLUSH_NS = 1000000;
+        private static final long DEFAULT_RESTART_NS = 30000000;
+
+        public final long frameDecodeNs;
+        public final long keyFrameDecodeNs;
+        public final long flushNs;
+        public final long restartNs;
+
+        public DecoderModel(long frameDecodeNs, long keyFrameDecodeNs, long flushNs, long restartNs){
+            this.frameDecodeNs = frameDecodeNs;
+            this.keyFrameDecodeNs = keyFrameDecodeNs;
+            this.flushNs = flushNs;
+            this.restartNs = restartNs;
+        }
+
+        /**
+         * Estimate the costs from the decoder work recorded while seeking, when the decoder runs flat out.
+         * Costs the trace doesn't show get defaults.
+         */
+        public static DecoderModel estimate(CommandTrace trace){
+            long[] syncTimesUs = syncTimesOf(trace);
+            long frameNs = 0;
+            int frames = 0;
+            long keyFrameNs = 0;
+            int keyFrames = 0;
+            long flushNs = 0;
+            int flushes = 0;
+            long restartNs = 0;
+            int restarts = 0;
+            int seeking = -1; // command being executed, if it's a seek
+            long lastQueuedNs = NONE;
+            boolean lastQueuedSync = false;
+            int lastDecoderOp = 0;
+            long lastDecoderOpNs = 0;
+            for(int i = 0; i < trace.size(); i++){
+                int type = trace.typeAt(i);
+                long timeNs = trace.timeAt(i);
+                if(type == CommandTrace.COMMAND_BEGIN){
+                    int command = trace.typeAt((int)trace.argAt(i));
+                    seeking = command == CommandTrace.SEEK || command == CommandTrace.SEEK_SEQUENCE ? i : -1;
+                    lastQueuedNs = NONE;
+                }else if(type == CommandTrace.COMMAND_DONE){
+                    seeking = -1;
+                }else if(seeking >= 0 && type == CommandTrace.SAMPLE_QUEUED){
+                    if(lastQueuedNs != NONE){
+                        if(lastQueuedSync){
+                            keyFrameNs += timeNs - lastQueuedNs;
+                            keyFrames++;
+                        }else{
+                            frameNs += timeNs - lastQueuedNs;
+                            frames++;
+                        }
+                    }
+                    lastQueuedNs = timeNs;
+                    lastQueuedSync = Arrays.binarySearch(syncTimesUs, trace.argAt(i)) >= 0;
+                }
+                if(lastDecoderOp != 0 && type != lastDecoderOp){
+                    // the operation lasts until the worker does something else
+                    if(lastDecoderOp == CommandTrace.DECODER_FLUSH){
+                        flushNs += timeNs - lastDecoderOpNs;
+                        flushes++;
+                    }else{
+                        restartNs += timeNs - lastDecoderOpNs;
+                        restarts++;
+                    }
+                    lastDecoderOp = 0;
+                }
+                if(type == CommandTrace.DECODER_FLUSH || type == CommandTrace.DECODER_RESTART){
+                    lastDecoderOp = type;
+                    lastDecoderOpNs = timeNs;
+                    lastQueuedNs = NONE;
+                }
+            }
+            long frame = frames > 0 ? frameNs / frames : DEFAULT_FRAME_NS;
+            return new DecoderModel(frame, keyFrames > 0 ? keyFrameNs / keyFrames : frame * 2,
+                    flushes > 0 ? flushNs / flushes : DEFAULT_FLUSH_NS,
+                    restarts > 0 ? restartNs / restarts : DEFAULT_RESTART_NS);
+        }
+
+        @Override
+        public String toString(){
+            return "DecoderModel{frameUs=" + frameDecodeNs / 1000
+                    + ", keyFrameUs=" + keyFrameDecodeNs / 1000
+                    + ", flushUs=" + flushNs / 1000
+                    + ", restartUs=" + restartNs / 1000 + "}";
+        }
+    }
+
+    /**
+     * A command of the trace, as recorded and as replayed.
+     */
+    public static final class CommandResult {
+        /** one of the command types of {@link CommandTrace}. */
+        public final int type;
+        public final long arg;
+        /** time the command was given, since the start of the trace, in nanoseconds. */
+        public final long issueNs;
+        /** time from given to executed on the device, -1 if dropped or not recorded. */
+        public final long recordedLatencyNs;
+        /** time from given to executed in the replay, -1 if superseded or not replayed. */
+        public final long latencyNs;
+        /** samples fed to the simulated decoder by the command. */
+        public final int decodedSamples;
+        public final boolean superseded;
+
+        private CommandResult(int type, long arg, long issueNs, long recordedLatencyNs, long latencyNs,
+                              int decodedSamples, boolean superseded){
+            this.type = type;
+            this.arg = arg;
+            this.issueNs = issueNs;
+            this.recordedLatencyNs = recordedLatencyNs;
+            this.latencyNs = latencyNs;
+            this.decodedSamples = decodedSamples;
+            this.superseded = superseded;
+        }
+
+        @Override
+        public String toString(){
+            return String.format("%8.1fms %-13s %10d latency %9s (recorded %9s) decoded %d%s",
+                    issueNs / 1e6, CommandTrace.nameOf(type), arg, msOf(latencyNs), msOf(recordedLatencyNs),
+                    decodedSamples, superseded ? " superseded" : "");
+        }
+    }
+
+    public static final class Report {
+        public final DecoderModel model;
+        public final CommandResult[] commands;
+        /** samples fed to the simulated decoder, including playback. */
+        public final long decodedSamples;
+        public final boolean truncated;
+
+        private Report(DecoderModel model, CommandResult[] commands, long decodedSamples, boolean truncated){
+            this.model = model;
+            this.commands = commands;
+            this.decodedSamples = decodedSamples;
+            this.truncated = truncated;
+        }
+
+        /**
+         * @param type command type of {@link CommandTrace}
+         * @param percentile 0..100
+         * @param recorded true for the latency recorded on the device
+         * @return latency in nanoseconds, -1 if no command of the type completed.
+         */
+        public long getLatencyNs(int type, double percentile, boolean recorded){
+            long[] latencies = new long[commands.length];
+            int count = 0;
+            for(CommandResult command : commands){
+                long latency = recorded ? command.recordedLatencyNs : command.latencyNs;
+                if(command.type == type && latency >= 0){
+                    latencies[count++] = latency;
+                }
+            }
+            if(count == 0){
+                return -1;
+            }
+            Arrays.sort(latencies, 0, count);
+            return latencies[Math.min((int)(count * percentile / 100), count - 1)];
+        }
+
+        @Override
+        public String toString(){
+            StringBuilder builder = new StringBuilder();
+            builder.append(model).append('\n');
+            int superseded = 0;
+            for(CommandResult command : commands){
+                builder.append(command).append('\n');
+                if(command.superseded){
+                    superseded++;
+                }
+            }
+            int[] types = {CommandTrace.SEEK, CommandTrace.SEEK_SEQUENCE, CommandTrace.SCRUB, CommandTrace.RESUME};
+            for(int type : types){
+                if(getLatencyNs(type, 0, false) < 0){
+                    continue;
+                }
+                builder.append(String.format("%-13s p50 %9s p95 %9s max %9s, recorded p50 %9s p95 %9s max %9s%n",
+                        CommandTrace.nameOf(type), msOf(getLatencyNs(type, 50, false)), msOf(getLatencyNs(type, 95, false)),
+                        msOf(getLatencyNs(type, 100, false)), msOf(getLatencyNs(type, 50, true)),
+                        msOf(getLatencyNs(type, 95, true)), msOf(getLatencyNs(type, 100, true))));
+            }
+            builder.append(commands.length).append(" commands, ").append(superseded).append(" superseded, ")
+                    .append(decodedSamples).append(" samples decoded");
+            if(truncated){
+                builder.append(", trace is truncated");
+            }
+            return builder.toString();
+        }
+    }
+
+    public static Report replay(CommandTrace trace){
+        return replay(trace, DecoderModel.estimate(trace));
+    }
+
+    public static Report replay(CommandTrace trace, DecoderModel model){
+        return new Simulation(trace, model).run();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length != 1 && args.length != 3){
+            System.err.println("Usage: TraceReplayer <trace> [frameMs keyFrameMs]");
+            System.exit(2);
+        }
+        CommandTrace trace;
+        InputStream stream = new FileInputStream(args[0]);
+        try{
+            trace = CommandTrace.readFrom(stream);
+        }finally {
+            stream.close();
+        }
+        DecoderModel model = DecoderModel.estimate(trace);
+        if(args.length == 3){
+            model = new DecoderModel((long)(Double.parseDouble(args[1]) * 1e6), (long)(Double.parseDouble(args[2]) * 1e6),
+                    model.flushNs, model.restartNs);
+        }
+        System.out.println(replay(trace, model));
+    }
+
+    private static String msOf(long ns){
+        return ns < 0 ? "-" : String.format("%.1fms", ns / 1e6);
+    }
+
+    private static long[] syncTimesOf(CommandTrace trace){
+        List<Long> times = new ArrayList<Long>();
+        for(int i = 0; i < trace.getSampleCount(); i++){
+            if(trace.isSyncSample(i)){
+                times.add(trace.getSampleTimeUs(i));
+            }
+        }
+        long[] result = new long[times.size()];
+        for(int i = 0; i < result.length; i++){
+            result[i] = times.get(i);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    // a command read from the trace
+    private static final class Command {
+        int type;
+        long arg;
+        long[] targetsUs; // of a seek sequence
+        long issueNs;
+        long recordedDoneNs = -1;
+        long doneNs = -1;
+        int decodedSamples;
+        boolean superseded;
+    }
+
+    /**
+     * The player and its decoder, executing the commands one after another like the worker does.
+     */
+    private static final class Simulation {
+        private final CommandTrace mTrace;
+        private final DecoderModel mModel;
+        private final PtsTable mPtsTable;
+        private final int mSampleCount;
+        private final int mReorderDepth;
+        private final long mDurationUs;
+        private Command[] mCommands;
+
+        private long mClockNs;
+        private long mDecodedSamples;
+        private Command mCurrent;
+        private int mCurrentIndex;
+        // decoder
+        private boolean mHasDecoder = true;
+        private int mNextSample;
+        private long[] mPending; // fed and not output yet
+        private int mPendingCount;
+        private long mLastOutputUs;
+        private boolean mIsEOS;
+        // player
+        private long mShownUs;
+        private boolean mIsPlaying;
+        private long mPlayStartNs;
+        private long mPlayStartUs;
+        private boolean mIsScrubbing;
+
+        Simulation(CommandTrace trace, DecoderModel model){
+            mTrace = trace;
+            mModel = model;
+            mSampleCount = trace.getSampleCount();
+            long[] timesUs = new long[mSampleCount];
+            for(int i = 0; i < mSampleCount; i++){
+                timesUs[i] = trace.getSampleTimeUs(i);
+            }
+            mPtsTable = PtsTable.build(timesUs);
+            // a frame is output once the frames presented before it are decoded, the decoder holds the
+            // frames decoded ahead of their turn meanwhile.
+            int depth = 0;
+            for(int i = 0; i < mSampleCount; i++){
+                depth = Math.max(depth, i - mPtsTable.indexOf(timesUs[i]));
+            }
+            mReorderDepth = depth;
+            mPending = new long[depth + 1];
+            mDurationUs = mSampleCount > 0 ? mPtsTable.timeAt(mSampleCount - 1) : 0;
+        }
+
+        Report run(){
+            readCommands();
+            // the decoder is positioned after the frame on screen when the trace starts.
+            mShownUs = mPtsTable.frameTimeAt(mTrace.getStartPositionUs());
+            mLastOutputUs = mShownUs;
+            mNextSample = 0;
+            while(mNextSample < mSampleCount && mTrace.getSampleTimeUs(mNextSample) != mShownUs){
+                mNextSample++;
+            }
+            mNextSample = Math.min(mNextSample + 1, mSampleCount);
+
+            for(int i = 0; i < mCommands.length; i++){
+                Command command = mCommands[i];
+                if(command.superseded){
+                    continue;
+                }
+                if(mIsPlaying){
+                    play(command.issueNs);
+                }
+                mClockNs = Math.max(mClockNs, command.issueNs);
+                mCurrent = command;
+                mCurrentIndex = i;
+                if(!execute(command)){
+                    break; // stopped
+                }
+            }
+            CommandResult[] results = new CommandResult[mCommands.length];
+            for(int i = 0; i < mCommands.length; i++){
+                Command command = mCommands[i];
+                results[i] = new CommandResult(command.type, command.arg, command.issueNs,
+                        command.recordedDoneNs >= 0 ? command.recordedDoneNs - command.issueNs : -1,
+                        command.doneNs >= 0 ? command.doneNs - command.issueNs : -1,
+                        command.decodedSamples, command.superseded);
+            }
+            return new Report(mModel, results, mDecodedSamples, mTrace.isTruncated());
+        }
+
+        private void readCommands(){
+            List<Command> commands = new ArrayList<Command>();
+            Command[] byEvent = new Command[mTrace.size()];
+            int targets = 0; // of the last seek sequence read
+            for(int i = 0; i < mTrace.size(); i++){
+                int type = mTrace.typeAt(i);
+                if(type >= CommandTrace.START && type <= CommandTrace.RELEASE){
+                    Command command = new Command();
+                    command.type = type;
+                    command.arg = mTrace.argAt(i);
+                    command.issueNs = mTrace.timeAt(i);
+                    if(type == CommandTrace.SEEK_SEQUENCE){
+                        command.targetsUs = new long[(int)command.arg];
+                        targets = 0;
+                    }
+                    byEvent[i] = command;
+                    commands.add(command);
+                }else if(type == CommandTrace.SEQUENCE_TARGET){
+                    Command command = commands.isEmpty() ? null : commands.get(commands.size() - 1);
+                    if(command != null && command.targetsUs != null && targets < command.targetsUs.length){
+                        command.targetsUs[targets++] = mTrace.argAt(i);
+                    }
+                }else if(type == CommandTrace.COMMAND_DONE){
+                    Command command = byEvent[(int)mTrace.argAt(i)];
+                    if(command != null){
+                        command.recordedDoneNs = mTrace.timeAt(i);
+                    }
+                }
+            }
+            mCommands = commands.toArray(new Command[commands.size()]);
+        }
+
+        /**
+         * @return false if the player stopped.
+         */
+        private boolean execute(Command command){
+            if(mIsScrubbing && command.type != CommandTrace.SEEK && command.type != CommandTrace.SCRUB){
+                endScrub();
+            }
+            switch (command.type){
+                case CommandTrace.START:
+                    if(mHasDecoder){
+                        mIsPlaying = true;
+                        mPlayStartNs = mClockNs;
+                        mPlayStartUs = mShownUs;
+                    }
+                    break;
+                case CommandTrace.PAUSE:
+                    mIsPlaying = false;
+                    break;
+                case CommandTrace.SEEK:
+                    if(mIsScrubbing){
+                        // every proxy frame decodes on its own
+                        decodeCost(true);
+                        mShownUs = mPtsTable.frameTimeAt(command.arg);
+                    }else{
+                        seek(command.arg);
+                    }
+                    break;
+                case CommandTrace.SEEK_SEQUENCE:
+                    seekSequence(command.targetsUs);
+                    break;
+                case CommandTrace.SCRUB:
+                    if(command.arg != 0){
+                        mIsScrubbing = !mIsPlaying;
+                    }else if(mIsScrubbing){
+                        endScrub();
+                    }
+                    break;
+                case CommandTrace.SUSPEND:
+                    mIsPlaying = false;
+                    mHasDecoder = false;
+                    mPendingCount = 0;
+                    break;
+                case CommandTrace.RESUME:
+                    mHasDecoder = true;
+                    mClockNs += mModel.restartNs;
+                    redecodeShownFrame();
+                    break;
+                default:
+                    command.doneNs = mClockNs;
+                    return false;
+            }
+            command.doneNs = mClockNs;
+            return true;
+        }
+
+        private void seek(long targetUs){
+            if(mShownUs == targetUs){
+                return;
+            }
+            if(!mHasDecoder){
+                mShownUs = targetUs; // shown when resumed
+                return;
+            }
+            if(targetUs < mLastOutputUs){
+                reposition(targetUs);
+            }else{
+                if(mIsEOS){
+                    mShownUs = mDurationUs;
+                    return;
+                }
+                if(syncSampleForTime(targetUs) > mNextSample){
+                    reposition(targetUs);
+                }
+            }
+            while(true){
+                long frameUs = decodeOne();
+                if(frameUs == NONE){
+                    mShownUs = mDurationUs;
+                    return;
+                }
+                long latestUs = latestSeekTarget();
+                if(frameUs == latestUs){
+                    dropSeeksAfter(latestUs);
+                    mShownUs = frameUs;
+                    return;
+                }
+                if(frameUs >= targetUs){
+                    mShownUs = frameUs;
+                    return;
+                }
+            }
+        }
+
+        private void seekSequence(long[] requestedUs){
+            long[] targetsUs = new long[requestedUs.length];
+            for(int i = 0; i < targetsUs.length; i++){
+                targetsUs[i] = mPtsTable.frameTimeAt(Math.max(Math.min(requestedUs[i], mDurationUs), 0));
+            }
+            Arrays.sort(targetsUs);
+            int next = 0;
+            while(next < targetsUs.length && targetsUs[next] == mShownUs){
+                next++;
+            }
+            while(next < targetsUs.length && mHasDecoder){
+                long targetUs = targetsUs[next];
+                if(targetUs < mLastOutputUs || mIsEOS || syncSampleForTime(targetUs) > mNextSample){
+                    reposition(targetUs);
+                }
+                long frameUs;
+                do{
+                    frameUs = decodeOne();
+                }while(frameUs != NONE && frameUs < targetUs);
+                mShownUs = frameUs == NONE ? mDurationUs : frameUs;
+                while(next < targetsUs.length && (frameUs == NONE || targetsUs[next] <= frameUs)){
+                    next++;
+                }
+            }
+        }
+
+        private void endScrub(){
+            mIsScrubbing = false;
+            redecodeShownFrame();
+        }
+
+        private void redecodeShownFrame(){
+            long shownUs = mShownUs;
+            reposition(shownUs);
+            long frameUs;
+            do{
+                frameUs = decodeOne();
+            }while(frameUs != NONE && frameUs < shownUs);
+        }
+
+        /**
+         * Present the frames on time until untilNs, or to the end of the clip.
+         */
+        private void play(long untilNs){
+            while(mClockNs < untilNs){
+                long frameUs = decodeOne();
+                if(frameUs == NONE){
+                    mIsPlaying = false;
+                    mShownUs = mDurationUs;
+                    return;
+                }
+                long dueNs = mPlayStartNs + (frameUs - mPlayStartUs) * 1000;
+                mClockNs = Math.max(mClockNs, dueNs);
+                mShownUs = frameUs;
+            }
+        }
+
+        //region Decoder
+        private void reposition(long targetUs){
+            mNextSample = syncSampleForTime(targetUs);
+            mPendingCount = 0;
+            mLastOutputUs = NONE;
+            // like the player, a decoder that reached the end of stream is replaced rather than flushed.
+            mClockNs += mIsEOS ? mModel.restartNs : mModel.flushNs;
+            mIsEOS = false;
+        }
+
+        /**
+         * @return presentation time of the next frame output, NONE at the end of stream.
+         */
+        private long decodeOne(){
+            while(true){
+                if(mPendingCount > mReorderDepth || (mNextSample >= mSampleCount && mPendingCount > 0)){
+                    int min = 0;
+                    for(int i = 1; i < mPendingCount; i++){
+                        if(mPending[i] < mPending[min]){
+                            min = i;
+                        }
+                    }
+                    long frameUs = mPending[min];
+                    mPending[min] = mPending[--mPendingCount];
+                    mLastOutputUs = frameUs;
+                    return frameUs;
+                }
+                if(mNextSample >= mSampleCount){
+                    mIsEOS = true;
+                    return NONE;
+                }
+                decodeCost(mTrace.isSyncSample(mNextSample));
+                mPending[mPendingCount++] = mTrace.getSampleTimeUs(mNextSample);
+                mNextSample++;
+            }
+        }
+
+        private void decodeCost(boolean keyFrame){
+            mClockNs += keyFrame ? mModel.keyFrameDecodeNs : mModel.frameDecodeNs;
+            mDecodedSamples++;
+            if(mCurrent != null){
+                mCurrent.decodedSamples++;
+            }
+        }
+
+        private int syncSampleForTime(long timeUs){
+            return mTrace.getSyncSampleForTime(timeUs);
+        }
+        //endregion
+
+        //region Superseding
+        /**
+         * @return target of the last seek given by now, the player compares the decoded frames with it.
+         */
+        private long latestSeekTarget(){
+            long latestUs = mCurrent.type == CommandTrace.SEEK ? mCurrent.arg : NONE;
+            for(Command command : mCommands){
+                if(command.issueNs > mClockNs){
+                    break;
+                }
+                if(command.type == CommandTrace.SEEK){
+                    latestUs = command.arg;
+                }
+            }
+            return latestUs;
+        }
+
+        /**
+         * Drop the seeks queued right after the current one that go beyond the frame reached.
+         */
+        private void dropSeeksAfter(long frameUs){
+            int index = mCurrentIndex + 1;
+            while(index < mCommands.length && mCommands[index].issueNs <= mClockNs
+                    && mCommands[index].type == CommandTrace.SEEK && mCommands[index].arg > frameUs){
+                mCommands[index].superseded = true;
+                index++;
+            }
+        }
+        //endregion
+    }
+}
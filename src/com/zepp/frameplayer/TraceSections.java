@@ -0,0 +1,67 @@
+package com.zepp.frameplayer;
+
+import android.os.Build;
+import android.os.Trace;
+
+import java.lang.reflect.Method;
+
+/**
+ * Sections shown by systrace/Perfetto, e.g. to see where the time of a slow seek goes. Sections are nested
+ * and end on the thread they began on; async sections can end on any thread, they are identified by a cookie.
+ * Trace is available from API 18, async sections from API 29, the calls are ignored before.
+ */
+final class TraceSections {
+    private static final boolean ENABLED = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+    private static final Method sBeginAsync;
+    private static final Method sEndAsync;
+
+    static {
+        Method begin = null;
+        Method end = null;
+        if(Build.VERSION.SDK_INT >= 29){
+            try{
+                begin = Trace.class.getMethod("beginAsyncSection", String.class, int.class);
+                end = Trace.class.getMethod("endAsyncSection", String.class, int.class);
+            }catch (Exception ex){
+                begin = null;
+                end = null;
+            }
+        }
+        sBeginAsync = begin;
+        sEndAsync = end;
+    }
+
+    private TraceSections(){}
+
+    /**
+     * @param name at most 127 characters
+     */
+    static void begin(String name){
+        if(ENABLED){
+            Trace.beginSection(name);
+        }
+    }
+
+    static void end(){
+        if(ENABLED){
+            Trace.endSection();
+        }
+    }
+
+    static void beginAsync(String name, int cookie){
+        invoke(sBeginAsync, name, cookie);
+    }
+
+    static void endAsync(String name, int cookie){
+        invoke(sEndAsync, name, cookie);
+    }
+
+    private static void invoke(Method method, String name, int cookie){
+        if(method == null){
+            return;
+        }
+        try{
+            method.invoke(null, name, cookie);
+        }catch (Exception ex){} // safe ignore, tracing only
+    }
+}
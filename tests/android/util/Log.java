@@ -0,0 +1,33 @@
+package android.util;
+
+/**
+ * Plain Java stand-in of the Android log, for the tests that run library code which logs. Prints to stderr.
+ */
+public final class Log {
+    private Log(){}
+
+    public static int d(String tag, String msg){
+        return println("D", tag, msg);
+    }
+    public static int i(String tag, String msg){
+        return println("I", tag, msg);
+    }
+    public static int w(String tag, String msg){
+        return println("W", tag, msg);
+    }
+    public static int w(String tag, String msg, Throwable tr){
+        return println("W", tag, msg + ": " + tr);
+    }
+    public static int e(String tag, String msg){
+        return println("E", tag, msg);
+    }
+    public static int e(String tag, String msg, Throwable tr){
+        return println("E", tag, msg + ": " + tr);
+    }
+
+    private static int println(String priority, String tag, String msg){
+        String line = priority + "/" + tag + ": " + msg;
+        System.err.println(line);
+        return line.length();
+    }
+}
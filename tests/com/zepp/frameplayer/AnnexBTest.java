@@ -0,0 +1,84 @@
+package com.zepp.frameplayer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Test of {@link AnnexB}: samples with 1, 2 and 4 byte NAL length prefixes, as read by {@link SampleTableDemuxer},
+ * come out with start codes and the NAL units unchanged.
+ *
+ * Plain Java, run from the project root:
+ *   javac -d /tmp/fp src/com/zepp/frameplayer/AnnexB.java tests/com/zepp/frameplayer/AnnexBTest.java
+ *   java -cp /tmp/fp com.zepp.frameplayer.AnnexBTest
+ */
+public final class AnnexBTest {
+    // SPS, PPS and a slice of an IDR frame, shortened.
+    private static final byte[][] NAL_UNITS = {
+            {0x67, 0x42, (byte)0xc0, 0x1e, (byte)0xda, 0x02, (byte)0x80, (byte)0xbf},
+            {0x68, (byte)0xce, 0x3c, (byte)0x80},
+            {0x65, (byte)0x88, (byte)0x84, 0x00, 0x33, (byte)0xff, 0x00, 0x00, 0x01, 0x02},
+    };
+
+    public static void main(String[] args){
+        for(int nalLengthSize : new int[]{1, 2, 4}){
+            checkConversion(nalLengthSize);
+        }
+        checkTruncatedSample();
+        System.out.println("AnnexBTest: passed");
+    }
+
+    private static void checkConversion(int nalLengthSize){
+        byte[] sample = lengthPrefixed(nalLengthSize);
+        byte[] expected = startCodePrefixed();
+        int maxSize = AnnexB.maxConvertedSize(sample.length, nalLengthSize);
+        if(maxSize < expected.length){
+            throw new AssertionError("Max size " + maxSize + " of " + nalLengthSize + " byte prefixes is less than "
+                    + expected.length);
+        }
+        // converted at an offset into a buffer holding other data, like a codec input buffer.
+        ByteBuffer target = ByteBuffer.allocate(maxSize + 8);
+        target.position(3);
+        ByteBuffer source = ByteBuffer.wrap(sample);
+        int size = AnnexB.convert(source, nalLengthSize, target);
+        byte[] converted = Arrays.copyOfRange(target.array(), 3, 3 + size);
+        if(!Arrays.equals(expected, converted)){
+            throw new AssertionError(nalLengthSize + " byte prefixes converted to " + Arrays.toString(converted)
+                    + ", expected " + Arrays.toString(expected));
+        }
+        if(source.position() != 0){
+            throw new AssertionError("The sample buffer is moved.");
+        }
+    }
+
+    private static void checkTruncatedSample(){
+        byte[] sample = lengthPrefixed(4);
+        ByteBuffer source = ByteBuffer.wrap(sample, 0, sample.length - 3);
+        ByteBuffer target = ByteBuffer.allocate(sample.length);
+        int size = AnnexB.convert(source, 4, target);
+        byte[] expected = startCodePrefixed();
+        byte[] converted = Arrays.copyOf(target.array(), size);
+        if(!Arrays.equals(Arrays.copyOf(expected, expected.length - 3), converted)){
+            throw new AssertionError("Truncated sample converted to " + Arrays.toString(converted));
+        }
+    }
+
+    private static byte[] lengthPrefixed(int nalLengthSize){
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        for(byte[] nal : NAL_UNITS){
+            for(int i = nalLengthSize - 1; i >= 0; i--){
+                buffer.put((byte)(nal.length >> (i * 8)));
+            }
+            buffer.put(nal);
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static byte[] startCodePrefixed(){
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        for(byte[] nal : NAL_UNITS){
+            buffer.put(new byte[]{0, 0, 0, 1});
+            buffer.put(nal);
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+}
@@ -0,0 +1,222 @@
+package com.zepp.frameplayer;
+
+import com.coremedia.iso.IsoFile;
+import com.coremedia.iso.boxes.MovieBox;
+import com.coremedia.iso.boxes.SampleDescriptionBox;
+import com.coremedia.iso.boxes.TrackBox;
+import com.coremedia.iso.boxes.sampleentry.AudioSampleEntry;
+import com.coremedia.iso.boxes.sampleentry.VisualSampleEntry;
+import com.googlecode.mp4parser.authoring.AbstractTrack;
+import com.googlecode.mp4parser.authoring.Movie;
+import com.googlecode.mp4parser.authoring.Sample;
+import com.googlecode.mp4parser.authoring.SampleImpl;
+import com.googlecode.mp4parser.authoring.TrackMetaData;
+import com.googlecode.mp4parser.authoring.builder.DefaultMp4Builder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test of {@link ClipExporter}: a range of more than 5 seconds of a clip with a video and an audio track is
+ * exported. isoparser builds the boxes of such a range with several chunks per track, the exporter rewrites
+ * them to one. The export is parsed again and every sample is read at the chunk offset of its track, it has
+ * to be the sample of the clip.
+ *
+ * Plain Java, run from the project root:
+ *   javac -d /tmp/fp -cp libs/isoparser-1.0.4.2.jar -sourcepath src:tests tests/com/zepp/frameplayer/ClipExporterTest.java
+ *   java -cp /tmp/fp:libs/isoparser-1.0.4.2.jar:libs/aspectjrt-1.7.3.jar com.zepp.frameplayer.ClipExporterTest
+ */
+public final class ClipExporterTest {
+    private static final int VIDEO_TRACK_ID = 1;
+    private static final int AUDIO_TRACK_ID = 2;
+    private static final long VIDEO_TIME_SCALE = 600;
+    private static final long FRAME_DURATION = 20;           // 30fps
+    private static final int FRAME_COUNT = 240;
+    private static final int KEY_FRAME_INTERVAL = 30;
+    private static final long AUDIO_TIME_SCALE = 44100;
+    private static final long AUDIO_SAMPLE_DURATION = 1024;
+    private static final int AUDIO_SAMPLE_COUNT = (int)(FRAME_COUNT * FRAME_DURATION * AUDIO_TIME_SCALE
+            / VIDEO_TIME_SCALE / AUDIO_SAMPLE_DURATION);
+
+    public static void main(String[] args) throws IOException {
+        File dir = new File(System.getProperty("java.io.tmpdir"));
+        File clip = new File(dir, "ClipExporterTest-clip.mp4");
+        File export = new File(dir, "ClipExporterTest-export.mp4");
+        try{
+            writeClip(clip);
+            // from the key frame at 1s to 6.5s.
+            ClipExporter.Result result = ClipExporter.export(clip.getPath(), 1200, 6500, export.getPath());
+            if(result.startUs != 1000 * 1000 || result.durationUs != 5500 * 1000){
+                throw new AssertionError("Exported from " + result.startUs + "us for " + result.durationUs + "us.");
+            }
+            int videoFrom = KEY_FRAME_INTERVAL;
+            int videoTo = firstSampleAt(6500 * 1000, FRAME_DURATION, VIDEO_TIME_SCALE);
+            int audioFrom = firstSampleAt(result.startUs, AUDIO_SAMPLE_DURATION, AUDIO_TIME_SCALE);
+            int audioTo = firstSampleAt(6500 * 1000, AUDIO_SAMPLE_DURATION, AUDIO_TIME_SCALE);
+            checkExport(export, videoFrom, videoTo, audioFrom, audioTo);
+            System.out.println("ClipExporterTest: passed, " + (videoTo - videoFrom) + " frames and "
+                    + (audioTo - audioFrom) + " audio samples exported");
+        }finally {
+            clip.delete();
+            export.delete();
+        }
+    }
+
+    private static void checkExport(File export, int videoFrom, int videoTo, int audioFrom, int audioTo)
+            throws IOException {
+        MappedDataSource dataSource = MappedDataSource.open(export.getPath());
+        RandomAccessFile file = new RandomAccessFile(export, "r");
+        try{
+            synchronized (MediaInfoExtractor.EXTRACT_LOCKER){
+                IsoFile isoFile = MediaInfoExtractor.parse(dataSource);
+                MovieBox movieBox = isoFile.getMovieBox();
+                List<TrackBox> trackBoxes = movieBox.getBoxes(TrackBox.class);
+                if(trackBoxes.size() != 2){
+                    throw new AssertionError(trackBoxes.size() + " tracks exported.");
+                }
+                for(TrackBox trackBox : trackBoxes){
+                    int trackId = (int)trackBox.getTrackHeaderBox().getTrackId();
+                    long[] chunkOffsets = trackBox.getSampleTableBox().getChunkOffsetBox().getChunkOffsets();
+                    if(chunkOffsets.length != 1){
+                        throw new AssertionError("Track " + trackId + " has " + chunkOffsets.length + " chunks.");
+                    }
+                    SampleTable table = SampleTable.build(trackBox.getSampleTableBox(),
+                            trackBox.getMediaBox().getMediaHeaderBox().getTimescale());
+                    int from = trackId == VIDEO_TRACK_ID ? videoFrom : audioFrom;
+                    int to = trackId == VIDEO_TRACK_ID ? videoTo : audioTo;
+                    if(table.getSampleCount() != to - from){
+                        throw new AssertionError("Track " + trackId + " has " + table.getSampleCount()
+                                + " samples, expected " + (to - from));
+                    }
+                    for(int i = 0; i < table.getSampleCount(); i++){
+                        byte[] data = new byte[table.getSize(i)];
+                        file.seek(table.getOffset(i));
+                        file.readFully(data);
+                        if(!Arrays.equals(sampleData(trackId, from + i), data)){
+                            throw new AssertionError("Sample " + i + " of track " + trackId + " at "
+                                    + table.getOffset(i) + " is not sample " + (from + i) + " of the clip.");
+                        }
+                    }
+                }
+            }
+            // and the player reads it.
+            MediaInfoExtractor.MediaInfo mediaInfo = MediaInfoExtractor.extract(dataSource);
+            if(mediaInfo.totalFrames != videoTo - videoFrom){
+                throw new AssertionError("Export has " + mediaInfo.totalFrames + " frames.");
+            }
+        }finally {
+            file.close();
+            dataSource.close();
+        }
+    }
+
+    private static int firstSampleAt(long timeUs, long sampleDuration, long timeScale){
+        int index = 0;
+        while(SampleTable.toMicroseconds(index * sampleDuration, timeScale) < timeUs){
+            index++;
+        }
+        return index;
+    }
+
+    // every sample holds its track and index, and has a size of its own.
+    private static byte[] sampleData(int trackId, int index){
+        ByteBuffer data = ByteBuffer.allocate(64 + (index % 7) * 16 + trackId * 8);
+        data.putInt(trackId);
+        data.putInt(index);
+        while(data.hasRemaining()){
+            data.put((byte)(index * 31 + trackId));
+        }
+        return data.array();
+    }
+
+    private static void writeClip(File file) throws IOException {
+        VisualSampleEntry avc1 = new VisualSampleEntry(VisualSampleEntry.TYPE3);
+        avc1.setDataReferenceIndex(1);
+        avc1.setWidth(320);
+        avc1.setHeight(240);
+        long[] syncSamples = new long[FRAME_COUNT / KEY_FRAME_INTERVAL];
+        for(int i = 0; i < syncSamples.length; i++){
+            syncSamples[i] = i * KEY_FRAME_INTERVAL + 1;
+        }
+        TestTrack video = new TestTrack("video", "vide", VIDEO_TRACK_ID, VIDEO_TIME_SCALE, FRAME_DURATION,
+                FRAME_COUNT, avc1, syncSamples);
+        video.getTrackMetaData().setWidth(320);
+        video.getTrackMetaData().setHeight(240);
+
+        AudioSampleEntry mp4a = new AudioSampleEntry(AudioSampleEntry.TYPE3);
+        mp4a.setDataReferenceIndex(1);
+        mp4a.setChannelCount(2);
+        mp4a.setSampleSize(16);
+        mp4a.setSampleRate(AUDIO_TIME_SCALE);
+        TestTrack audio = new TestTrack("audio", "soun", AUDIO_TRACK_ID, AUDIO_TIME_SCALE, AUDIO_SAMPLE_DURATION,
+                AUDIO_SAMPLE_COUNT, mp4a, null);
+
+        Movie movie = new Movie();
+        movie.addTrack(video);
+        movie.addTrack(audio);
+        FileOutputStream stream = new FileOutputStream(file);
+        try{
+            new DefaultMp4Builder().build(movie).writeContainer(stream.getChannel());
+        }finally {
+            stream.close();
+        }
+    }
+
+    private static final class TestTrack extends AbstractTrack {
+        private final String mHandler;
+        private final TrackMetaData mMetaData = new TrackMetaData();
+        private final SampleDescriptionBox mSampleDescription = new SampleDescriptionBox();
+        private final long[] mDurations;
+        private final long[] mSyncSamples;
+        private final List<Sample> mSamples = new ArrayList<Sample>();
+
+        TestTrack(String name, String handler, int trackId, long timeScale, long sampleDuration, int sampleCount,
+                  com.coremedia.iso.boxes.Box sampleEntry, long[] syncSamples){
+            super(name);
+            mHandler = handler;
+            mMetaData.setTrackId(trackId);
+            mMetaData.setTimescale(timeScale);
+            mSampleDescription.addBox(sampleEntry);
+            mDurations = new long[sampleCount];
+            Arrays.fill(mDurations, sampleDuration);
+            mSyncSamples = syncSamples;
+            for(int i = 0; i < sampleCount; i++){
+                mSamples.add(new SampleImpl(ByteBuffer.wrap(sampleData(trackId, i))));
+            }
+        }
+
+        @Override
+        public SampleDescriptionBox getSampleDescriptionBox(){
+            return mSampleDescription;
+        }
+        @Override
+        public long[] getSampleDurations(){
+            return mDurations;
+        }
+        @Override
+        public long[] getSyncSamples(){
+            return mSyncSamples;
+        }
+        @Override
+        public TrackMetaData getTrackMetaData(){
+            return mMetaData;
+        }
+        @Override
+        public String getHandler(){
+            return mHandler;
+        }
+        @Override
+        public List<Sample> getSamples(){
+            return mSamples;
+        }
+        @Override
+        public void close(){
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.zepp.frameplayer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Test of {@link CommandTrace} and {@link TraceReplayer}: threads record seek sequences while others record
+ * decoder events, every sequence has to come out with its targets right after it. The trace is written and
+ * read back, the copy holds the same events and replays the same way.
+ *
+ * Plain Java, run from the project root:
+ *   javac -d /tmp/fp src/com/zepp/frameplayer/CommandTrace.java src/com/zepp/frameplayer/TraceReplayer.java src/com/zepp/frameplayer/PtsTable.java tests/com/zepp/frameplayer/CommandTraceTest.java
+ *   java -cp /tmp/fp com.zepp.frameplayer.CommandTraceTest
+ */
+public final class CommandTraceTest {
+    private static final int SAMPLE_COUNT = 300;
+    private static final long FRAME_US = 33333;
+    private static final int KEY_FRAME_INTERVAL = 30;
+    private static final int THREADS = 4;
+    private static final int SEQUENCES_PER_THREAD = 500;
+
+    public static void main(String[] args) throws Exception {
+        checkConcurrentSequences();
+        checkTruncatedSequence();
+        checkRoundTrip();
+        System.out.println("CommandTraceTest: passed");
+    }
+
+    private static void checkConcurrentSequences() throws InterruptedException {
+        final CommandTrace trace = newTrace(THREADS * SEQUENCES_PER_THREAD * 16);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS * 2];
+        for(int t = 0; t < threads.length; t++){
+            final boolean sequences = t % 2 == 0;
+            final int thread = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try{
+                        start.await();
+                    }catch (InterruptedException ie){
+                        return;
+                    }
+                    for(int i = 0; i < SEQUENCES_PER_THREAD; i++){
+                        if(sequences){
+                            long[] timesUs = new long[1 + i % 5];
+                            for(int j = 0; j < timesUs.length; j++){
+                                timesUs[j] = (thread * 1000 + j) * FRAME_US;
+                            }
+                            trace.recordSequence(timesUs);
+                        }else{
+                            trace.record(CommandTrace.FRAME_DECODED, i * FRAME_US);
+                            trace.record(CommandTrace.SAMPLE_QUEUED, i * FRAME_US);
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for(Thread thread : threads){
+            thread.join();
+        }
+        if(trace.isTruncated()){
+            throw new AssertionError("Trace is truncated.");
+        }
+        int sequences = 0;
+        for(int i = 0; i < trace.size(); i++){
+            if(trace.typeAt(i) == CommandTrace.SEQUENCE_TARGET){
+                throw new AssertionError("Target at " + i + " doesn't follow its sequence.");
+            }
+            if(trace.typeAt(i) != CommandTrace.SEEK_SEQUENCE){
+                continue;
+            }
+            int count = (int)trace.argAt(i);
+            long firstUs = trace.argAt(i + 1);
+            for(int j = 0; j < count; j++){
+                int index = i + 1 + j;
+                if(trace.typeAt(index) != CommandTrace.SEQUENCE_TARGET || trace.argAt(index) != firstUs + j * FRAME_US){
+                    throw new AssertionError("Event " + index + " is " + CommandTrace.nameOf(trace.typeAt(index))
+                            + " " + trace.argAt(index) + ", expected target " + j + " of the sequence at " + i);
+                }
+            }
+            i += count;
+            sequences++;
+        }
+        if(sequences != THREADS * SEQUENCES_PER_THREAD){
+            throw new AssertionError(sequences + " sequences recorded.");
+        }
+    }
+
+    private static void checkTruncatedSequence(){
+        CommandTrace trace = newTrace(4);
+        trace.record(CommandTrace.SEEK, 0);
+        if(trace.recordSequence(new long[]{FRAME_US, 2 * FRAME_US, 3 * FRAME_US}) != -1){
+            throw new AssertionError("A sequence that doesn't fit is recorded.");
+        }
+        if(trace.size() != 1 || !trace.isTruncated()){
+            throw new AssertionError("Part of a sequence is recorded, " + trace.size() + " events.");
+        }
+    }
+
+    private static void checkRoundTrip() throws IOException {
+        CommandTrace trace = newTrace(256);
+        int seek = trace.record(CommandTrace.SEEK, 95 * FRAME_US);
+        trace.record(CommandTrace.COMMAND_BEGIN, seek);
+        trace.record(CommandTrace.DECODER_FLUSH, 0);
+        for(int i = 90; i <= 95; i++){
+            trace.record(CommandTrace.SAMPLE_QUEUED, i * FRAME_US);
+        }
+        trace.record(CommandTrace.FRAME_RENDERED, 95 * FRAME_US);
+        trace.record(CommandTrace.COMMAND_DONE, seek);
+        int sequence = trace.recordSequence(new long[]{200 * FRAME_US, 40 * FRAME_US, 41 * FRAME_US});
+        trace.record(CommandTrace.COMMAND_BEGIN, sequence);
+        trace.record(CommandTrace.COMMAND_DONE, sequence);
+        trace.stop();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        trace.writeTo(out);
+        CommandTrace copy = CommandTrace.readFrom(new ByteArrayInputStream(out.toByteArray()));
+        if(copy.size() != trace.size() || copy.getSampleCount() != SAMPLE_COUNT
+                || copy.getStartPositionUs() != trace.getStartPositionUs()){
+            throw new AssertionError("Read " + copy.size() + " events of " + copy.getSampleCount() + " samples.");
+        }
+        for(int i = 0; i < trace.size(); i++){
+            if(copy.typeAt(i) != trace.typeAt(i) || copy.argAt(i) != trace.argAt(i)
+                    || copy.timeAt(i) / 1000 != trace.timeAt(i) / 1000){
+                throw new AssertionError("Event " + i + " is read as " + CommandTrace.nameOf(copy.typeAt(i)) + " "
+                        + copy.argAt(i) + ", written as " + CommandTrace.nameOf(trace.typeAt(i)) + " " + trace.argAt(i));
+            }
+        }
+        for(int i = 0; i < SAMPLE_COUNT; i++){
+            if(copy.getSampleTimeUs(i) != trace.getSampleTimeUs(i) || copy.isSyncSample(i) != trace.isSyncSample(i)){
+                throw new AssertionError("Sample " + i + " is read as " + copy.getSampleTimeUs(i));
+            }
+        }
+
+        TraceReplayer.DecoderModel model = new TraceReplayer.DecoderModel(2000000, 4000000, 1000000, 30000000);
+        TraceReplayer.Report report = TraceReplayer.replay(trace, model);
+        TraceReplayer.Report copyReport = TraceReplayer.replay(copy, model);
+        if(report.commands.length != 2 || report.commands[1].type != CommandTrace.SEEK_SEQUENCE
+                || report.commands[1].arg != 3){
+            throw new AssertionError("Replayed commands:\n" + report);
+        }
+        // the targets behind the last key frames are decoded: 90..95, 30..41 and 180..200.
+        if(report.commands[0].decodedSamples != 6 || report.commands[1].decodedSamples != 12 + 21){
+            throw new AssertionError("Replay decoded other samples:\n" + report);
+        }
+        if(copyReport.decodedSamples != report.decodedSamples){
+            throw new AssertionError("The copy decoded " + copyReport.decodedSamples + " samples, the trace "
+                    + report.decodedSamples);
+        }
+        for(int i = 0; i < report.commands.length; i++){
+            // event times are kept to the microsecond
+            if(Math.abs(copyReport.commands[i].latencyNs - report.commands[i].latencyNs) > 1000
+                    || copyReport.commands[i].recordedLatencyNs < 0){
+                throw new AssertionError("The copy replays command " + i + " as " + copyReport.commands[i]
+                        + ", the trace as " + report.commands[i]);
+            }
+        }
+    }
+
+    // frames without reordering, a key frame every second.
+    private static CommandTrace newTrace(int capacity){
+        long[] sampleTimesUs = new long[SAMPLE_COUNT];
+        for(int i = 0; i < SAMPLE_COUNT; i++){
+            sampleTimesUs[i] = i * FRAME_US;
+        }
+        int[] syncSamples = new int[SAMPLE_COUNT / KEY_FRAME_INTERVAL];
+        for(int i = 0; i < syncSamples.length; i++){
+            syncSamples[i] = i * KEY_FRAME_INTERVAL;
+        }
+        return new CommandTrace(sampleTimesUs, syncSamples, 0, capacity);
+    }
+}
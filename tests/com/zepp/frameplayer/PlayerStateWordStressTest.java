@@ -0,0 +1,202 @@
+package com.zepp.frameplayer;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Randomized stress test of {@link PlayerStateWord}: callers accept commands concurrently while a worker takes
+ * them in sequence order and commits their states, the way {@link FramePlayer} does. Checks that no sequence
+ * number is lost or given twice, and that committed and target state never disagree.
+ *
+ * Plain Java, run from the project root:
+ *   javac -d /tmp/fp src/com/zepp/frameplayer/PlayerState*.java tests/com/zepp/frameplayer/PlayerStateWordStressTest.java
+ *   java -cp /tmp/fp com.zepp.frameplayer.PlayerStateWordStressTest [rounds] [seed]
+ */
+public final class PlayerStateWordStressTest {
+    private static final int CALLERS = 4;
+    private static final int COMMANDS_PER_CALLER = 20000;
+    private static final long STALL_TIMEOUT_NS = 10L * 1000 * 1000 * 1000;
+
+    // commands of FramePlayer that go through the worker, from states and the state after.
+    private static final List<EnumSet<PlayerState>> FROM_STATES = new ArrayList<EnumSet<PlayerState>>();
+    private static final List<PlayerState> TO_STATES = new ArrayList<PlayerState>();
+    static {
+        addCommand(EnumSet.of(PlayerState.Prepared, PlayerState.Paused, PlayerState.PlaybackCompleted),
+                PlayerState.Started); // start
+        addCommand(EnumSet.of(PlayerState.Started, PlayerState.PlaybackCompleted), PlayerState.Paused); // pause
+        addCommand(EnumSet.of(PlayerState.Prepared, PlayerState.Started, PlayerState.Paused,
+                PlayerState.PlaybackCompleted, PlayerState.Suspended), null); // seek
+        addCommand(EnumSet.of(PlayerState.Prepared, PlayerState.Started, PlayerState.Paused,
+                PlayerState.PlaybackCompleted), PlayerState.Suspended); // suspend
+        addCommand(EnumSet.of(PlayerState.Suspended), PlayerState.Paused); // resume
+    }
+
+    private static void addCommand(EnumSet<PlayerState> from, PlayerState to){
+        FROM_STATES.add(from);
+        TO_STATES.add(to);
+    }
+
+    private final long mSeed;
+    private final PlayerStateWord mState = new PlayerStateWord(PlayerState.Prepared);
+    private final PriorityBlockingQueue<Long> mQueue = new PriorityBlockingQueue<Long>();
+    // target state each accepted command leads to, by sequence number.
+    private final AtomicReferenceArray<PlayerState> mTargets =
+            new AtomicReferenceArray<PlayerState>(CALLERS * COMMANDS_PER_CALLER + 1);
+    private final AtomicReference<Throwable> mFailure = new AtomicReference<Throwable>();
+    private volatile boolean mIsCallersDone;
+    private int mAccepted;
+
+    private PlayerStateWordStressTest(long seed){
+        mSeed = seed;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+        for(int i = 0; i < rounds; i++){
+            new PlayerStateWordStressTest(seed + i).run();
+        }
+        System.out.println("PlayerStateWordStressTest: " + rounds + " rounds passed, seed " + seed);
+    }
+
+    private void run() throws InterruptedException {
+        final CountDownLatch go = new CountDownLatch(1);
+        Thread[] callers = new Thread[CALLERS];
+        final int[] accepted = new int[CALLERS];
+        for(int i = 0; i < CALLERS; i++){
+            final int caller = i;
+            callers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try{
+                        go.await();
+                        accepted[caller] = issueCommands(new Random(mSeed * 31 + caller));
+                    }catch (Throwable ex){
+                        fail(ex);
+                    }
+                }
+            }, "caller-" + i);
+            callers[i].start();
+        }
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try{
+                    go.await();
+                    work(new Random(mSeed));
+                }catch (Throwable ex){
+                    fail(ex);
+                }
+            }
+        }, "worker");
+        worker.start();
+        go.countDown();
+        for(Thread caller : callers){
+            caller.join();
+        }
+        for(int count : accepted){
+            mAccepted += count;
+        }
+        mIsCallersDone = true;
+        worker.join();
+        Throwable failure = mFailure.get();
+        if(failure != null){
+            throw new AssertionError("Failed with seed " + mSeed + ": " + failure, failure);
+        }
+    }
+
+    private int issueCommands(Random random){
+        int accepted = 0;
+        for(int i = 0; i < COMMANDS_PER_CALLER && mFailure.get() == null; i++){
+            int command = random.nextInt(TO_STATES.size());
+            EnumSet<PlayerState> from = FROM_STATES.get(command);
+            PlayerState to = TO_STATES.get(command);
+            long word = mState.transit(from, to, true);
+            if(word == PlayerStateWord.REJECTED){
+                continue;
+            }
+            PlayerState target = PlayerStateWord.targetOf(word);
+            if(to != null ? target != to : !from.contains(target)){
+                throw new AssertionError("Command " + command + " accepted with target " + target);
+            }
+            long sequence = PlayerStateWord.sequenceOf(word);
+            if(!mTargets.compareAndSet((int)sequence, null, target)){
+                throw new AssertionError("Sequence " + sequence + " given twice.");
+            }
+            if(random.nextInt(8) == 0){
+                Thread.yield(); // widen the window between accepting and pushing
+            }
+            mQueue.add(sequence);
+            accepted++;
+        }
+        return accepted;
+    }
+
+    private void work(Random random){
+        long processed = 0;
+        long stallStart = System.nanoTime();
+        while(mFailure.get() == null){
+            Long head = mQueue.peek();
+            if(head == null || head != processed + 1){
+                if(head != null && head <= processed){
+                    throw new AssertionError("Sequence " + head + " pushed after it was processed.");
+                }
+                if(mIsCallersDone && head == null && processed == mAccepted){
+                    break;
+                }
+                if(System.nanoTime() - stallStart > STALL_TIMEOUT_NS){
+                    throw new AssertionError("Sequence " + (processed + 1) + " never arrived, "
+                            + processed + " processed.");
+                }
+                // playback reaching the end commits a state of its own.
+                long word = mState.get();
+                if(PlayerStateWord.committedOf(word) == PlayerState.Started && random.nextInt(64) == 0){
+                    mState.commit(PlayerState.PlaybackCompleted);
+                }
+                checkTarget(processed);
+                Thread.yield();
+                continue;
+            }
+            mQueue.poll();
+            processed = head;
+            stallStart = System.nanoTime();
+            mState.setProcessedSequence(processed);
+            PlayerState target = mTargets.get((int)processed);
+            mState.commit(target);
+            PlayerState committed = PlayerStateWord.committedOf(mState.get());
+            if(committed != target){
+                throw new AssertionError("Committed " + committed + " after command " + processed
+                        + " leading to " + target);
+            }
+            checkTarget(processed);
+        }
+        long word = mState.get();
+        if(mFailure.get() == null && PlayerStateWord.sequenceOf(word) != processed){
+            throw new AssertionError("Accepted " + PlayerStateWord.sequenceOf(word) + " commands, processed "
+                    + processed);
+        }
+        checkTarget(processed);
+    }
+
+    // with no command pending, the target is the committed state, otherwise the one of the last command.
+    private void checkTarget(long processed){
+        long word = mState.get();
+        long sequence = PlayerStateWord.sequenceOf(word);
+        PlayerState target = PlayerStateWord.targetOf(word);
+        PlayerState expected = sequence == processed ? PlayerStateWord.committedOf(word) : mTargets.get((int)sequence);
+        if(expected != null && target != expected){
+            throw new AssertionError("Target " + target + " with committed " + PlayerStateWord.committedOf(word)
+                    + ", " + (sequence - processed) + " commands pending, expected " + expected);
+        }
+    }
+
+    private void fail(Throwable ex){
+        mFailure.compareAndSet(null, ex);
+    }
+}